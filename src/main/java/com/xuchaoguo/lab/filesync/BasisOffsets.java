@@ -0,0 +1,120 @@
+package com.xuchaoguo.lab.filesync;
+
+/**
+ * This class represents a block of the new data copied from one of several
+ * basis files, when a file is matched against more than its own old version.
+ * Copies from the first basis file are plain {@link Offsets}; a
+ * <code>BasisOffsets</code> names the basis file it copies from.
+ *
+ * @see Rdiff#makeSignatures(java.io.File[])
+ * @see Rdiff#rebuildFile(java.io.File[], java.util.List, java.io.OutputStream)
+ * @author xuchaoguo
+ */
+public class BasisOffsets implements Delta, java.io.Serializable {
+
+	// Constants and variables
+	// ------------------------------------------------------------------------
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The number of the basis file to copy from.
+	 */
+	protected int basis;
+
+	/**
+	 * The offset in the basis file.
+	 */
+	protected long oldOffset;
+
+	/**
+	 * The offset in the new data.
+	 */
+	protected long newOffset;
+
+	/**
+	 * The size of the copied block, in bytes.
+	 */
+	protected int blockLength;
+
+	// Constructors
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create a new copy from a basis file.
+	 *
+	 * @param basis
+	 *            The number of the basis file to copy from.
+	 * @param oldOffset
+	 *            The offset in the basis file.
+	 * @param newOffset
+	 *            The offset in the new data.
+	 * @param blockLength
+	 *            The size, in bytes, of the copied block.
+	 */
+	public BasisOffsets(int basis, long oldOffset, long newOffset,
+			int blockLength) {
+		this.basis = basis;
+		this.oldOffset = oldOffset;
+		this.newOffset = newOffset;
+		this.blockLength = blockLength;
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------------
+
+	// Delta interface implementation.
+
+	public long getWriteOffset() {
+		return newOffset;
+	}
+
+	public int getBlockLength() {
+		return blockLength;
+	}
+
+	// Property accessor methods
+
+	/**
+	 * Get the number of the basis file to copy from.
+	 *
+	 * @return The basis number.
+	 */
+	public int getBasis() {
+		return basis;
+	}
+
+	/**
+	 * Get the offset in the basis file.
+	 *
+	 * @return The original offset.
+	 */
+	public long getOldOffset() {
+		return oldOffset;
+	}
+
+	// Public instance methods overriding java.lang.Object -------------
+
+	/**
+	 * Return a {@link java.lang.String} representation of this object.
+	 *
+	 * @return A string representing this object.
+	 */
+	public String toString() {
+		return "[ basis=" + basis + " old=" + oldOffset + " new=" + newOffset
+				+ " len=" + blockLength + " ]";
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof BasisOffsets))
+			return false;
+		BasisOffsets that = (BasisOffsets) o;
+		return basis == that.basis && oldOffset == that.oldOffset
+				&& newOffset == that.newOffset
+				&& blockLength == that.blockLength;
+	}
+
+	public int hashCode() {
+		return (int) (basis + oldOffset + newOffset + blockLength);
+	}
+}
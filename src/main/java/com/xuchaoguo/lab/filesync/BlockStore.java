@@ -0,0 +1,494 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.xuchaoguo.lab.filesync.ChecksumPair.StrongKey;
+
+/**
+ * <p>
+ * A local store of blocks addressed by their content, so that a block seen in
+ * any number of files is kept once. Blocks are keyed by the full-length
+ * strong sum of {@link Generator#generateSum}, and appended to a pack file.
+ * An index file beside it holds one fixed-size record per block: its weak
+ * sum, its key, its place in the pack and a reference count. The whole index
+ * is read into memory on opening; adding a block appends a record, and
+ * changing a reference count rewrites four bytes of it.
+ * </p>
+ *
+ * <p>
+ * The pack file can stand in as one more basis file when matching against
+ * several (see {@link Rdiff#makeSignatures(File[])}): give the matcher
+ * {@link #getSignatures(int, int)} along with the signatures of the other
+ * basis files, and give {@link Rdiff#rebuildFile(File[], List,
+ * java.io.OutputStream)} {@link #getPackFile()} in the same place. Any block
+ * kept from an earlier file is then copied rather than sent.
+ * </p>
+ *
+ * <p>
+ * Blocks no longer referenced stay in the pack until {@link #gc()}, which
+ * rewrites the pack and index without them. Pack offsets change then, so
+ * signatures taken before a collection must not be used after it. Instances
+ * are safe for use by several threads at once.
+ * </p>
+ *
+ * @author xuchaoguo
+ */
+public class BlockStore implements Closeable {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	/** Block store index magic. */
+	public static final int STORE_MAGIC = 0x72730836;
+
+	private static final String PACK = "blocks.pack";
+
+	private static final String INDEX = "blocks.idx";
+
+	/** The length of the index header. */
+	private static final int HEADER_LENGTH = 12;
+
+	/** The configuration making the keys, with full-length strong sums. */
+	private final Configuration config;
+
+	/** Makes the keys. */
+	private final Generator generator;
+
+	/** The directory of the store. */
+	private final File dir;
+
+	/** The length of an index record. */
+	private final int recordLength;
+
+	/** The blocks, by key. */
+	private final Map<StrongKey, Entry> entries = new HashMap<>();
+
+	/** The blocks, in index order. */
+	private final List<Entry> slots = new ArrayList<>();
+
+	private RandomAccessFile pack;
+
+	private RandomAccessFile index;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Open a store, creating it if the directory holds none. A store always
+	 * keeps the block length it was created with.
+	 *
+	 * @param config
+	 *            The checksum configuration. Files must be matched against
+	 *            the store with the same block length.
+	 * @param dir
+	 *            The directory of the store.
+	 * @throws java.io.IOException
+	 *             If the store cannot be read or created, or was created
+	 *             with another block length or digest.
+	 */
+	public BlockStore(Configuration config, File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create " + dir);
+		this.config = (Configuration) config.clone();
+		int full = this.config.strongSum.getDigestLength();
+		if (full > 0)
+			this.config.strongSumLength = full;
+		this.generator = new Generator(this.config);
+		this.dir = dir;
+		this.recordLength = 4 + this.config.strongSumLength + 8 + 4 + 4;
+		open();
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * @return The pack file, to patch from as a basis file.
+	 */
+	public File getPackFile() {
+		return new File(dir, PACK);
+	}
+
+	/**
+	 * @return The block length of the store.
+	 */
+	public int getBlockLength() {
+		return config.blockLength;
+	}
+
+	/**
+	 * @return The number of distinct blocks kept, referenced or not.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Add a block, or another reference to it if it is kept already.
+	 *
+	 * @param buf
+	 *            The data.
+	 * @param off
+	 *            The offset of the block in <code>buf</code>.
+	 * @param len
+	 *            The length of the block, at most the block length.
+	 * @return The key of the block.
+	 * @throws java.io.IOException
+	 *             If writing fails.
+	 */
+	public synchronized StrongKey put(byte[] buf, int off, int len)
+			throws IOException {
+		if (len > config.blockLength)
+			throw new IllegalArgumentException("Block too long: " + len);
+		ChecksumPair sum = generator.generateSum(buf, off, len, 0);
+		Entry e = entries.get(sum.getStrong());
+		if (e != null) {
+			setRefs(e, e.refs + 1);
+			return e.key;
+		}
+
+		e = new Entry(sum.getStrong(), sum.getWeak(), pack.length(), len,
+				slots.size());
+		e.refs = 1;
+		pack.seek(e.offset);
+		pack.write(buf, off, len);
+		index.seek(HEADER_LENGTH + (long) e.slot * recordLength);
+		writeRecord(e, index);
+		entries.put(e.key, e);
+		slots.add(e);
+		return e.key;
+	}
+
+	/**
+	 * Add the blocks of a file, as {@link #put} does.
+	 *
+	 * @param f
+	 *            The file.
+	 * @return The keys of the blocks of the file, in order; the file can be
+	 *         put together again from them with {@link #read}.
+	 * @throws java.io.IOException
+	 *             If reading or writing fails.
+	 */
+	public List<StrongKey> putFile(File f) throws IOException {
+		List<StrongKey> keys = new ArrayList<>();
+		byte[] block = new byte[config.blockLength];
+		InputStream in = new BufferedInputStream(new FileInputStream(f));
+		try {
+			int len;
+			while ((len = readBlock(in, block)) > 0)
+				keys.add(put(block, 0, len));
+		} finally {
+			in.close();
+		}
+		return keys;
+	}
+
+	/**
+	 * Drop one reference to each of some blocks. Blocks left without
+	 * references are removed by the next {@link #gc()}.
+	 *
+	 * @param keys
+	 *            The keys of the blocks, as returned by {@link #put} or
+	 *            {@link #putFile}.
+	 * @throws java.io.IOException
+	 *             If a block is not kept or not referenced as often, in
+	 *             which case no reference is dropped, or writing fails.
+	 */
+	public synchronized void release(List<StrongKey> keys) throws IOException {
+		Map<Entry, Integer> drops = new HashMap<>();
+		for (StrongKey key : keys) {
+			Entry e = entries.get(key);
+			Integer n = drops.get(e);
+			int drop = n == null ? 1 : n + 1;
+			if (e == null || e.refs < drop)
+				throw new IOException("Block not referenced: " + key);
+			drops.put(e, drop);
+		}
+		for (Map.Entry<Entry, Integer> d : drops.entrySet())
+			setRefs(d.getKey(), d.getKey().refs - d.getValue());
+	}
+
+	/**
+	 * Look up many blocks under one lock.
+	 *
+	 * @param keys
+	 *            The keys, full length or truncated to a strong sum length;
+	 *            truncated keys are compared on their leading bytes.
+	 * @return For each key, the offset of its block in the pack file, or -1
+	 *         if it is not kept.
+	 */
+	public synchronized long[] lookup(List<StrongKey> keys) {
+		long[] offsets = new long[keys.size()];
+		Map<StrongKey, Entry> shortKeys = null;
+		int i = 0;
+		for (StrongKey key : keys) {
+			Entry e;
+			if (key.length() == config.strongSumLength) {
+				e = entries.get(key);
+			} else {
+				if (shortKeys == null)
+					shortKeys = truncated(key.length());
+				e = shortKeys.get(key);
+			}
+			offsets[i++] = e != null ? e.offset : -1;
+		}
+		return offsets;
+	}
+
+	/**
+	 * Read a block.
+	 *
+	 * @param key
+	 *            The key of the block.
+	 * @return The data of the block.
+	 * @throws java.io.IOException
+	 *             If the block is not kept, or reading fails.
+	 */
+	public synchronized byte[] read(StrongKey key) throws IOException {
+		Entry e = entries.get(key);
+		if (e == null)
+			throw new IOException("No such block: " + key);
+		byte[] buf = new byte[e.length];
+		pack.seek(e.offset);
+		pack.readFully(buf);
+		return buf;
+	}
+
+	/**
+	 * Return the signatures of the blocks kept, to match against the pack
+	 * file as a basis file.
+	 *
+	 * @param strongLength
+	 *            The strong sum length of the other signatures.
+	 * @param basis
+	 *            The basis number to give the pack file.
+	 * @return The signatures, each with its offset in the pack file.
+	 */
+	public synchronized List<ChecksumPair> getSignatures(int strongLength,
+			int basis) {
+		List<ChecksumPair> sums = new ArrayList<>(slots.size());
+		for (Entry e : slots) {
+			byte[] strong = new byte[strongLength];
+			System.arraycopy(e.key.getBytes(), 0, strong, 0, strongLength);
+			ChecksumPair pair = new ChecksumPair(e.weak, strong, e.offset,
+					e.length, e.slot);
+			pair.setBasis(basis);
+			sums.add(pair);
+		}
+		return sums;
+	}
+
+	/**
+	 * Rewrite the pack and index without the blocks no longer referenced.
+	 *
+	 * @return The number of pack bytes freed.
+	 * @throws java.io.IOException
+	 *             If reading or writing fails; the store is then as it was.
+	 */
+	public synchronized long gc() throws IOException {
+		File newPack = new File(dir, PACK + ".tmp");
+		File newIndex = new File(dir, INDEX + ".tmp");
+		List<Entry> kept = new ArrayList<>();
+		long before = pack.length();
+		long offset = 0;
+
+		DataOutputStream packOut = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(newPack)));
+		DataOutputStream indexOut = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(newIndex)));
+		try {
+			writeHeader(indexOut);
+			byte[] buf = new byte[config.blockLength];
+			for (Entry e : slots) {
+				if (e.refs == 0)
+					continue;
+				pack.seek(e.offset);
+				pack.readFully(buf, 0, e.length);
+				packOut.write(buf, 0, e.length);
+
+				Entry moved = new Entry(e.key, e.weak, offset, e.length,
+						kept.size());
+				moved.refs = e.refs;
+				writeRecord(moved, indexOut);
+				kept.add(moved);
+				offset += e.length;
+			}
+		} finally {
+			packOut.close();
+			indexOut.close();
+		}
+
+		close();
+		Files.move(newPack.toPath(), getPackFile().toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		Files.move(newIndex.toPath(), new File(dir, INDEX).toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		open();
+		return before - offset;
+	}
+
+	/**
+	 * Close the pack and index files.
+	 *
+	 * @throws java.io.IOException
+	 *             If closing fails.
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			if (pack != null)
+				pack.close();
+		} finally {
+			if (index != null)
+				index.close();
+		}
+	}
+
+	/**
+	 * Open the pack and index, and read the index into memory.
+	 */
+	private void open() throws IOException {
+		entries.clear();
+		slots.clear();
+		File indexFile = new File(dir, INDEX);
+		boolean exists = indexFile.exists();
+		pack = new RandomAccessFile(getPackFile(), "rw");
+		index = new RandomAccessFile(indexFile, "rw");
+
+		if (!exists || index.length() == 0) {
+			index.setLength(0);
+			pack.setLength(0);
+			writeHeader(index);
+			return;
+		}
+
+		InputStream in = new BufferedInputStream(new FileInputStream(indexFile));
+		try {
+			int magic = Rdiff.readInt(in);
+			int blockLength = Rdiff.readInt(in);
+			int strongLength = Rdiff.readInt(in);
+			if (magic != STORE_MAGIC || blockLength != config.blockLength
+					|| strongLength != config.strongSumLength)
+				throw new IOException("Not a store of this configuration: "
+						+ dir);
+
+			long records = (index.length() - HEADER_LENGTH) / recordLength;
+			for (int slot = 0; slot < records; slot++) {
+				int weak = Rdiff.readInt(in);
+				byte[] key = new byte[strongLength];
+				Rdiff.readFully(in, key);
+				long offset = Rdiff.readInt(8, in);
+				int length = Rdiff.readInt(in);
+				Entry e = new Entry(new StrongKey(key), weak, offset, length,
+						slot);
+				e.refs = Rdiff.readInt(in);
+				if (offset + length > pack.length())
+					throw new EOFException("Block past end of pack: " + slot);
+				entries.put(e.key, e);
+				slots.add(e);
+			}
+		} catch (IOException ioe) {
+			close();
+			throw ioe;
+		} finally {
+			in.close();
+		}
+		// Drop a record or block cut short by a crash.
+		index.setLength(HEADER_LENGTH + (long) slots.size() * recordLength);
+		if (!slots.isEmpty()) {
+			Entry last = slots.get(slots.size() - 1);
+			pack.setLength(last.offset + last.length);
+		} else {
+			pack.setLength(0);
+		}
+	}
+
+	private void writeHeader(DataOutput out) throws IOException {
+		out.writeInt(STORE_MAGIC);
+		out.writeInt(config.blockLength);
+		out.writeInt(config.strongSumLength);
+	}
+
+	private void writeRecord(Entry e, DataOutput out) throws IOException {
+		out.writeInt(e.weak);
+		out.write(e.key.getBytes());
+		out.writeLong(e.offset);
+		out.writeInt(e.length);
+		out.writeInt(e.refs);
+	}
+
+	private void setRefs(Entry e, int refs) throws IOException {
+		index.seek(HEADER_LENGTH + (long) e.slot * recordLength
+				+ recordLength - 4);
+		index.writeInt(refs);
+		e.refs = refs;
+	}
+
+	/**
+	 * Index the blocks by keys truncated to a length.
+	 */
+	private Map<StrongKey, Entry> truncated(int length) {
+		Map<StrongKey, Entry> map = new HashMap<>();
+		for (Entry e : slots) {
+			byte[] key = new byte[length];
+			System.arraycopy(e.key.getBytes(), 0, key, 0, length);
+			map.put(new StrongKey(key), e);
+		}
+		return map;
+	}
+
+	/**
+	 * Read up to a block, stopping early only at the end of the stream.
+	 */
+	private static int readBlock(InputStream in, byte[] block)
+			throws IOException {
+		int total = 0;
+		int len;
+		while (total < block.length
+				&& (len = in.read(block, total, block.length - total)) != -1)
+			total += len;
+		return total;
+	}
+
+	/**
+	 * One block kept.
+	 */
+	private static class Entry {
+		final StrongKey key;
+
+		final int weak;
+
+		final long offset;
+
+		final int length;
+
+		/** The number of the index record. */
+		final int slot;
+
+		int refs;
+
+		Entry(StrongKey key, int weak, long offset, int length, int slot) {
+			this.key = key;
+			this.weak = weak;
+			this.offset = offset;
+			this.length = length;
+			this.slot = slot;
+		}
+	}
+}
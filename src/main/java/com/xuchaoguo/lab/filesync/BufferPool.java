@@ -0,0 +1,103 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A fixed set of byte arrays of one size. {@link #take()} blocks while every
+ * buffer is in use, which bounds both the memory a pipeline uses and how far
+ * its first stage can run ahead of the others.
+ * 
+ * @author xuchaoguo
+ */
+public class BufferPool {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	/** The free buffers. */
+	private final BlockingQueue<byte[]> free;
+
+	/** The length of every buffer. */
+	private final int bufferLength;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create a pool.
+	 * 
+	 * @param count
+	 *            The number of buffers.
+	 * @param bufferLength
+	 *            The length of every buffer.
+	 */
+	public BufferPool(int count, int bufferLength) {
+		if (count < 1 || bufferLength < 1)
+			throw new IllegalArgumentException("Bad pool size");
+		this.free = new ArrayBlockingQueue<>(count);
+		this.bufferLength = bufferLength;
+		for (int i = 0; i < count; i++)
+			free.add(new byte[bufferLength]);
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Take a buffer, waiting until one is free.
+	 * 
+	 * @return The buffer.
+	 * @throws java.io.InterruptedIOException
+	 *             If the wait is interrupted.
+	 */
+	public byte[] take() throws IOException {
+		try {
+			return free.take();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a buffer");
+		}
+	}
+
+	/**
+	 * Take a buffer if one is free.
+	 * 
+	 * @return The buffer, or <code>null</code> if every buffer is in use.
+	 */
+	public byte[] poll() {
+		return free.poll();
+	}
+
+	/**
+	 * Give back a buffer taken from this pool.
+	 * 
+	 * @param buf
+	 *            The buffer.
+	 */
+	public void give(byte[] buf) {
+		if (buf.length != bufferLength || !free.offer(buf))
+			throw new IllegalArgumentException("Not a buffer of this pool");
+	}
+
+	/**
+	 * Give a buffer to this pool if there is room for it, whether or not it
+	 * was taken from it.
+	 * 
+	 * @param buf
+	 *            The buffer.
+	 * @return Whether the buffer was kept.
+	 */
+	public boolean offer(byte[] buf) {
+		return buf.length == bufferLength && free.offer(buf);
+	}
+
+	/**
+	 * @return The length of every buffer.
+	 */
+	public int getBufferLength() {
+		return bufferLength;
+	}
+}
@@ -14,10 +14,18 @@ import com.xuchaoguo.lab.filesync.ChecksumPair.StrongKey;
  * 
  */
 public class ChecksumMap {
-	private Map<Integer, List<ChecksumPair>> dataMap = new HashMap<>();
+	private final Map<Integer, List<ChecksumPair>> dataMap;
 
 	public ChecksumMap() {
+		this(new HashMap<Integer, List<ChecksumPair>>());
+	}
 
+	/**
+	 * Create a map over the given weak sum index, for subclasses that need a
+	 * different kind of map.
+	 */
+	ChecksumMap(Map<Integer, List<ChecksumPair>> dataMap) {
+		this.dataMap = dataMap;
 	}
 
 	public void reset(List<ChecksumPair> pairs) {
@@ -29,16 +37,34 @@ public class ChecksumMap {
 		}
 	}
 
+	/**
+	 * Add a pair, unless one with the same checksums is there already. The
+	 * first of several identical blocks, such as the zero-filled blocks of a
+	 * sparse file, is as good a match as any of them, and keeping only it
+	 * keeps the bucket short.
+	 */
 	public void add(ChecksumPair pair) {
 		List<ChecksumPair> list = dataMap.get(pair.getWeak());
 		if (list == null) {
-			list = new LinkedList<>();
+			list = newBucket();
 			dataMap.put(pair.getWeak(), list);
+		} else {
+			for (ChecksumPair p : list) {
+				if (p.getStrong().equals(pair.getStrong()))
+					return;
+			}
 		}
 
 		list.add(pair);
 	}
 
+	/**
+	 * Create the list of pairs sharing one weak sum.
+	 */
+	List<ChecksumPair> newBucket() {
+		return new LinkedList<>();
+	}
+
 	public boolean isExist(Integer week) {
 		return dataMap.containsKey(week);
 	}
@@ -0,0 +1,16 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.IOException;
+
+/**
+ * Thrown when data rebuilt from a delta does not have the whole-file checksum
+ * the delta carries, meaning the rebuilt data is not the data the delta was
+ * made from.
+ */
+public class ChecksumMismatchException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public ChecksumMismatchException(String message) {
+		super(message);
+	}
+}
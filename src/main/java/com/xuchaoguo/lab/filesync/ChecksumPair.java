@@ -40,6 +40,9 @@ public class ChecksumPair implements java.io.Serializable {
 	/** The sequence number of these sums. */
 	int seq;
 
+	/** The number of the basis file these sums are from; 0 for the first. */
+	int basis;
+
 	// Constructors.
 	// -------------------------------------------------------------------------
 
@@ -148,6 +151,26 @@ public class ChecksumPair implements java.io.Serializable {
 		return seq;
 	}
 
+	/**
+	 * Return the number of the basis file this checksum pair was generated
+	 * from, when matching against several; 0 for the first or only one.
+	 * 
+	 * @return The basis number.
+	 */
+	public int getBasis() {
+		return basis;
+	}
+
+	/**
+	 * Set the number of the basis file this checksum pair was generated from.
+	 * 
+	 * @param basis
+	 *            The basis number.
+	 */
+	public void setBasis(int basis) {
+		this.basis = basis;
+	}
+
 	// Public instance methods overriding java.lang.Object.
 	// -------------------------------------------------------------------------
 
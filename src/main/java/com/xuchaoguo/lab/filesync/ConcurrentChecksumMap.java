@@ -0,0 +1,81 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A {@link ChecksumMap} that can be searched while it is still being filled.
+ * The thread filling it calls {@link #finish()} or {@link #fail(IOException)}
+ * when done; searchers see every pair added so far, and can wait for the rest
+ * with {@link #await()}.
+ *
+ * @author xuchaoguo
+ *
+ */
+public class ConcurrentChecksumMap extends ChecksumMap {
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private volatile IOException failure;
+
+	public ConcurrentChecksumMap() {
+		super(new ConcurrentHashMap<Integer, List<ChecksumPair>>());
+	}
+
+	@Override
+	public synchronized void add(ChecksumPair pair) {
+		super.add(pair);
+	}
+
+	@Override
+	List<ChecksumPair> newBucket() {
+		return new CopyOnWriteArrayList<>();
+	}
+
+	/**
+	 * Mark the map as complete.
+	 */
+	public void finish() {
+		done.countDown();
+	}
+
+	/**
+	 * Mark the map as complete because filling it failed.
+	 *
+	 * @param ioe
+	 *            The failure, rethrown by {@link #await()}.
+	 */
+	public void fail(IOException ioe) {
+		failure = ioe;
+		done.countDown();
+	}
+
+	/**
+	 * @return Whether every pair has been added.
+	 */
+	public boolean isComplete() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Wait until every pair has been added.
+	 *
+	 * @throws java.io.IOException
+	 *             If filling the map failed, or the wait was interrupted.
+	 */
+	public void await() throws IOException {
+		try {
+			done.await();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted waiting for signatures");
+		}
+		if (failure != null)
+			throw new IOException(failure);
+	}
+}
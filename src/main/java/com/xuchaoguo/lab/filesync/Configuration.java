@@ -40,6 +40,16 @@ public class Configuration implements Cloneable, java.io.Serializable {
 	 */
 	public static final int CHUNK_SIZE = 32768;
 
+	/**
+	 * The default amount of output covered by one frame of an indexed delta.
+	 */
+	public static final int FRAME_LENGTH = 1 << 20;
+
+	/**
+	 * The default length below which a file is sent whole.
+	 */
+	public static final int SMALL_FILE_LENGTH = 4 * BLOCK_LENGTH;
+
 	public static final short CHAR_OFFSET = 31;
 
 	/**
@@ -67,6 +77,13 @@ public class Configuration implements Cloneable, java.io.Serializable {
 	 */
 	public boolean doRunLength;
 
+	/**
+	 * Whether or not to let deltas copy from earlier in the new data, so that
+	 * new content that repeats is sent once; see {@link TargetOffsets}. Such
+	 * deltas cannot be read by rdiff.
+	 */
+	public boolean doTargetCopies;
+
 	/**
 	 * The seed for the checksum, to perturb the strong checksum and help avoid
 	 * collisions in plain rsync (or in similar applicaitons).
@@ -79,6 +96,29 @@ public class Configuration implements Cloneable, java.io.Serializable {
 	 */
 	public int chunkSize;
 
+	/**
+	 * The number of output bytes to group into one independently applicable
+	 * frame when writing an {@link IndexedDelta}. This value defaults to 1
+	 * megabyte.
+	 */
+	public int frameLength;
+
+	/**
+	 * The length below which a new file is sent as one literal, without a
+	 * signature exchange; see {@link Rdiff#isSmallFile(long, long)}. This
+	 * value defaults to 4 kilobytes.
+	 */
+	public int smallFileLength;
+
+	/**
+	 * The most literal data, in bytes, that an {@link Rdiff} holds in memory
+	 * for the deltas it makes or reads; past it, literal data is spilled to a
+	 * temporary file, deleted by {@link Rdiff#close()}. A data block held in
+	 * memory counts until it is released (see {@link DataBlock#release()}).
+	 * This value defaults to 0, for no limit.
+	 */
+	public long memoryBudget;
+
 	// Constructors.
 	// ------------------------------------------------------------------------
 
@@ -86,6 +126,8 @@ public class Configuration implements Cloneable, java.io.Serializable {
 		blockLength = BLOCK_LENGTH;
 		strongSumLength = STRONG_LENGTH;
 		chunkSize = CHUNK_SIZE;
+		frameLength = FRAME_LENGTH;
+		smallFileLength = SMALL_FILE_LENGTH;
 		strongSum = MessageDigest.getInstance("MD4");
 		weakSum = new Checksum32(CHAR_OFFSET);
 	}
@@ -110,10 +152,14 @@ public class Configuration implements Cloneable, java.io.Serializable {
 				.clone() : null);
 		this.blockLength = that.blockLength;
 		this.doRunLength = that.doRunLength;
+		this.doTargetCopies = that.doTargetCopies;
 		this.strongSumLength = that.strongSumLength;
 		this.checksumSeed = (byte[]) (that.checksumSeed != null ? that.checksumSeed
 				.clone() : null);
 		this.chunkSize = that.chunkSize;
+		this.frameLength = that.frameLength;
+		this.smallFileLength = that.smallFileLength;
+		this.memoryBudget = that.memoryBudget;
 	}
 
 	// Instance methods.
@@ -123,6 +169,26 @@ public class Configuration implements Cloneable, java.io.Serializable {
 		return new Configuration(this);
 	}
 
+	/**
+	 * Create a new, reset message digest of the same algorithm as
+	 * {@link #strongSum}, for checksums that must not disturb it.
+	 * 
+	 * @return The new message digest.
+	 */
+	public MessageDigest newStrongSum() {
+		try {
+			MessageDigest md = (MessageDigest) strongSum.clone();
+			md.reset();
+			return md;
+		} catch (CloneNotSupportedException cnse) {
+			try {
+				return MessageDigest.getInstance(strongSum.getAlgorithm());
+			} catch (NoSuchAlgorithmException nsae) {
+				throw new Error(nsae);
+			}
+		}
+	}
+
 	// Serialization methods.
 	// -----------------------------------------------------------------------
 
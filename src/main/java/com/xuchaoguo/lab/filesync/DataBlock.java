@@ -1,5 +1,9 @@
 package com.xuchaoguo.lab.filesync;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
 /**
  * This is the {@link Delta} in the rsync algorithm that introduces new data. It
  * is an array of bytes and an offset, such that the updated file should contain
@@ -72,6 +76,23 @@ public class DataBlock implements Delta, java.io.Serializable {
 		}
 	}
 
+	/**
+	 * Create a data block over an array without copying it, for arrays that
+	 * nothing else refers to.
+	 * 
+	 * @param offset
+	 *            The write offset of this data block.
+	 * @param data
+	 *            The data itself, or <code>null</code> for subclasses that
+	 *            keep it elsewhere.
+	 * @param copy
+	 *            Whether to copy <code>data</code>.
+	 */
+	DataBlock(long offset, byte[] data, boolean copy) {
+		this.offset = offset;
+		this.data = copy ? (byte[]) data.clone() : data;
+	}
+
 	// Instance methods.
 	// -----------------------------------------------------------------
 
@@ -107,6 +128,73 @@ public class DataBlock implements Delta, java.io.Serializable {
 		return data;
 	}
 
+	/**
+	 * Return a read-only view of the data of this block, for writing to a
+	 * channel without copying it.
+	 * 
+	 * @return The view, positioned at the first byte of the data.
+	 */
+	public ByteBuffer getBuffer() {
+		return ByteBuffer.wrap(data).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Let go of the buffer holding the data of this block, if it was taken
+	 * from a pool (see {@link Rdiff#setBufferPool(BufferPool)}), so that the
+	 * buffer can be reused once no other block refers to it; or, if the block
+	 * counts against {@link Configuration#memoryBudget}, give its length back
+	 * to the budget. The block must not be used afterwards. A block holding
+	 * its own copy of the data has nothing else to let go of.
+	 */
+	public void release() {
+	}
+
+	/**
+	 * Write the data of this block to an output stream, without making a copy
+	 * of it in memory first.
+	 * 
+	 * @param out
+	 *            The OutputStream to write to.
+	 * @throws java.io.IOException
+	 *             If reading or writing fails.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(data);
+	}
+
+	/**
+	 * Put part of the data of this block into a buffer.
+	 * 
+	 * @param from
+	 *            The offset in this block of the first byte.
+	 * @param dst
+	 *            The buffer to put the data into.
+	 * @param len
+	 *            The number of bytes to put.
+	 * @throws java.io.IOException
+	 *             If reading fails.
+	 */
+	void copyTo(int from, ByteBuffer dst, int len) throws IOException {
+		dst.put(data, from, len);
+	}
+
+	/**
+	 * Return a block of part of the data of this one, written elsewhere.
+	 * 
+	 * @param offset
+	 *            The write offset of the new block.
+	 * @param from
+	 *            The offset in this block of the first byte.
+	 * @param len
+	 *            The number of bytes.
+	 * @return The new block.
+	 * @throws java.io.IOException
+	 *             If the new block is to be spilled, and writing it fails.
+	 */
+	DataBlock slice(long offset, int from, int len) throws IOException {
+		return new DataBlock(offset, data, from, len);
+	}
+
 	// Instance methods overriding java.lang.Object. -------------------
 
 	/**
@@ -116,6 +204,7 @@ public class DataBlock implements Delta, java.io.Serializable {
 	 * @since 1.1
 	 */
 	public String toString() {
+		byte[] data = getData();
 		String str = "[ off=" + offset + " len=" + data.length + " data=";
 		int len = Math.min(data.length, 256);
 		str += Util.toHexString(data, 0, len);
@@ -131,6 +220,7 @@ public class DataBlock implements Delta, java.io.Serializable {
 	 * @since 1.1
 	 */
 	public int hashCode() {
+		byte[] data = getData();
 		int b = 0;
 		// For fun.
 		for (int i = 0; i < data.length; i++)
@@ -150,6 +240,6 @@ public class DataBlock implements Delta, java.io.Serializable {
 	 */
 	public boolean equals(Object o) {
 		return offset == ((DataBlock) o).offset
-				&& java.util.Arrays.equals(data, ((DataBlock) o).data);
+				&& java.util.Arrays.equals(getData(), ((DataBlock) o).getData());
 	}
 }
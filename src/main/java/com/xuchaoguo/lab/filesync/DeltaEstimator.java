@@ -0,0 +1,247 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>
+ * Predicts how much of a new file a delta would copy from the old one,
+ * without searching the whole file. A fixed number of positions are sampled,
+ * one from each of as many equal strata of the file, and the
+ * <code>2 * blockLength - 1</code> bytes there are searched at every offset
+ * against the signature of the old file. The fraction of samples with a
+ * matching block estimates the fraction of the new file the delta would
+ * copy; a Wilson score interval bounds it.
+ * </p>
+ *
+ * <p>
+ * An estimate costs <code>samples * blockLength</code> rolls of the weak sum
+ * and a few seeks, where a full search costs one roll per byte of the file.
+ * A file that was rewritten throughout, such as one encrypted or compressed
+ * again, matches at no sample, and {@link #isWorthDelta(Estimate)} then says
+ * to send it whole.
+ * </p>
+ *
+ * <p>
+ * Instances are not safe for use by several threads at once.
+ * </p>
+ *
+ * @author xuchaoguo
+ */
+public class DeltaEstimator {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	/** The default number of positions sampled. */
+	public static final int SAMPLES = 64;
+
+	/**
+	 * The default least match ratio the upper confidence bound must reach for
+	 * a delta to be worth making.
+	 */
+	public static final double MIN_MATCH_RATIO = 0.1;
+
+	/** The normal quantile of the confidence bounds, for 95%. */
+	private static final double Z = 1.96;
+
+	/** Our configuration. */
+	private final Configuration config;
+
+	/** The number of positions sampled. */
+	private final int samples;
+
+	/** The least upper bound on the match ratio worth a delta. */
+	private double minMatchRatio = MIN_MATCH_RATIO;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create an estimator sampling {@link #SAMPLES} positions.
+	 *
+	 * @param config
+	 *            The checksum configuration.
+	 */
+	public DeltaEstimator(Configuration config) {
+		this(config, SAMPLES);
+	}
+
+	/**
+	 * Create an estimator.
+	 *
+	 * @param config
+	 *            The checksum configuration.
+	 * @param samples
+	 *            The number of positions sampled.
+	 */
+	public DeltaEstimator(Configuration config, int samples) {
+		if (samples < 1)
+			throw new IllegalArgumentException("Bad samples: " + samples);
+		this.config = config;
+		this.samples = samples;
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Set the least upper bound on the match ratio that
+	 * {@link #isWorthDelta(Estimate)} accepts.
+	 *
+	 * @param minMatchRatio
+	 *            The ratio, from 0 to 1.
+	 */
+	public void setMinMatchRatio(double minMatchRatio) {
+		this.minMatchRatio = minMatchRatio;
+	}
+
+	/**
+	 * Estimate the match ratio of a new file against the signature of the old
+	 * one.
+	 *
+	 * @param sums
+	 *            The signature of the old file.
+	 * @param newFile
+	 *            The new file.
+	 * @return The estimate.
+	 * @throws java.io.IOException
+	 *             If reading fails.
+	 */
+	public Estimate estimate(List<ChecksumPair> sums, File newFile)
+			throws IOException {
+		ChecksumMap map = new ChecksumMap();
+		map.reset(sums);
+		return estimate(map, newFile);
+	}
+
+	/**
+	 * Estimate the match ratio of a new file against an index of the
+	 * signature of the old one.
+	 *
+	 * @param map
+	 *            The index of the signature of the old file.
+	 * @param newFile
+	 *            The new file.
+	 * @return The estimate.
+	 * @throws java.io.IOException
+	 *             If reading fails.
+	 */
+	public Estimate estimate(ChecksumMap map, File newFile) throws IOException {
+		int blockLength = config.blockLength;
+		int window = 2 * blockLength - 1;
+		RandomAccessFile raf = new RandomAccessFile(newFile, "r");
+		try {
+			long length = raf.length();
+			int n = (int) Math.min(samples, length / blockLength);
+			if (n == 0)
+				return new Estimate(0, 0);
+
+			// One sample from each stratum, at a repeatable position.
+			Matcher matcher = new Matcher(config);
+			Random rnd = new Random(length);
+			double stratum = (double) length / n;
+			byte[] buf = new byte[window];
+			int hits = 0;
+			for (int i = 0; i < n; i++) {
+				long pos = (long) (i * stratum + rnd.nextDouble() * stratum);
+				pos = Math.min(pos, length - blockLength);
+				int len = (int) Math.min(window, length - pos);
+				raf.seek(pos);
+				raf.readFully(buf, 0, len);
+				if (matcher.findMatch(map, buf, len) >= 0)
+					hits++;
+			}
+			return new Estimate(n, hits);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Whether making a delta is likely to pay off: the match ratio may, with
+	 * 95% confidence, reach {@link #MIN_MATCH_RATIO} or the ratio set by
+	 * {@link #setMinMatchRatio(double)}. A file too short to sample is always
+	 * worth a delta.
+	 *
+	 * @param estimate
+	 *            The estimate.
+	 * @return Whether to make a delta rather than send the file whole.
+	 */
+	public boolean isWorthDelta(Estimate estimate) {
+		return estimate.getUpperBound() >= minMatchRatio;
+	}
+
+	/**
+	 * The outcome of sampling a file: the match ratio and its 95% confidence
+	 * interval.
+	 */
+	public static class Estimate {
+		private final int samples;
+
+		private final int hits;
+
+		Estimate(int samples, int hits) {
+			this.samples = samples;
+			this.hits = hits;
+		}
+
+		/**
+		 * @return The number of positions sampled.
+		 */
+		public int getSamples() {
+			return samples;
+		}
+
+		/**
+		 * @return The number of samples with a matching block.
+		 */
+		public int getHits() {
+			return hits;
+		}
+
+		/**
+		 * @return The estimated fraction of the file a delta would copy, or
+		 *         1 if nothing was sampled.
+		 */
+		public double getMatchRatio() {
+			return samples == 0 ? 1 : (double) hits / samples;
+		}
+
+		/**
+		 * @return The lower 95% confidence bound on the match ratio.
+		 */
+		public double getLowerBound() {
+			return samples == 0 ? 0 : Math.max(0, center() - halfWidth());
+		}
+
+		/**
+		 * @return The upper 95% confidence bound on the match ratio.
+		 */
+		public double getUpperBound() {
+			return samples == 0 ? 1 : Math.min(1, center() + halfWidth());
+		}
+
+		private double center() {
+			double p = (double) hits / samples;
+			return (p + Z * Z / (2 * samples)) / (1 + Z * Z / samples);
+		}
+
+		private double halfWidth() {
+			double p = (double) hits / samples;
+			return Z
+					* Math.sqrt(p * (1 - p) / samples + Z * Z
+							/ (4.0 * samples * samples))
+					/ (1 + Z * Z / samples);
+		}
+
+		@Override
+		public String toString() {
+			return hits + "/" + samples + " [" + getLowerBound() + ", "
+					+ getUpperBound() + "]";
+		}
+	}
+}
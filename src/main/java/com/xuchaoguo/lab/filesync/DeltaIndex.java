@@ -0,0 +1,107 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An interval index over a list of {@link Delta}s, mapping any offset in the
+ * new data to the delta that produces it. Deltas are laid out in list order,
+ * exactly as {@link Rdiff#writeDeltas} would stream them, and may be added
+ * at the end as the output grows.
+ *
+ * @author xuchaoguo
+ */
+class DeltaIndex {
+
+	/** The deltas, in output order. */
+	private Delta[] deltas;
+
+	/** The output offset of each delta. */
+	private long[] starts;
+
+	/** The number of deltas. */
+	private int count;
+
+	/** The total length of the output. */
+	private long length;
+
+	/**
+	 * Create an empty index.
+	 */
+	DeltaIndex() {
+		deltas = new Delta[16];
+		starts = new long[16];
+	}
+
+	DeltaIndex(List<Delta> list) {
+		deltas = list.toArray(new Delta[list.size()]);
+		starts = new long[deltas.length];
+		count = deltas.length;
+		for (int i = 0; i < count; i++) {
+			starts[i] = length;
+			length += deltas[i].getBlockLength();
+		}
+	}
+
+	/**
+	 * Add a delta after the last one.
+	 */
+	void add(Delta delta) {
+		if (count == deltas.length) {
+			deltas = Arrays.copyOf(deltas, 2 * count + 1);
+			starts = Arrays.copyOf(starts, 2 * count + 1);
+		}
+		deltas[count] = delta;
+		starts[count++] = length;
+		length += delta.getBlockLength();
+	}
+
+	/**
+	 * Find the delta covering an output offset.
+	 *
+	 * @param pos
+	 *            The output offset, between 0 and {@link #length()}
+	 *            exclusive.
+	 * @return The index of the delta that produces the byte at
+	 *         <code>pos</code>.
+	 */
+	int find(long pos) {
+		if (pos < 0 || pos >= length)
+			throw new IndexOutOfBoundsException(Long.toString(pos));
+		int i = Arrays.binarySearch(starts, 0, count, pos);
+		if (i < 0)
+			return -i - 2;
+		// Skip empty deltas that share their start with the next one.
+		while (deltas[i].getBlockLength() == 0)
+			i++;
+		return i;
+	}
+
+	/**
+	 * @return The delta at index <code>i</code>.
+	 */
+	Delta get(int i) {
+		return deltas[i];
+	}
+
+	/**
+	 * @return The output offset of the delta at index <code>i</code>.
+	 */
+	long start(int i) {
+		return starts[i];
+	}
+
+	/**
+	 * @return The number of deltas in this index.
+	 */
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @return The total length of the output.
+	 */
+	long length() {
+		return length;
+	}
+}
@@ -0,0 +1,83 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A list of {@link Delta}s that carries the whole-file checksum of the new
+ * data they produce. The lists returned by {@link Rdiff#makeDeltas} and
+ * {@link Rdiff#readDeltas} are of this class; {@link Rdiff#writeDeltas}
+ * writes the checksum and {@link Rdiff#rebuildFile} verifies it, so the
+ * checksum always travels with the deltas it belongs to.
+ *
+ * @author xuchaoguo
+ */
+public class DeltaList extends LinkedList<Delta> {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	private static final long serialVersionUID = 1L;
+
+	/** The whole-file checksum, or <code>null</code>. */
+	private byte[] fileSum;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create an empty list with no checksum.
+	 */
+	public DeltaList() {
+	}
+
+	/**
+	 * Create a list of the given deltas, in order.
+	 *
+	 * @param deltas
+	 *            The deltas.
+	 * @param fileSum
+	 *            The whole-file checksum, or <code>null</code> for none.
+	 */
+	public DeltaList(Collection<? extends Delta> deltas, byte[] fileSum) {
+		super(deltas);
+		setFileSum(fileSum);
+	}
+
+	// Class methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Return the whole-file checksum a list of deltas carries.
+	 *
+	 * @param deltas
+	 *            The deltas.
+	 * @return The checksum, or <code>null</code> if <code>deltas</code> is
+	 *         not a {@link DeltaList} or has none.
+	 */
+	public static byte[] getFileSum(List<Delta> deltas) {
+		return deltas instanceof DeltaList ? ((DeltaList) deltas).getFileSum()
+				: null;
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * @return The whole-file checksum, or <code>null</code> if there is none.
+	 */
+	public byte[] getFileSum() {
+		return fileSum != null ? (byte[]) fileSum.clone() : null;
+	}
+
+	/**
+	 * @param sum
+	 *            The whole-file checksum, or <code>null</code> for none.
+	 */
+	public void setFileSum(byte[] sum) {
+		if (sum != null && sum.length > 255)
+			throw new IllegalArgumentException("Checksum too long");
+		fileSum = sum != null ? (byte[]) sum.clone() : null;
+	}
+}
@@ -0,0 +1,22 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.IOException;
+
+/**
+ * Receives {@link Delta}s one at a time, in the order of the new data, as a
+ * search finds them.
+ * 
+ * @author xuchaoguo
+ */
+public interface DeltaSink {
+
+	/**
+	 * Take the next delta.
+	 * 
+	 * @param delta
+	 *            The delta.
+	 * @throws java.io.IOException
+	 *             If the delta cannot be taken.
+	 */
+	void add(Delta delta) throws IOException;
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -130,7 +131,7 @@ public class Generator {
 	 */
 	public List<ChecksumPair> generateSums(File f) throws IOException {
 		long len = f.length();
-		int count = (int) ((len + (config.blockLength + 1)) / config.blockLength);
+		int count = (int) ((len + (config.blockLength - 1)) / config.blockLength);
 		long offset = 0;
 		FileInputStream fin = new FileInputStream(f);
 		List<ChecksumPair> sums = new ArrayList<>(count);
@@ -154,6 +155,92 @@ public class Generator {
 		return sums;
 	}
 
+	/**
+	 * Update the checksums of a file whose length changed, typically a file
+	 * that had data appended to it. Only the block that held the end of the
+	 * old data and the blocks after it are read and checksummed again; the
+	 * other checksums are taken from <code>sums</code>.
+	 * 
+	 * @param sums
+	 *            The checksums of the file when it was <code>oldLength</code>
+	 *            bytes long, made with the same configuration.
+	 * @param f
+	 *            The {@link java.io.File} to checksum.
+	 * @param oldLength
+	 *            The length of the file when <code>sums</code> were made.
+	 * @return A {@link java.util.List} of {@link ChecksumPair}s for the file as
+	 *         it is now.
+	 * @throws java.io.IOException
+	 *             if <code>f</code> cannot be read from.
+	 */
+	public List<ChecksumPair> updateSums(List<ChecksumPair> sums, File f,
+			long oldLength) throws IOException {
+		return updateSums(sums, f, oldLength, 0, 0);
+	}
+
+	/**
+	 * Update the checksums of a file of which one region was modified, and
+	 * whose length may have changed. The blocks overlapping the region
+	 * <code>[offset, offset + length)</code> are checksummed again, as are the
+	 * block that held the end of the old data and the blocks after it if the
+	 * length changed; the other checksums are taken from <code>sums</code>.
+	 * Several modified regions can be handled by calling this method once for
+	 * each.
+	 * 
+	 * @param sums
+	 *            The checksums of the file when it was <code>oldLength</code>
+	 *            bytes long, made with the same configuration.
+	 * @param f
+	 *            The {@link java.io.File} to checksum.
+	 * @param oldLength
+	 *            The length of the file when <code>sums</code> were made.
+	 * @param offset
+	 *            The offset of the modified region.
+	 * @param length
+	 *            The length of the modified region.
+	 * @return A {@link java.util.List} of {@link ChecksumPair}s for the file as
+	 *         it is now.
+	 * @throws java.io.IOException
+	 *             if <code>f</code> cannot be read from.
+	 */
+	public List<ChecksumPair> updateSums(List<ChecksumPair> sums, File f,
+			long oldLength, long offset, long length) throws IOException {
+		long len = f.length();
+		int count = (int) ((len + (config.blockLength - 1)) / config.blockLength);
+		// The first block to checksum again because the length changed.
+		long tail = oldLength == len ? count : Math.min(oldLength, len)
+				/ config.blockLength;
+		long first = offset / config.blockLength;
+		long last = (offset + length - 1) / config.blockLength;
+		List<ChecksumPair> old = sums instanceof ArrayList ? sums
+				: new ArrayList<>(sums);
+		List<ChecksumPair> result = new ArrayList<>(count);
+		byte[] buf = new byte[config.blockLength];
+
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			for (int i = 0; i < count; i++) {
+				boolean dirty = i >= tail || i >= old.size()
+						|| (length > 0 && i >= first && i <= last);
+				if (!dirty) {
+					result.add(old.get(i));
+					continue;
+				}
+
+				long off = (long) i * config.blockLength;
+				int n = (int) Math.min(len - off, config.blockLength);
+				raf.seek(off);
+				raf.readFully(buf, 0, n);
+				ChecksumPair pair = generateSum(buf, 0, n, off);
+				pair.seq = i;
+				result.add(pair);
+			}
+		} finally {
+			raf.close();
+		}
+		return result;
+	}
+
 	/**
 	 * Generate checksums for an InputStream.
 	 * 
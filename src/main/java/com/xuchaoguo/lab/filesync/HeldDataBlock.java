@@ -0,0 +1,52 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+
+/**
+ * A {@link DataBlock} kept on the heap within the memory budget of a
+ * {@link SpillFile}. {@link #release()} gives its length back to the budget,
+ * so that blocks made later can be kept on the heap too; the block is
+ * serialized as an ordinary data block.
+ *
+ * @author xuchaoguo
+ */
+final class HeldDataBlock extends DataBlock {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	private static final long serialVersionUID = 1L;
+
+	/** The spill whose budget holds the data, until released. */
+	private transient SpillFile spill;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	HeldDataBlock(SpillFile spill, long offset, byte[] data) {
+		super(offset, data, false);
+		this.spill = spill;
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	synchronized DataBlock slice(long offset, int from, int len)
+			throws IOException {
+		if (spill == null)
+			throw new IllegalStateException("Data block released");
+		return spill.dataBlock(offset, data, from, len);
+	}
+
+	public synchronized void release() {
+		if (spill != null) {
+			spill.unreserve(data.length);
+			spill = null;
+		}
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		return new DataBlock(offset, data, false);
+	}
+}
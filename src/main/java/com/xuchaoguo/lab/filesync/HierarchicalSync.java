@@ -0,0 +1,517 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * <p>
+ * Synchronizes a file over several rounds of signatures with decreasing block
+ * lengths. The receiver first sends the signature of the whole basis file
+ * with coarse blocks. The sender matches the new file against it and reports
+ * the copies it found. The receiver then sends finer signatures of only those
+ * regions of the basis that no copy refers to yet, and the sender searches
+ * only its remaining literal data with them. This repeats until the block
+ * length reaches the fine length, when the sender sends the delta.
+ * </p>
+ *
+ * <p>
+ * With a single block length, small blocks give small deltas but large
+ * signatures, and large blocks the other way round. Here the coarse round
+ * costs little, and each finer round is paid for only around the changes, so
+ * for sparse changes to a large file the bytes exchanged come close to the
+ * size of the changes.
+ * </p>
+ *
+ * <p>
+ * The {@link Receiver} and {@link Sender} hold the two ends of the protocol;
+ * {@link #makeDeltas} and {@link #sync} run both ends locally and count the
+ * bytes the messages between them would take.
+ * </p>
+ *
+ * @author xuchaoguo
+ */
+public class HierarchicalSync {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	/** The default block length of the first round. */
+	public static final int COARSE_LENGTH = 1 << 16;
+
+	/** The default factor the block length shrinks by from round to round. */
+	public static final int FACTOR = 4;
+
+	/** The checksum configuration. */
+	private final Configuration config;
+
+	/** The block lengths of the rounds, longest first. */
+	private final int[] lengths;
+
+	/** The bytes sent from receiver to sender by the last run. */
+	private long signatureBytes;
+
+	/** The bytes sent from sender to receiver by the last run. */
+	private long deltaBytes;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create a synchronizer going from {@link #COARSE_LENGTH} down to the
+	 * block length of <code>config</code>.
+	 *
+	 * @param config
+	 *            The checksum configuration.
+	 */
+	public HierarchicalSync(Configuration config) {
+		this(config, COARSE_LENGTH, config.blockLength, FACTOR);
+	}
+
+	/**
+	 * Create a synchronizer.
+	 *
+	 * @param config
+	 *            The checksum configuration.
+	 * @param coarseLength
+	 *            The block length of the first round.
+	 * @param fineLength
+	 *            The block length of the last round.
+	 * @param factor
+	 *            The factor the block length shrinks by from round to round.
+	 */
+	public HierarchicalSync(Configuration config, int coarseLength,
+			int fineLength, int factor) {
+		if (fineLength < 1 || factor < 2)
+			throw new IllegalArgumentException("Bad block lengths");
+		this.config = (Configuration) config.clone();
+
+		List<Integer> list = new ArrayList<>();
+		for (long b = Math.max(coarseLength, fineLength); b > fineLength; b /= factor)
+			list.add((int) b);
+		list.add(fineLength);
+		lengths = new int[list.size()];
+		for (int i = 0; i < lengths.length; i++)
+			lengths[i] = list.get(i);
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Run both ends of the protocol and return the delta of
+	 * <code>newFile</code> against <code>basis</code>.
+	 *
+	 * @param basis
+	 *            The old version of the file.
+	 * @param newFile
+	 *            The new version of the file.
+	 * @return The deltas, in the order of the new file.
+	 * @throws java.io.IOException
+	 *             If reading either file fails.
+	 */
+	public List<Delta> makeDeltas(File basis, File newFile) throws IOException {
+		signatureBytes = 0;
+		deltaBytes = 0;
+
+		Receiver receiver = new Receiver(config, basis);
+		Sender sender = new Sender(config, newFile);
+		try {
+			List<Delta> copies = Collections.emptyList();
+			for (int b : lengths) {
+				List<ChecksumPair> sums = receiver.refine(copies, b);
+				signatureBytes += receiver.getMessageLength();
+				// A basis shorter than this round's blocks may still match
+				// blocks of the rounds to come.
+				if (sums.isEmpty()) {
+					copies = Collections.emptyList();
+					continue;
+				}
+				copies = sender.match(sums, b);
+				deltaBytes += sender.getMessageLength();
+				if (!sender.hasLiterals())
+					break;
+			}
+		} finally {
+			receiver.close();
+		}
+
+		List<Delta> deltas = new DeltaList(sender.getDeltas(),
+				sender.getFileSum());
+		// The receiver has had the copies round by round; the last message
+		// only carries the literal data that fills the gaps between them.
+		List<Delta> literals = new ArrayList<>();
+		for (Delta delta : deltas) {
+			if (!(delta instanceof Offsets))
+				literals.add(delta);
+		}
+		CountingOutputStream counter = new CountingOutputStream();
+		Rdiff rdiff = new Rdiff(config);
+		try {
+			rdiff.writeDeltas(new DeltaList(literals, sender.getFileSum()),
+					counter);
+		} finally {
+			rdiff.close();
+		}
+		deltaBytes += counter.count;
+		return deltas;
+	}
+
+	/**
+	 * Write the contents of <code>newFile</code> to <code>out</code> by
+	 * patching <code>basis</code> with the delta from {@link #makeDeltas}.
+	 *
+	 * @param basis
+	 *            The old version of the file.
+	 * @param newFile
+	 *            The new version of the file.
+	 * @param out
+	 *            The file to write the new version to. It must not be
+	 *            <code>basis</code>.
+	 * @throws java.io.IOException
+	 *             If reading or writing fails, or the result does not verify.
+	 */
+	public void sync(File basis, File newFile, File out) throws IOException {
+		List<Delta> deltas = makeDeltas(basis, newFile);
+		Rdiff rdiff = new Rdiff(config);
+		try {
+			OutputStream o = new BufferedOutputStream(new FileOutputStream(
+					out));
+			try {
+				rdiff.rebuildFile(basis, deltas, o);
+			} finally {
+				o.close();
+			}
+		} finally {
+			rdiff.close();
+		}
+	}
+
+	/**
+	 * @return The block lengths of the rounds, longest first.
+	 */
+	public int[] getBlockLengths() {
+		return (int[]) lengths.clone();
+	}
+
+	/**
+	 * @return The bytes of signatures and region lists the last run sent from
+	 *         receiver to sender.
+	 */
+	public long getSignatureBytes() {
+		return signatureBytes;
+	}
+
+	/**
+	 * @return The bytes of copy reports and the final literal data the last
+	 *         run sent from sender to receiver. Each copy is counted once, in
+	 *         the round that found it.
+	 */
+	public long getDeltaBytes() {
+		return deltaBytes;
+	}
+
+	/**
+	 * Copy a configuration for one round.
+	 */
+	private static Configuration round(Configuration config, int blockLength) {
+		Configuration c = (Configuration) config.clone();
+		c.blockLength = blockLength;
+		return c;
+	}
+
+	// Inner classes.
+	// -----------------------------------------------------------------
+
+	/**
+	 * The end holding the basis file. It keeps track of the regions of the
+	 * basis the sender has matched so far.
+	 */
+	public static class Receiver {
+
+		private final Configuration config;
+
+		private final RandomAccessFile basis;
+
+		/** The basis regions copied so far, as {offset, length}. */
+		private final List<long[]> covered = new ArrayList<>();
+
+		private long messageLength;
+
+		/**
+		 * @param config
+		 *            The checksum configuration.
+		 * @param basis
+		 *            The basis file.
+		 * @throws java.io.IOException
+		 *             If the basis file cannot be opened.
+		 */
+		public Receiver(Configuration config, File basis) throws IOException {
+			this.config = config;
+			this.basis = new RandomAccessFile(basis, "r");
+		}
+
+		/**
+		 * Take the copies found in the last round and return the signatures
+		 * of the basis regions still unmatched, with the given block length.
+		 * Regions shorter than a block are left out.
+		 *
+		 * @param copies
+		 *            The copies the sender found in the last round.
+		 * @param blockLength
+		 *            The block length of this round.
+		 * @return The signatures, in basis order.
+		 * @throws java.io.IOException
+		 *             If reading the basis fails.
+		 */
+		public List<ChecksumPair> refine(List<Delta> copies, int blockLength)
+				throws IOException {
+			for (Delta delta : copies) {
+				if (delta instanceof Offsets) {
+					Offsets o = (Offsets) delta;
+					covered.add(new long[] { o.getOldOffset(),
+							o.getBlockLength() });
+				}
+			}
+			merge(covered);
+
+			Configuration c = round(config, blockLength);
+			Generator gen = new Generator(c);
+			List<ChecksumPair> sums = new ArrayList<>();
+			int regions = 0;
+
+			// A whole number of blocks per read.
+			byte[] buf = new byte[Math.max(1, c.chunkSize / blockLength)
+					* blockLength];
+			long pos = 0;
+			long length = basis.length();
+			for (int i = 0; i <= covered.size(); i++) {
+				long end = i < covered.size() ? covered.get(i)[0] : length;
+				if (end - pos >= blockLength) {
+					regions++;
+					for (long off = pos; off < end;) {
+						int n = (int) Math.min(buf.length, end - off);
+						basis.seek(off);
+						basis.readFully(buf, 0, n);
+						sums.addAll(gen.generateSums(buf, 0, n, off));
+						off += n;
+					}
+				}
+				if (i < covered.size())
+					pos = Math.max(pos, covered.get(i)[0] + covered.get(i)[1]);
+			}
+
+			// Each region goes over the wire as {offset, length}, followed
+			// by the signature.
+			CountingOutputStream counter = new CountingOutputStream();
+			Rdiff.writeInt(regions, counter);
+			new Rdiff(c).writeSignatures(sums, counter);
+			messageLength = counter.count + 16L * regions;
+			return sums;
+		}
+
+		/**
+		 * @return The bytes the last call to {@link #refine} would send.
+		 */
+		public long getMessageLength() {
+			return messageLength;
+		}
+
+		/**
+		 * Close the basis file.
+		 *
+		 * @throws java.io.IOException
+		 *             If closing fails.
+		 */
+		public void close() throws IOException {
+			basis.close();
+		}
+
+		/**
+		 * Sort regions by offset and join those that overlap or touch.
+		 */
+		private static void merge(List<long[]> regions) {
+			Collections.sort(regions, new Comparator<long[]>() {
+				@Override
+				public int compare(long[] o1, long[] o2) {
+					return o1[0] < o2[0] ? -1 : (o1[0] > o2[0] ? 1 : 0);
+				}
+			});
+			ListIterator<long[]> i = regions.listIterator();
+			long[] last = null;
+			while (i.hasNext()) {
+				long[] r = i.next();
+				if (last != null && r[0] <= last[0] + last[1]) {
+					last[1] = Math.max(last[1], r[0] + r[1] - last[0]);
+					i.remove();
+				} else {
+					last = r;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The end holding the new file. It keeps the delta found so far, and
+	 * searches only its literal data in each new round.
+	 */
+	public static class Sender {
+
+		private final Configuration config;
+
+		private final File newFile;
+
+		/** The deltas found so far, in the order of the new file. */
+		private List<Delta> deltas;
+
+		private byte[] fileSum;
+
+		private long messageLength;
+
+		/**
+		 * @param config
+		 *            The checksum configuration.
+		 * @param newFile
+		 *            The new file.
+		 */
+		public Sender(Configuration config, File newFile) {
+			this.config = config;
+			this.newFile = newFile;
+		}
+
+		/**
+		 * Search for the given signatures and return the copies found. The
+		 * first round searches the whole file; later rounds search only the
+		 * literal data left by the rounds before, in pieces of at least one
+		 * block.
+		 *
+		 * @param sums
+		 *            The signatures from {@link Receiver#refine}.
+		 * @param blockLength
+		 *            The block length of this round.
+		 * @return The copies found in this round.
+		 * @throws java.io.IOException
+		 *             If reading the new file fails.
+		 */
+		public List<Delta> match(List<ChecksumPair> sums, int blockLength)
+				throws IOException {
+			Matcher matcher = new Matcher(round(config, blockLength));
+			List<Delta> copies = new ArrayList<>();
+
+			if (deltas == null) {
+				deltas = matcher.hashSearch(sums, newFile);
+				fileSum = matcher.getFileSum();
+				for (Delta delta : deltas) {
+					if (delta instanceof Offsets)
+						copies.add(delta);
+				}
+			} else {
+				ChecksumMap map = new ChecksumMap();
+				map.reset(sums);
+				List<Delta> next = new ArrayList<>(deltas.size());
+				for (Delta delta : deltas) {
+					if (delta instanceof DataBlock
+							&& delta.getBlockLength() >= blockLength) {
+						DataBlock data = (DataBlock) delta;
+						List<Delta> found = new ArrayList<>();
+						matcher.search(map,
+								new ByteArrayInputStream(data.getData()),
+								data.getOffset(), found);
+						for (Delta d : found) {
+							if (d instanceof Offsets)
+								copies.add(d);
+						}
+						next.addAll(found);
+					} else {
+						next.add(delta);
+					}
+				}
+				deltas = next;
+			}
+
+			CountingOutputStream counter = new CountingOutputStream();
+			for (Delta delta : copies)
+				Rdiff.writeOp(delta, counter);
+			messageLength = counter.count;
+			return copies;
+		}
+
+		/**
+		 * @return Whether any literal data is left to refine.
+		 */
+		public boolean hasLiterals() {
+			for (Delta delta : deltas) {
+				if (delta instanceof DataBlock)
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @return The bytes the copies of the last call to {@link #match}
+		 *         would take.
+		 */
+		public long getMessageLength() {
+			return messageLength;
+		}
+
+		/**
+		 * Return the delta found, with adjacent copies joined.
+		 *
+		 * @return The deltas, in the order of the new file.
+		 * @throws java.io.IOException
+		 *             If no round was run and the new file cannot be read.
+		 */
+		public List<Delta> getDeltas() throws IOException {
+			if (deltas == null) {
+				// The basis had nothing to match against.
+				match(Collections.<ChecksumPair> emptyList(),
+						config.blockLength);
+			}
+			LinkedList<Delta> joined = new LinkedList<>();
+			for (Delta delta : deltas) {
+				if (delta instanceof Offsets) {
+					Offsets o = (Offsets) delta;
+					Rdiff.addCopy(joined, o.getOldOffset(), o.getNewOffset(),
+							o.getBlockLength());
+				} else {
+					joined.add(delta);
+				}
+			}
+			return joined;
+		}
+
+		/**
+		 * @return The whole-file checksum of the new file, taken in the first
+		 *         round.
+		 */
+		public byte[] getFileSum() {
+			return fileSum;
+		}
+	}
+
+	/**
+	 * An OutputStream that only counts what is written to it.
+	 */
+	private static class CountingOutputStream extends OutputStream {
+		long count;
+
+		public void write(int b) {
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,467 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * A delta container made of independently decodable frames. Each frame is a
+ * run of ordinary {@link Rdiff} delta commands terminated by
+ * {@link Rdiff#OP_END}, covering a contiguous range of the output. The frames
+ * are followed by an index mapping the output offset of each frame to its
+ * position in the container, so that frames can be applied in any order and
+ * by several threads at once. If the deltas carry a whole-file checksum it is
+ * stored before the trailer and checked once every frame has been applied.
+ * </p>
+ *
+ * <p>
+ * The layout is:
+ * </p>
+ *
+ * <pre>
+ * INDEX_MAGIC
+ * frame*                       (delta commands, OP_END)
+ * { outOffset:8 outLength:8 position:8 length:4 }*
+ * sum                          (whole-file checksum, may be empty)
+ * sumLength:1 frameCount:4 indexPosition:8 INDEX_MAGIC
+ * </pre>
+ *
+ * @author xuchaoguo
+ */
+public class IndexedDelta {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	/** Indexed delta magic. */
+	public static final int INDEX_MAGIC = 0x72730336;
+
+	/** The length of the trailer at the end of the container. */
+	private static final int TRAILER_LENGTH = 17;
+
+	/** The length of one index entry. */
+	private static final int ENTRY_LENGTH = 28;
+
+	/**
+	 * The checksum configuration
+	 */
+	private final Configuration config;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	public IndexedDelta(Configuration c) {
+		config = c;
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Write deltas to an output stream as an indexed container. The deltas are
+	 * written in list order, as with {@link Rdiff#writeDeltas}, and grouped
+	 * into frames of about {@link Configuration#frameLength} output bytes.
+	 *
+	 * @param deltas
+	 *            A collection of {@link Delta}s to write.
+	 * @param out
+	 *            The OutputStream to write to.
+	 * @throws java.io.IOException
+	 *             If writing fails, or the deltas copy from more than one
+	 *             basis file.
+	 */
+	public void writeDeltas(List<Delta> deltas, OutputStream out)
+			throws IOException {
+		// Frames are applied against a single basis file.
+		for (Delta delta : deltas) {
+			if (delta instanceof BasisOffsets)
+				throw new IOException("Copy from a second basis: " + delta);
+		}
+		// A frame must not depend on the output of other frames.
+		byte[] sum = DeltaList.getFileSum(deltas);
+		deltas = Rdiff.resolveTargetCopies(deltas);
+		List<Frame> frames = new ArrayList<>();
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		long position = 4;
+		long offset = 0;
+		long frameOffset = 0;
+
+		Rdiff.writeInt(INDEX_MAGIC, out);
+		for (Iterator<Delta> i = deltas.iterator(); i.hasNext();) {
+			Delta delta = i.next();
+			Rdiff.writeOp(delta, frame);
+			offset += delta.getBlockLength();
+
+			if (offset - frameOffset >= config.frameLength || !i.hasNext()) {
+				frame.write(Rdiff.OP_END);
+				frames.add(new Frame(frameOffset, offset - frameOffset,
+						position, frame.size()));
+				frame.writeTo(out);
+				position += frame.size();
+				frame.reset();
+				frameOffset = offset;
+			}
+		}
+
+		DataOutputStream dout = new DataOutputStream(out);
+		for (Frame f : frames) {
+			dout.writeLong(f.offset);
+			dout.writeLong(f.length);
+			dout.writeLong(f.position);
+			dout.writeInt(f.size);
+		}
+		if (sum != null)
+			dout.write(sum);
+		dout.writeByte(sum != null ? sum.length : 0);
+		dout.writeInt(frames.size());
+		dout.writeLong(position);
+		dout.writeInt(INDEX_MAGIC);
+		dout.flush();
+	}
+
+	/**
+	 * Read the frame index of an indexed container. Every frame is checked to
+	 * lie between the magic and the index, and the frames to cover the output
+	 * without gaps.
+	 *
+	 * @param ch
+	 *            The channel of the container.
+	 * @return The frames, in output order.
+	 * @throws java.io.IOException
+	 *             If the container is malformed.
+	 */
+	List<Frame> readIndex(FileChannel ch) throws IOException {
+		long size = ch.size();
+		if (size < 4 + TRAILER_LENGTH)
+			throw new IOException("Truncated indexed delta");
+
+		ByteBuffer trailer = read(ch, size - TRAILER_LENGTH, TRAILER_LENGTH);
+		int sumLength = trailer.get() & 0xff;
+		int count = trailer.getInt();
+		long indexPosition = trailer.getLong();
+		int magic = trailer.getInt();
+		if (magic != INDEX_MAGIC || read(ch, 0, 4).getInt() != INDEX_MAGIC) {
+			throw new IOException("Bad indexed delta magic: 0x"
+					+ Integer.toHexString(magic));
+		}
+		if (count < 0 || count > Integer.MAX_VALUE / ENTRY_LENGTH
+				|| indexPosition < 4
+				|| indexPosition + (long) count * ENTRY_LENGTH != size
+						- TRAILER_LENGTH - sumLength) {
+			throw new IOException("Bad indexed delta trailer");
+		}
+
+		ByteBuffer index = read(ch, indexPosition, count * ENTRY_LENGTH);
+		List<Frame> frames = new ArrayList<>(count);
+		long offset = 0;
+		for (int i = 0; i < count; i++) {
+			Frame frame = new Frame(index.getLong(), index.getLong(), index
+					.getLong(), index.getInt());
+			if (frame.offset != offset || frame.length < 0
+					|| frame.position < 4 || frame.size <= 0
+					|| frame.position > indexPosition - frame.size) {
+				throw new IOException("Bad index entry " + i);
+			}
+			offset += frame.length;
+			frames.add(frame);
+		}
+		return frames;
+	}
+
+	/**
+	 * Read the whole-file checksum of an indexed container.
+	 *
+	 * @param ch
+	 *            The channel of the container, whose index has been read
+	 *            with {@link #readIndex}.
+	 * @return The checksum, or <code>null</code> if the container has none.
+	 * @throws java.io.IOException
+	 *             If reading fails.
+	 */
+	private static byte[] readFileSum(FileChannel ch) throws IOException {
+		long size = ch.size();
+		int sumLength = read(ch, size - TRAILER_LENGTH, 1).get() & 0xff;
+		if (sumLength == 0)
+			return null;
+		return read(ch, size - TRAILER_LENGTH - sumLength, sumLength).array();
+	}
+
+	/**
+	 * Decode the deltas of one frame.
+	 *
+	 * @param ch
+	 *            The channel of the container.
+	 * @param frame
+	 *            The frame to decode, as checked by {@link #readIndex}.
+	 * @return The deltas of the frame, with absolute write offsets.
+	 * @throws java.io.IOException
+	 *             If the frame is malformed.
+	 */
+	List<Delta> readFrame(FileChannel ch, Frame frame) throws IOException {
+		ByteBuffer buf = read(ch, frame.position, frame.size);
+		List<Delta> deltas = new LinkedList<>();
+		long end = Rdiff.readOps(
+				new ByteArrayInputStream(buf.array(), 0, frame.size),
+				frame.offset, deltas);
+		if (end != frame.offset + frame.length)
+			throw new IOException("Bad frame length at " + frame.position);
+		return deltas;
+	}
+
+	/**
+	 * Patch the file <code>basis</code> using the indexed container
+	 * <code>delta</code>, writing the patched file to <code>out</code>. The
+	 * frames are applied in parallel with positional writes, using one thread
+	 * per available processor.
+	 *
+	 * @param basis
+	 *            The basis file.
+	 * @param delta
+	 *            The indexed delta container.
+	 * @param out
+	 *            The file to write the patched file to.
+	 * @throws java.io.IOException
+	 *             If reading/writing fails.
+	 */
+	public void rebuildFile(File basis, File delta, File out)
+			throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime
+				.getRuntime().availableProcessors());
+		try {
+			rebuildFile(basis, delta, out, pool);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Patch the file <code>basis</code> using the indexed container
+	 * <code>delta</code>, writing the patched file to <code>out</code>. Each
+	 * frame is decoded and applied as a separate task on <code>pool</code>.
+	 *
+	 * @param basis
+	 *            The basis file.
+	 * @param delta
+	 *            The indexed delta container.
+	 * @param out
+	 *            The file to write the patched file to.
+	 * @param pool
+	 *            The executor to apply the frames on.
+	 * @throws java.io.IOException
+	 *             If reading/writing fails.
+	 * @throws ChecksumMismatchException
+	 *             If the patched file does not have the whole-file checksum
+	 *             of the container.
+	 */
+	public void rebuildFile(File basis, File delta, File out,
+			ExecutorService pool) throws IOException {
+		RandomAccessFile d = new RandomAccessFile(delta, "r");
+		RandomAccessFile b = new RandomAccessFile(basis, "r");
+		RandomAccessFile o = new RandomAccessFile(out, "rw");
+		try {
+			final FileChannel deltaChannel = d.getChannel();
+			final FileChannel basisChannel = b.getChannel();
+			final FileChannel outChannel = o.getChannel();
+
+			List<Frame> frames = readIndex(deltaChannel);
+			byte[] fileSum = readFileSum(deltaChannel);
+			Frame last = frames.isEmpty() ? null : frames
+					.get(frames.size() - 1);
+			// Start from an empty file of the right length, so that runs of
+			// zeros can be left as holes.
+			outChannel.truncate(0);
+			if (last != null && last.offset + last.length > 0)
+				write(outChannel, ByteBuffer.wrap(new byte[1]), last.offset
+						+ last.length - 1);
+
+			final AtomicBoolean failed = new AtomicBoolean();
+			List<Future<Void>> tasks = new ArrayList<>(frames.size());
+			for (final Frame frame : frames) {
+				tasks.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						if (!failed.get())
+							applyFrame(deltaChannel, frame, basisChannel,
+									outChannel);
+						return null;
+					}
+				}));
+			}
+
+			// After a failure the frames not yet started are skipped, but the
+			// running ones are waited for: the channels are closed below.
+			IOException failure = null;
+			boolean interrupted = false;
+			for (int i = 0; i < tasks.size();) {
+				try {
+					tasks.get(i).get();
+					i++;
+				} catch (InterruptedException ie) {
+					failed.set(true);
+					interrupted = true;
+				} catch (ExecutionException ee) {
+					failed.set(true);
+					if (failure == null) {
+						failure = ee.getCause() instanceof IOException
+								? (IOException) ee.getCause()
+								: new IOException(ee.getCause());
+					}
+					i++;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+				if (failure == null)
+					failure = new InterruptedIOException();
+			}
+			if (failure != null)
+				throw failure;
+
+			if (fileSum != null) {
+				long length = last != null ? last.offset + last.length : 0;
+				if (!MessageDigest.isEqual(fileSum, digest(outChannel, length)))
+					throw new ChecksumMismatchException(
+							"Whole-file checksum mismatch after patching "
+									+ basis);
+			}
+		} finally {
+			o.close();
+			b.close();
+			d.close();
+		}
+	}
+
+	/**
+	 * Apply one frame with positional reads and writes.
+	 */
+	private void applyFrame(FileChannel deltaChannel, Frame frame,
+			FileChannel basis, FileChannel out) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(config.chunkSize);
+		for (Delta delta : readFrame(deltaChannel, frame)) {
+			long pos = delta.getWriteOffset();
+			if (delta instanceof DataBlock) {
+				write(out, ByteBuffer.wrap(((DataBlock) delta).getData()), pos);
+			} else if (delta instanceof RunBlock) {
+				byte value = ((RunBlock) delta).getValue();
+				if (value == 0)
+					continue;
+				long end = pos + delta.getBlockLength();
+				while (pos < end) {
+					buf.clear();
+					buf.limit((int) Math.min(buf.capacity(), end - pos));
+					while (buf.hasRemaining())
+						buf.put(value);
+					buf.flip();
+					write(out, buf, pos);
+					pos += buf.limit();
+				}
+			} else if (!(delta instanceof Offsets)) {
+				throw new IOException("Cannot apply in a frame: " + delta);
+			} else {
+				long oldOffset = ((Offsets) delta).getOldOffset();
+				long end = pos + delta.getBlockLength();
+				while (pos < end) {
+					buf.clear();
+					buf.limit((int) Math.min(buf.capacity(), end - pos));
+					while (buf.hasRemaining()) {
+						if (basis.read(buf, oldOffset + buf.position()) == -1)
+							throw new EOFException("Copy past end of basis");
+					}
+					buf.flip();
+					write(out, buf, pos);
+					oldOffset += buf.limit();
+					pos += buf.limit();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compute the whole-file checksum of the first <code>length</code> bytes
+	 * of a channel.
+	 */
+	private byte[] digest(FileChannel ch, long length) throws IOException {
+		MessageDigest digest = config.newStrongSum();
+		ByteBuffer buf = ByteBuffer.allocate(config.chunkSize);
+		for (long pos = 0; pos < length;) {
+			buf.clear();
+			buf.limit((int) Math.min(buf.capacity(), length - pos));
+			while (buf.hasRemaining()) {
+				if (ch.read(buf, pos + buf.position()) == -1)
+					throw new EOFException();
+			}
+			buf.flip();
+			digest.update(buf);
+			pos += buf.limit();
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Read <code>len</code> bytes at <code>pos</code> from a channel.
+	 */
+	private static ByteBuffer read(FileChannel ch, long pos, int len)
+			throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(len);
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, pos + buf.position()) == -1)
+				throw new EOFException();
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Write all of <code>buf</code> at <code>pos</code> to a channel.
+	 */
+	private static void write(FileChannel ch, ByteBuffer buf, long pos)
+			throws IOException {
+		while (buf.hasRemaining()) {
+			pos += ch.write(buf, pos);
+		}
+	}
+
+	/**
+	 * An entry of the frame index.
+	 */
+	static class Frame {
+		/** The output offset of the first byte of this frame. */
+		final long offset;
+
+		/** The number of output bytes this frame produces. */
+		final long length;
+
+		/** The position of this frame in the container. */
+		final long position;
+
+		/** The encoded size of this frame. */
+		final int size;
+
+		Frame(long offset, long length, long position, int size) {
+			this.offset = offset;
+			this.length = length;
+			this.position = position;
+			this.size = size;
+		}
+	}
+}
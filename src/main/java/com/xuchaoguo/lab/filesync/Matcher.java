@@ -1,9 +1,16 @@
 package com.xuchaoguo.lab.filesync;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -21,12 +28,39 @@ import com.xuchaoguo.lab.filesync.ChecksumPair.StrongKey;
 public final class Matcher {
 	// Constants and variables.
 	// -----------------------------------------------------------------
+	/**
+	 * The most new data, in bytes, that a search against a signature still
+	 * being read holds back; see
+	 * {@link #hashSearch(ConcurrentChecksumMap, InputStream, DeltaSink)}.
+	 */
+	public static final int MAX_HELD_LENGTH = 16 << 20;
+
 	/**
 	 * Our configuration. Contains such things as our rolling checksum and
 	 * message digest.
 	 */
 	private final Configuration config;
 
+	/**
+	 * The whole-file checksum of the data last searched.
+	 */
+	private byte[] fileSum;
+
+	/**
+	 * A buffer for the rolling search to reuse, or <code>null</code>.
+	 */
+	private final byte[] buffer;
+
+	/**
+	 * Where to make the data blocks, or <code>null</code> for the heap.
+	 */
+	private SpillFile spill;
+
+	/**
+	 * The pool to read into buffers from, or <code>null</code>.
+	 */
+	private BufferPool pool;
+
 	// Constructors.
 	// -----------------------------------------------------------------
 
@@ -37,137 +71,849 @@ public final class Matcher {
 	 *            The {@link Configuration} for this Matcher.
 	 */
 	public Matcher(Configuration config) {
+		this(config, null);
+	}
+
+	/**
+	 * Create a matcher that searches in the given buffer when it is large
+	 * enough, rather than allocating one for every search.
+	 * 
+	 * @param config
+	 *            The {@link Configuration} for this Matcher.
+	 * @param buffer
+	 *            The buffer to reuse, or <code>null</code>.
+	 */
+	Matcher(Configuration config, byte[] buffer) {
 		this.config = config;
+		this.buffer = buffer;
 	}
 
 	// Instance methods.
 	// -----------------------------------------------------------------
 
 	/**
-	 * Search a portion of a byte buffer.
+	 * Make the data blocks of the deltas found with <code>spill</code>, so
+	 * that they are spilled to disk past its memory budget.
 	 * 
-	 * @param sums
-	 *            The checksums to search for.
-	 * @param buf
-	 *            The data buffer to search.
-	 * @param offset
-	 *            The offset in <code>buf</code> to begin.
-	 * @param len
-	 *            The number of bytes to search from <code>buf</code>.
-	 * @param baseOffset
-	 *            The offset from whence <code>buf</code> came.
-	 * @return A collection of {@link Delta}s derived from this search.
+	 * @param spill
+	 *            The spill, or <code>null</code> to keep data on the heap.
 	 */
-	private List<Delta> hashSearch(ChecksumMap map, byte[] buf, int offset,
-			int len) {
-		List<Delta> deltas = new LinkedList<>();
-
-		int blockSize = Math.min(config.blockLength, len);
-		byte[] block = new byte[blockSize];
-		byte[] bytes = new byte[config.strongSumLength];
-
-		int i = offset;
-		int rest = len;
-		int idx = 0;
-		int j = 0;
-		do {
-			blockSize = Math.min(config.blockLength, rest);
-			System.arraycopy(buf, i, block, 0, blockSize);
-			rest -= blockSize;
-
-			config.weakSum.check(block, 0, blockSize);
-
-			for (j = 0; j <= rest; j++) {
-				if (j > 0) {
-					config.weakSum.roll(buf[i + blockSize + j - 1]);
-				}
+	void setSpill(SpillFile spill) {
+		this.spill = spill;
+	}
 
-				int weak = config.weakSum.getValue();
+	/**
+	 * Read the new data into buffers from <code>pool</code>, and make data
+	 * blocks that refer to parts of them rather than copy them; see
+	 * {@link DataBlock#release()}. Ignored while data blocks are spilled.
+	 * 
+	 * @param pool
+	 *            The pool, or <code>null</code> to copy data blocks out.
+	 */
+	void setBufferPool(BufferPool pool) {
+		this.pool = pool;
+	}
 
-				if (map.isExist(weak)) {
-					config.strongSum.reset();
-					config.strongSum.update(buf, i + j, blockSize);
-					if (config.checksumSeed != null) {
-						config.strongSum.update(config.checksumSeed);
-					}
+	/**
+	 * Search a file.
+	 * 
+	 * <p>
+	 * Edits often touch a small region of a large file. Before the rolling
+	 * search, the file is compared block by block with the checksums from the
+	 * front and from the back, to find the longest common prefix and suffix.
+	 * Only the data between them is searched. The common suffix is read again
+	 * at the end, so that the whole-file checksum is taken in file order.
+	 * When the checksums come from several basis files, the prefix and suffix
+	 * are looked for in the first one only.
+	 * </p>
+	 * 
+	 * @param sums
+	 *            The checksums to search for, in the order they were
+	 *            generated.
+	 * @param f
+	 *            The file to search.
+	 * @return A list of {@link Delta}s derived from this search.
+	 * @throws IOException
+	 *             If <i>f</i> cannot be read.
+	 */
+	public List<Delta> hashSearch(List<ChecksumPair> sums, File f)
+			throws IOException {
+		List<ChecksumPair> list = new ArrayList<>(sums.size());
+		int max = config.blockLength;
+		for (ChecksumPair pair : sums) {
+			if (pair.getBasis() == 0) {
+				list.add(pair);
+				max = Math.max(max, lengthOf(pair));
+			}
+		}
+		LinkedList<Delta> deltas = new LinkedList<>();
+		byte[] block = new byte[max];
+		MessageDigest digest = config.newStrongSum();
 
-					System.arraycopy(config.strongSum.digest(), 0, bytes, 0,
-							bytes.length);
-
-					ChecksumPair pair = map.getByStrong(weak, new StrongKey(
-							bytes));
-					if (pair != null) {
-						// matched
-						if (j > 0) {
-							DataBlock d = new DataBlock(idx, buf, i, j);
-							deltas.add(d);
-							idx += j;
-						}
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			long length = raf.length();
 
-						Offsets o = new Offsets(pair.getOffset(), idx,
-								blockSize);
-						deltas.add(o);
+			// The common prefix.
+			int head = 0;
+			long offset = 0;
+			for (; head < list.size(); head++) {
+				ChecksumPair pair = list.get(head);
+				int n = lengthOf(pair);
+				if (offset + n > length)
+					break;
+				raf.seek(offset);
+				raf.readFully(block, 0, n);
+				if (!matches(pair, block, n))
+					break;
+				digest.update(block, 0, n);
+				Rdiff.addCopy(deltas, pair.getOffset(), offset, n);
+				offset += n;
+			}
 
-						idx += blockSize;
-						i += (blockSize + j);
-						break;
-					}
+			// The common suffix.
+			LinkedList<Delta> suffix = new LinkedList<>();
+			long end = length;
+			int tail = list.size();
+			int last = tail > head ? lastLength(list, raf, offset) : -1;
+			for (; tail > head; tail--) {
+				ChecksumPair pair = list.get(tail - 1);
+				int n = tail == list.size() ? last : lengthOf(pair);
+				if (n <= 0 || end - n < offset)
+					break;
+				raf.seek(end - n);
+				raf.readFully(block, 0, n);
+				if (!matches(pair, block, n))
+					break;
+				end -= n;
+				Offsets first = suffix.isEmpty() ? null : (Offsets) suffix
+						.getFirst();
+				if (first != null
+						&& first.getOldOffset() == pair.getOffset() + n
+						&& (long) first.getBlockLength() + n <= Integer.MAX_VALUE) {
+					first.setOldOffset(pair.getOffset());
+					first.setNewOffset(end);
+					first.setBlockLength(first.getBlockLength() + n);
+				} else {
+					suffix.addFirst(new Offsets(pair.getOffset(), end, n));
 				}
 			}
 
-			if (j > rest) {
-				// no match
-				DataBlock d = new DataBlock(idx, buf, i, rest + blockSize);
-				deltas.add(d);
-				break;
+			// Everything in between.
+			InputStream in = new DigestInputStream(new RangeInputStream(raf,
+					offset, end - offset), digest);
+			if (head == sums.size()) {
+				appended(in, offset, into(deltas));
 			} else {
-				rest -= j;
+				ChecksumMap map = new ChecksumMap();
+				map.reset(sums);
+				search(map, in, offset, deltas);
 			}
-		} while (rest > 0);
+			deltas.addAll(suffix);
 
+			in = new RangeInputStream(raf, end, length - end);
+			for (int len; (len = in.read(block)) != -1;)
+				digest.update(block, 0, len);
+		} finally {
+			raf.close();
+		}
+		fileSum = digest.digest();
 		return deltas;
 	}
 
 	/**
-	 * Search a file.
+	 * Find the length of the last block of the old data, as it appears at the
+	 * end of the new data. Checksums read back with
+	 * {@link Rdiff#readSignatures} record every block as a full block, so when
+	 * the recorded length does not match, the next-to-last block is looked
+	 * for with a short rolling scan just before the end of the new data.
+	 * 
+	 * @return The length of the last block, or -1 if the new data does not
+	 *         end with it.
+	 */
+	private int lastLength(List<ChecksumPair> list, RandomAccessFile raf,
+			long from) throws IOException {
+		int blockLength = config.blockLength;
+		long length = raf.length();
+		ChecksumPair last = list.get(list.size() - 1);
+		byte[] buf = new byte[2 * blockLength];
+
+		int n = last.getLength() > 0 ? last.getLength() : blockLength;
+		if (length - n >= from) {
+			raf.seek(length - n);
+			raf.readFully(buf, 0, n);
+			if (matches(last, buf, n))
+				return n;
+		}
+		if (list.size() < 2 || length - 2 * blockLength < from)
+			return -1;
+
+		ChecksumPair prev = list.get(list.size() - 2);
+		raf.seek(length - 2 * blockLength);
+		raf.readFully(buf, 0, buf.length);
+		config.weakSum.check(buf, 0, blockLength);
+		for (int i = 0; i < blockLength; i++) {
+			if (i > 0)
+				config.weakSum.roll(buf[i + blockLength - 1]);
+			if (config.weakSum.getValue() == prev.getWeak()
+					&& prev.getStrong().equals(
+							new StrongKey(strongSum(buf, i, blockLength)))) {
+				int m = blockLength - i;
+				byte[] rest = new byte[m];
+				System.arraycopy(buf, i + blockLength, rest, 0, m);
+				if (matches(last, rest, m))
+					return m;
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Search an input stream.
+	 * 
+	 * <p>
+	 * The stream is first compared block by block against the checksums in
+	 * order. While the blocks keep matching, no rolling search is needed; if
+	 * every block of the old data matches, the new data is the old data with
+	 * something appended, and the rest of the stream is not searched against
+	 * the old data at all (see {@link #appended}). Otherwise the rolling
+	 * search takes over from the first block that did not match, or from the
+	 * first checksum of a second basis file.
+	 * </p>
 	 * 
 	 * @param sums
-	 *            The checksums to search for.
-	 * @param f
-	 *            The file to search.
+	 *            The checksums to search for, in the order they were
+	 *            generated.
+	 * @param in
+	 *            The stream of the new data.
 	 * @return A list of {@link Delta}s derived from this search.
 	 * @throws IOException
-	 *             If <i>f</i> cannot be read.
+	 *             If reading fails.
 	 */
-	public List<Delta> hashSearch(List<ChecksumPair> sums, File f)
+	public List<Delta> hashSearch(List<ChecksumPair> sums, InputStream in)
 			throws IOException {
-		return hashSearch(sums, new FileInputStream(f));
+		LinkedList<Delta> deltas = new LinkedList<>();
+		MessageDigest digest = config.newStrongSum();
+		hashSearch(sums, new DigestInputStream(in, digest), into(deltas));
+		fileSum = digest.digest();
+		return deltas;
 	}
 
 	/**
-	 * Search an input stream.
+	 * Search an input stream as {@link #hashSearch(List, InputStream)} does,
+	 * handing each {@link Delta} to <code>sink</code> as soon as it is found.
+	 * No whole-file checksum is taken.
 	 * 
 	 * @param sums
+	 *            The checksums to search for, in the order they were
+	 *            generated.
 	 * @param in
-	 * @return
+	 *            The stream of the new data.
+	 * @param sink
+	 *            The sink to hand the deltas to, in order.
 	 * @throws IOException
+	 *             If reading fails, or the sink fails.
 	 */
-	public List<Delta> hashSearch(List<ChecksumPair> sums, InputStream in)
+	void hashSearch(List<ChecksumPair> sums, InputStream in, DeltaSink sink)
+			throws IOException {
+		// The copies of the blocks matched in order, joined up.
+		LinkedList<Delta> head = new LinkedList<>();
+		byte[] block = new byte[config.blockLength];
+		long offset = 0;
+		for (ChecksumPair pair : sums) {
+			int n = lengthOf(pair);
+			if (n > block.length)
+				block = new byte[n];
+			int len = pair.getBasis() == 0 ? Rdiff.read(in, block, n) : 0;
+			if (len < n || !matches(pair, block, n)) {
+				// Not an append; search the rest, this block included.
+				for (Delta delta : head)
+					sink.add(delta);
+				in = new SequenceInputStream(new ByteArrayInputStream(block,
+						0, len), in);
+				ChecksumMap map = new ChecksumMap();
+				map.reset(sums);
+				search(map, in, offset, sink);
+				return;
+			}
+			Rdiff.addCopy(head, pair.getOffset(), offset, n);
+			offset += n;
+		}
+
+		// Append only: everything left is new.
+		for (Delta delta : head)
+			sink.add(delta);
+		appended(in, offset, sink);
+	}
+
+	/**
+	 * Search a stream against a checksum map that is still being filled.
+	 * 
+	 * <p>
+	 * The search starts at once, and matches against whatever pairs have been
+	 * added so far. Data searched before the map is complete may come out as
+	 * literal data although a matching block arrives later; once the map is
+	 * complete, any such literal data is searched again, so the result is
+	 * close to that of a search against the complete map.
+	 * </p>
+	 * 
+	 * @param map
+	 *            The checksums to search for, added to concurrently.
+	 * @param in
+	 *            The stream of the new data.
+	 * @return A list of {@link Delta}s derived from this search.
+	 * @throws IOException
+	 *             If reading fails, or filling <code>map</code> failed.
+	 */
+	public List<Delta> hashSearch(ConcurrentChecksumMap map, InputStream in)
 			throws IOException {
-		List<Delta> deltas = new LinkedList<>();
+		final List<Delta> deltas = new LinkedList<>();
+		hashSearch(map, in, new DeltaSink() {
+			@Override
+			public void add(Delta delta) {
+				deltas.add(delta);
+			}
+		});
+		return deltas;
+	}
 
-		byte[] buffer = new byte[config.chunkSize];
-		int len = 0;
+	/**
+	 * Search a stream against a checksum map that is still being filled, as
+	 * {@link #hashSearch(ConcurrentChecksumMap, InputStream)} does, handing
+	 * the {@link Delta}s to <code>sink</code> as they are settled. Deltas
+	 * found before the map is complete are held back until it is, and their
+	 * literal data searched again; from then on, deltas go to the sink as
+	 * soon as they are found. Once the deltas held back cover
+	 * {@link #MAX_HELD_LENGTH} bytes of new data, the search waits for the
+	 * map to be complete, so the deltas held back never cover much more
+	 * than that.
+	 * 
+	 * @param map
+	 *            The checksums to search for, added to concurrently.
+	 * @param in
+	 *            The stream of the new data.
+	 * @param sink
+	 *            The sink to hand the deltas to, in order.
+	 * @throws IOException
+	 *             If reading fails, filling <code>map</code> failed, or the
+	 *             sink fails.
+	 */
+	public void hashSearch(final ConcurrentChecksumMap map, InputStream in,
+			final DeltaSink sink) throws IOException {
+		// The held-back data is searched again in the middle of the main
+		// search, so it needs a rolling checksum of its own.
+		final Matcher again = new Matcher((Configuration) config.clone());
+		again.spill = spill;
+		again.pool = pool;
+		final List<Delta> held = new LinkedList<>();
+		final long[] heldLength = { 0 };
+		final boolean[] settled = { map.isComplete() };
+
+		MessageDigest digest = config.newStrongSum();
+		search(map, new DigestInputStream(in, digest), 0, new DeltaSink() {
+			@Override
+			public void add(Delta delta) throws IOException {
+				if (settled[0]) {
+					sink.add(delta);
+					return;
+				}
+				held.add(delta);
+				heldLength[0] += delta.getBlockLength();
+				if (heldLength[0] >= MAX_HELD_LENGTH)
+					map.await();
+				if (map.isComplete()) {
+					again.research(map, held, sink);
+					settled[0] = true;
+				}
+			}
+		});
+		fileSum = digest.digest();
 
-		ChecksumMap map = new ChecksumMap();
-		map.reset(sums);
+		map.await();
+		if (!settled[0])
+			again.research(map, held, sink);
+	}
 
-		while ((len = in.read(buffer)) != -1) {
-			List<Delta> list = this.hashSearch(map, buffer, 0, len);
+	/**
+	 * Search the literal data among <code>deltas</code> again and hand the
+	 * result to <code>sink</code>, joining neighbouring data blocks so that
+	 * matches across them are found too.
+	 */
+	private void research(ChecksumMap map, List<Delta> deltas, DeltaSink sink)
+			throws IOException {
+		LinkedList<DataBlock> run = new LinkedList<>();
+		for (Delta delta : deltas) {
+			if (delta instanceof DataBlock) {
+				run.add((DataBlock) delta);
+				continue;
+			}
+			research(map, run, sink);
+			sink.add(delta);
+		}
+		research(map, run, sink);
+	}
 
-			deltas.addAll(list);
+	/**
+	 * Search a run of data blocks again, reading them in place rather than
+	 * copying them together, and empty the list. The blocks are let go of
+	 * as they are read; the data blocks found are made like any others, so
+	 * they count against the memory budget.
+	 */
+	private void research(ChecksumMap map, LinkedList<DataBlock> run,
+			DeltaSink sink) throws IOException {
+		if (run.isEmpty())
+			return;
+		if (run.size() == 1
+				&& run.getFirst().getBlockLength() < config.blockLength) {
+			sink.add(run.removeFirst());
+			return;
 		}
+		InputStream in = new BlockInputStream(run);
+		try {
+			search(map, in, run.getFirst().getWriteOffset(), sink);
+		} finally {
+			in.close();
+		}
+	}
 
-		return deltas;
+	/**
+	 * Return the whole-file checksum of the data searched by the last call to
+	 * <code>hashSearch</code>, computed with the algorithm of
+	 * {@link Configuration#strongSum} as the data went by.
+	 * 
+	 * @return The whole-file checksum, or <code>null</code> if nothing was
+	 *         searched yet.
+	 */
+	public byte[] getFileSum() {
+		return fileSum != null ? (byte[]) fileSum.clone() : null;
+	}
+
+	/**
+	 * Send data appended to the old data, which no block of the old data
+	 * need be looked up in. It is sent as literal data, unless runs or
+	 * repeats of the new data itself are to be found; it is then searched
+	 * against no blocks.
+	 * 
+	 * @return The offset in the new data just past the end of <code>in</code>.
+	 */
+	private long appended(InputStream in, long offset, DeltaSink deltas)
+			throws IOException {
+		if (config.doRunLength || config.doTargetCopies)
+			return search(new ChecksumMap(), in, offset, deltas);
+		return literal(in, offset, deltas);
+	}
+
+	/**
+	 * Send the rest of a stream as literal data, without searching it.
+	 * 
+	 * @return The offset in the new data just past the end of <code>in</code>.
+	 */
+	private long literal(InputStream in, long offset, DeltaSink deltas)
+			throws IOException {
+		byte[] buffer = null;
+		while (true) {
+			SharedBuffer shared = share(config.chunkSize);
+			if (shared != null)
+				buffer = shared.buf;
+			else if (buffer == null)
+				buffer = new byte[config.chunkSize];
+			try {
+				int len = Rdiff.read(in, buffer, buffer.length);
+				if (len <= 0)
+					return offset;
+				deltas.add(dataBlock(offset, shared, buffer, 0, len));
+				offset += len;
+			} finally {
+				if (shared != null)
+					shared.release();
+			}
+		}
+	}
+
+	/**
+	 * Run the rolling checksum search over the rest of a stream. Literal data
+	 * and matches are appended to <code>deltas</code> with write offsets
+	 * starting at <code>offset</code>; matches are found across the chunks
+	 * the stream is read in.
+	 * 
+	 * @param map
+	 *            The checksums to search for.
+	 * @param in
+	 *            The stream to search.
+	 * @param offset
+	 *            The offset in the new data of the first byte of
+	 *            <code>in</code>.
+	 * @param deltas
+	 *            The list to add the {@link Delta}s found to.
+	 * @return The offset in the new data just past the end of <code>in</code>.
+	 * @throws IOException
+	 *             If reading fails.
+	 */
+	long search(ChecksumMap map, InputStream in, long offset,
+			List<Delta> deltas) throws IOException {
+		return search(map, in, offset, into(deltas));
+	}
+
+	/**
+	 * Return a sink that adds the deltas handed to it to a list.
+	 */
+	private static DeltaSink into(final List<Delta> deltas) {
+		return new DeltaSink() {
+			@Override
+			public void add(Delta delta) {
+				deltas.add(delta);
+			}
+		};
+	}
+
+	/**
+	 * Run the rolling checksum search over the rest of a stream, handing each
+	 * {@link Delta} to <code>sink</code> as soon as it is found.
+	 * 
+	 * <p>
+	 * If {@link Configuration#doTargetCopies} is set, the literal data passed
+	 * over is indexed block by block as the search goes, and a window that
+	 * matches no block of the old data is also looked up there; a match
+	 * becomes a {@link TargetOffsets} copying from the earlier occurrence.
+	 * </p>
+	 * 
+	 * <p>
+	 * If {@link Configuration#doRunLength} is set, a window holding one byte
+	 * value throughout is not looked up at all: the run is followed as far
+	 * as it goes and becomes a {@link RunBlock}. The length of the run of
+	 * equal bytes ending the window is kept up to date as the window rolls,
+	 * so this costs one comparison per byte.
+	 * </p>
+	 * 
+	 * @param map
+	 *            The checksums to search for.
+	 * @param in
+	 *            The stream to search.
+	 * @param offset
+	 *            The offset in the new data of the first byte of
+	 *            <code>in</code>.
+	 * @param deltas
+	 *            The sink to hand the {@link Delta}s found to, in order.
+	 * @return The offset in the new data just past the end of <code>in</code>.
+	 * @throws IOException
+	 *             If reading fails, or the sink fails.
+	 */
+	long search(ChecksumMap map, InputStream in, long offset,
+			DeltaSink deltas) throws IOException {
+		int blockLength = config.blockLength;
+		int size = Math.max(config.chunkSize, 2 * blockLength);
+		SharedBuffer shared = share(size);
+		byte[] buf = shared != null ? shared.buf : buffer != null
+				&& buffer.length >= size ? buffer : new byte[size];
+		int start = 0; // the first byte not yet sent
+		int pos = 0; // the start of the checksum window
+		int end = 0; // the end of the data read so far
+		int n = 0; // the length of the window, 0 if not yet checksummed
+		int same = 0; // the length of the run of equal bytes ending the window
+		boolean eof = false;
+
+		// The blocks of literal data passed over, by write offset.
+		ChecksumMap targets = null;
+		RollingChecksum targetSum = null;
+		int indexed = 0; // the end of the literal data indexed so far
+		if (config.doTargetCopies) {
+			targets = new ChecksumMap();
+			targetSum = (RollingChecksum) config.weakSum.clone();
+		}
+
+		try {
+			while (true) {
+				// Keep a byte past the window at hand to roll in.
+				if (!eof && end - pos <= blockLength) {
+					if (end == buf.length) {
+						if (pos > start) {
+							deltas.add(dataBlock(offset, shared, buf, start,
+									pos - start));
+							offset += pos - start;
+							start = pos;
+						}
+						if (shared != null) {
+							// Blocks may still refer to this buffer.
+							SharedBuffer next = share(size);
+							System.arraycopy(buf, start, next.buf, 0, end
+									- start);
+							shared.release();
+							shared = next;
+							buf = next.buf;
+						} else {
+							System.arraycopy(buf, start, buf, 0, end - start);
+						}
+						pos -= start;
+						end -= start;
+						indexed = Math.max(indexed - start, 0);
+						start = 0;
+					}
+					int len = in.read(buf, end, buf.length - end);
+					if (len == -1)
+						eof = true;
+					else
+						end += len;
+					continue;
+				}
+
+				if (n == 0) {
+					n = Math.min(blockLength, end - pos);
+					if (n == 0)
+						break;
+					config.weakSum.check(buf, pos, n);
+					if (config.doRunLength) {
+						byte last = buf[pos + n - 1];
+						for (same = 1; same < n
+								&& buf[pos + n - 1 - same] == last; same++)
+							;
+					}
+				}
+
+				if (config.doRunLength && same == blockLength) {
+					if (pos > start) {
+						deltas.add(dataBlock(offset, shared, buf, start, pos
+								- start));
+						offset += pos - start;
+					}
+
+					// Follow the run, reading on over the whole buffer if need be.
+					byte value = buf[pos];
+					long length = 0;
+					int i = pos + n;
+					while (true) {
+						while (i < end && buf[i] == value)
+							i++;
+						length += i - pos;
+						pos = i;
+						if (i < end || eof)
+							break;
+						pos = end = i = 0;
+						if (shared != null) {
+							shared.release();
+							shared = share(size);
+							buf = shared.buf;
+						}
+						int len = in.read(buf, 0, buf.length);
+						if (len == -1)
+							eof = true;
+						else
+							end = len;
+					}
+					for (; length > 0; length -= Integer.MAX_VALUE) {
+						int len = (int) Math.min(length, Integer.MAX_VALUE);
+						deltas.add(new RunBlock(offset, value, len));
+						offset += len;
+					}
+					start = pos;
+					indexed = pos;
+					n = 0;
+					continue;
+				}
+
+				ChecksumPair pair = match(map, buf, pos, n);
+				boolean target = false;
+				if (pair == null && targets != null && n == blockLength) {
+					for (indexed = Math.max(indexed, start); indexed
+							+ blockLength <= pos; indexed += blockLength) {
+						targetSum.check(buf, indexed, blockLength);
+						targets.add(new ChecksumPair(targetSum.getValue(),
+								strongSum(buf, indexed, blockLength), offset
+										+ indexed - start, blockLength, 0));
+					}
+					pair = match(targets, buf, pos, n);
+					target = pair != null;
+				}
+				if (pair != null) {
+					if (pos > start) {
+						deltas.add(dataBlock(offset, shared, buf, start, pos
+								- start));
+						offset += pos - start;
+					}
+					if (target)
+						deltas.add(new TargetOffsets(pair.getOffset(), offset, n));
+					else if (pair.getBasis() != 0)
+						deltas.add(new BasisOffsets(pair.getBasis(), pair
+								.getOffset(), offset, n));
+					else
+						deltas.add(new Offsets(pair.getOffset(), offset, n));
+					offset += n;
+					pos += n;
+					start = pos;
+					indexed = pos;
+					n = 0;
+				} else if (pos + n < end) {
+					config.weakSum.roll(buf[pos + n]);
+					if (config.doRunLength)
+						same = buf[pos + n] == buf[pos + n - 1] ? Math.min(same + 1,
+								n) : 1;
+					pos++;
+				} else {
+					// At the end of the stream; shrink the window so the last,
+					// shorter block of the old data can still match.
+					config.weakSum.trim();
+					pos++;
+					if (--n == 0)
+						break;
+					same = Math.min(same, n);
+				}
+			}
+
+			if (end > start) {
+				deltas.add(dataBlock(offset, shared, buf, start, end
+						- start));
+				offset += end - start;
+			}
+		} finally {
+			if (shared != null)
+				shared.release();
+		}
+		return offset;
+	}
+
+	/**
+	 * Find the first block of a buffer that is in the map, trying every
+	 * offset.
+	 * 
+	 * @param map
+	 *            The map to look blocks up in.
+	 * @param buf
+	 *            The data to search.
+	 * @param len
+	 *            The number of bytes of <code>buf</code> to search.
+	 * @return The offset in <code>buf</code> of the first matching block, or
+	 *         -1 if there is none.
+	 */
+	int findMatch(ChecksumMap map, byte[] buf, int len) {
+		int blockLength = config.blockLength;
+		if (len < blockLength)
+			return -1;
+		config.weakSum.check(buf, 0, blockLength);
+		for (int i = 0; i + blockLength <= len; i++) {
+			if (i > 0)
+				config.weakSum.roll(buf[i + blockLength - 1]);
+			if (match(map, buf, i, blockLength) != null)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Look up the block in the current checksum window.
+	 * 
+	 * @return The matching pair, or <code>null</code> if there is none.
+	 */
+	private ChecksumPair match(ChecksumMap map, byte[] buf, int off, int len) {
+		int weak = config.weakSum.getValue();
+		if (!map.isExist(weak))
+			return null;
+
+		return map.getByStrong(weak, new StrongKey(strongSum(buf, off, len)));
+	}
+
+	/**
+	 * Return the length of the block a checksum was made of, taking pairs
+	 * that do not record it to be full blocks.
+	 */
+	private int lengthOf(ChecksumPair pair) {
+		return pair.getLength() > 0 ? pair.getLength() : config.blockLength;
+	}
+
+	/**
+	 * Test whether a block has the given checksums.
+	 */
+	private boolean matches(ChecksumPair pair, byte[] buf, int len) {
+		config.weakSum.check(buf, 0, len);
+		if (config.weakSum.getValue() != pair.getWeak())
+			return false;
+
+		return pair.getStrong().equals(
+				new StrongKey(strongSum(buf, 0, len)));
+	}
+
+	/**
+	 * Compute the truncated strong checksum of a block.
+	 */
+	private byte[] strongSum(byte[] buf, int off, int len) {
+		config.strongSum.reset();
+		config.strongSum.update(buf, off, len);
+		if (config.checksumSeed != null) {
+			config.strongSum.update(config.checksumSeed);
+		}
+
+		byte[] bytes = new byte[config.strongSumLength];
+		System.arraycopy(config.strongSum.digest(), 0, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	/**
+	 * Make a data block of part of a buffer: a slice of it if it is shared,
+	 * or else a copy, spilled if need be.
+	 */
+	private DataBlock dataBlock(long offset, SharedBuffer shared, byte[] buf,
+			int off, int len) throws IOException {
+		if (shared != null)
+			return new SlicedDataBlock(offset, shared, off, len);
+		if (spill != null)
+			return spill.dataBlock(offset, buf, off, len);
+		return new DataBlock(offset, buf, off, len);
+	}
+
+	/**
+	 * Take a buffer of at least <code>size</code> bytes from the pool, if
+	 * there is one to slice data blocks from.
+	 * 
+	 * @return The buffer, or <code>null</code> to copy data blocks out.
+	 */
+	private SharedBuffer share(int size) {
+		if (pool == null || spill != null || pool.getBufferLength() < size)
+			return null;
+		return new SharedBuffer(pool);
+	}
+
+	/**
+	 * Reads the data of a run of data blocks in turn, letting go of each
+	 * block once it has been read.
+	 */
+	private static final class BlockInputStream extends InputStream {
+		private final LinkedList<DataBlock> blocks;
+
+		/** The offset in the first block of the next byte. */
+		private int pos;
+
+		BlockInputStream(LinkedList<DataBlock> blocks) {
+			this.blocks = blocks;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			while (!blocks.isEmpty()
+					&& pos == blocks.getFirst().getBlockLength()) {
+				blocks.removeFirst().release();
+				pos = 0;
+			}
+			if (blocks.isEmpty())
+				return -1;
+			DataBlock block = blocks.getFirst();
+			int n = Math.min(len, block.getBlockLength() - pos);
+			block.copyTo(pos, ByteBuffer.wrap(buf, off, n), n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public void close() {
+			while (!blocks.isEmpty())
+				blocks.removeFirst().release();
+			pos = 0;
+		}
 	}
 }
@@ -0,0 +1,276 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import com.xuchaoguo.lab.filesync.SyncProtocol.FrameOutputStream;
+import com.xuchaoguo.lab.filesync.SyncProtocol.FrameSender;
+
+/**
+ * Brings many local files up to date with their copies on a
+ * {@link NioSyncServer} over one connection. The calling thread opens a
+ * stream per file and sends its signature without waiting for the replies
+ * to earlier files; a second thread reads the deltas as they come back and
+ * patches the files. Up to a fixed number of streams are open at once.
+ * Instances may be shared by several threads, each call using a connection
+ * of its own.
+ *
+ * @author xuchaoguo
+ */
+public class NioSyncClient {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	/** The default number of streams open at once. */
+	public static final int WINDOW = 64;
+
+	/** The address of the server. */
+	private final InetSocketAddress server;
+
+	/** Runs the signature and patch jobs. */
+	private final RdiffService service;
+
+	/** The number of streams open at once. */
+	private final int window;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create a client keeping up to {@link #WINDOW} streams open.
+	 *
+	 * @param config
+	 *            The checksum configuration.
+	 * @param server
+	 *            The address of the server.
+	 */
+	public NioSyncClient(Configuration config, InetSocketAddress server) {
+		this(config, server, WINDOW);
+	}
+
+	/**
+	 * Create a client.
+	 *
+	 * @param config
+	 *            The checksum configuration.
+	 * @param server
+	 *            The address of the server.
+	 * @param window
+	 *            The number of streams open at once.
+	 */
+	public NioSyncClient(Configuration config, InetSocketAddress server,
+			int window) {
+		if (window < 1)
+			throw new IllegalArgumentException("Bad window: " + window);
+		this.server = server;
+		this.service = new RdiffService(config);
+		this.window = window;
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Write the server's copy of each file <code>names[i]</code> to
+	 * <code>outs[i]</code>, patching <code>bases[i]</code>. A file the server
+	 * cannot serve, or that does not patch, does not stop the others.
+	 *
+	 * @param names
+	 *            The names of the files on the server, relative to its root.
+	 * @param bases
+	 *            The local copies of the files. They may be empty.
+	 * @param outs
+	 *            The files to write the new versions to. They must not be
+	 *            the local copies.
+	 * @throws java.io.IOException
+	 *             If the connection fails, or any file fails; the message
+	 *             names the first file that failed.
+	 */
+	public void sync(String[] names, File[] bases, File[] outs)
+			throws IOException {
+		if (names.length != bases.length || names.length != outs.length)
+			throw new IllegalArgumentException("Lengths differ");
+
+		SocketChannel ch = SocketChannel.open(server);
+		try {
+			ch.socket().setTcpNoDelay(true);
+			Session session = new Session(ch, bases, outs);
+			Thread reader = new Thread(session, "sync client reader");
+			reader.setDaemon(true);
+			reader.start();
+
+			IOException error = null;
+			try {
+				for (int i = 0; i < names.length && session.failure == null; i++)
+					session.request(i, names[i]);
+			} catch (IOException ioe) {
+				// The server cannot be told to drop a half-sent stream, so
+				// give up on the connection.
+				error = ioe;
+				ch.close();
+			}
+			try {
+				reader.join();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted syncing");
+			}
+
+			if (error != null)
+				throw error;
+			if (session.failure != null)
+				throw session.failure;
+			if (session.failed >= 0)
+				throw new IOException(names[session.failed] + ": "
+						+ session.message);
+		} finally {
+			ch.close();
+		}
+	}
+
+	/**
+	 * The state of one call to {@link #sync}. The calling thread sends
+	 * requests; the reader thread runs {@link #run()}.
+	 */
+	private class Session implements Runnable, FrameSender {
+		final SocketChannel ch;
+
+		final File[] bases;
+
+		final File[] outs;
+
+		/** Bounds the open streams. */
+		final Semaphore open = new Semaphore(window);
+
+		/** The delta received so far on each open stream. */
+		final Map<Integer, ByteArrayOutputStream> deltas = new ConcurrentHashMap<>();
+
+		/** The first file that failed, or -1. */
+		volatile int failed = -1;
+
+		volatile String message;
+
+		/** A failure of the connection itself. */
+		volatile IOException failure;
+
+		Session(SocketChannel ch, File[] bases, File[] outs) {
+			this.ch = ch;
+			this.bases = bases;
+			this.outs = outs;
+		}
+
+		/**
+		 * Open a stream and send the signature of its basis.
+		 */
+		void request(int id, String name) throws IOException {
+			try {
+				open.acquire();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted syncing");
+			}
+			deltas.put(id, new ByteArrayOutputStream());
+			send(SyncProtocol.frame(SyncProtocol.OPEN, id, name));
+
+			OutputStream sig = new FrameOutputStream(this, SyncProtocol.SIG,
+					id);
+			InputStream in = new BufferedInputStream(new FileInputStream(
+					bases[id]));
+			try {
+				service.signature(in, sig);
+			} finally {
+				in.close();
+			}
+			sig.flush();
+			send(SyncProtocol.frame(SyncProtocol.SIG_END, id));
+		}
+
+		public void send(ByteBuffer frame) throws IOException {
+			while (frame.hasRemaining())
+				ch.write(frame);
+		}
+
+		/**
+		 * Read replies until every stream is closed.
+		 */
+		public void run() {
+			int done = 0;
+			try {
+				while (done < bases.length && failure == null) {
+					ByteBuffer frame = SyncProtocol.readFrame(ch);
+					if (frame == null)
+						throw new IOException("Connection closed by server");
+					byte type = frame.get();
+					int id = frame.getInt();
+					int len = frame.getInt();
+					ByteArrayOutputStream delta = deltas.get(id);
+					if (delta == null)
+						throw new IOException("Bad stream: " + id);
+
+					switch (type) {
+					case SyncProtocol.DELTA:
+						delta.write(frame.array(), frame.position(), len);
+						break;
+					case SyncProtocol.DELTA_END:
+						patch(id);
+						done++;
+						open.release();
+						break;
+					case SyncProtocol.ERROR:
+						deltas.remove(id);
+						fail(id, new String(frame.array(), frame.position(),
+								len, SyncProtocol.UTF8));
+						done++;
+						open.release();
+						break;
+					default:
+						throw new IOException("Bad frame type: " + type);
+					}
+				}
+			} catch (IOException ioe) {
+				failure = ioe;
+				// Let the requesting thread through.
+				open.release(bases.length);
+			}
+		}
+
+		void patch(int id) {
+			byte[] delta = deltas.remove(id).toByteArray();
+			try {
+				OutputStream out = new BufferedOutputStream(
+						new FileOutputStream(outs[id]));
+				try {
+					service.patch(bases[id], new ByteArrayInputStream(delta),
+							out);
+				} finally {
+					out.close();
+				}
+			} catch (IOException ioe) {
+				fail(id, ioe.getMessage());
+			}
+		}
+
+		synchronized void fail(int id, String message) {
+			if (failed < 0 || id < failed) {
+				failed = id;
+				this.message = message;
+			}
+		}
+	}
+}
@@ -0,0 +1,675 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.xuchaoguo.lab.filesync.QueueInputStream.Chunk;
+import com.xuchaoguo.lab.filesync.SyncProtocol.FrameOutputStream;
+import com.xuchaoguo.lab.filesync.SyncProtocol.FrameSender;
+
+/**
+ * <p>
+ * Serves the files under a directory over the framed protocol of
+ * {@link SyncProtocol}. One selector thread does all network I/O. Each
+ * stream is matched by a task on a fixed worker pool, which starts on the
+ * file as soon as the stream is opened and indexes signature records as the
+ * selector thread hands them over (see
+ * {@link Rdiff#makeDeltas(InputStream, InputStream, DeltaSink)}); the
+ * records are read by a task on a second pool of the same size. Delta
+ * opcodes are sent back in frames as they are produced.
+ * </p>
+ *
+ * <p>
+ * Each connection may hold a bounded number of bytes waiting to be sent;
+ * workers with more to send wait for the client to read, so a slow client
+ * only slows down its own streams. Likewise each stream queues a bounded
+ * number of signature frames; when one does not fit, the selector stops
+ * reading the connection until the stream's reader has taken some.
+ * </p>
+ *
+ * <p>
+ * A connection matches fewer streams at once than there are workers; its
+ * other streams wait their turn, so one client cannot take the whole pool.
+ * A worker that cannot queue its frames within the timeout fails its
+ * stream, and a connection that sends nothing for the timeout while the
+ * server waits on it is closed, stopping the workers reading its
+ * signatures.
+ * </p>
+ *
+ * @author xuchaoguo
+ */
+public class NioSyncServer implements Closeable {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	/** The most bytes a connection may have waiting to be sent. */
+	private static final int OUT_LIMIT = 1 << 20;
+
+	/** The most signature frames a stream may have waiting to be read. */
+	private static final int STREAM_CHUNKS = 16;
+
+	/** How long a connection may keep the server waiting, by default. */
+	public static final int TIMEOUT = SyncServer.TIMEOUT;
+
+	/** The directory of the files served. */
+	private final File root;
+
+	/** The checksum configuration; copied for every stream. */
+	private final Configuration config;
+
+	private final Selector selector;
+
+	private final ServerSocketChannel server;
+
+	/** Runs the matching of the streams. */
+	private final ExecutorService workers;
+
+	/**
+	 * Reads the signatures of the streams being matched; as large as
+	 * {@link #workers}, since every match waits for its reader.
+	 */
+	private final ExecutorService readers;
+
+	/** The search buffers of the workers. */
+	private final BufferPool buffers;
+
+	/** The most streams of one connection matched at once. */
+	private final int streamLimit;
+
+	private volatile int timeout = TIMEOUT;
+
+	/** Connections with frames queued since they were last registered. */
+	private final Queue<Connection> writable = new ConcurrentLinkedQueue<>();
+
+	/** Paused connections whose streams may have room again. */
+	private final Queue<Connection> resumable = new ConcurrentLinkedQueue<>();
+
+	/** The selector thread. */
+	private final Thread thread;
+
+	private volatile boolean closed;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create a server. The server does not accept connections until
+	 * {@link #start()}.
+	 *
+	 * @param config
+	 *            The checksum configuration.
+	 * @param root
+	 *            The directory of the files served.
+	 * @param address
+	 *            The address to listen on.
+	 * @param workerThreads
+	 *            The number of streams that may be matching at once.
+	 * @throws java.io.IOException
+	 *             If the address cannot be bound.
+	 */
+	public NioSyncServer(Configuration config, File root,
+			InetSocketAddress address, int workerThreads) throws IOException {
+		this.root = root.getCanonicalFile();
+		this.config = (Configuration) config.clone();
+		this.selector = Selector.open();
+		this.server = ServerSocketChannel.open();
+		server.bind(address);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		this.buffers = new BufferPool(2 * workerThreads, Math.max(
+				this.config.chunkSize, 2 * this.config.blockLength));
+		this.workers = Executors.newFixedThreadPool(workerThreads,
+				SyncServer.daemon("sync worker"));
+		this.streamLimit = Math.max(1, workerThreads - 1);
+		this.readers = Executors.newFixedThreadPool(workerThreads,
+				SyncServer.daemon("sync signature reader"));
+		this.thread = new Thread("sync selector") {
+			@Override
+			public void run() {
+				loop();
+			}
+		};
+		thread.setDaemon(true);
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Start accepting connections.
+	 */
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * @return The port the server listens on.
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * @return How long a connection may keep the server waiting, in
+	 *         milliseconds.
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Set how long a connection may keep the server waiting: how long a
+	 * worker waits for the client to read its frames, and how long the
+	 * server waits for a signature or a request before closing the
+	 * connection.
+	 *
+	 * @param millis
+	 *            The timeout, in milliseconds.
+	 */
+	public void setTimeout(int millis) {
+		if (millis <= 0)
+			throw new IllegalArgumentException("Bad timeout: " + millis);
+		timeout = millis;
+	}
+
+	/**
+	 * Stop the server, closing every connection.
+	 *
+	 * @throws java.io.IOException
+	 *             If closing the selector fails.
+	 */
+	public void close() throws IOException {
+		closed = true;
+		selector.wakeup();
+		try {
+			thread.join();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		workers.shutdownNow();
+		readers.shutdownNow();
+	}
+
+	private void loop() {
+		long sweep = System.currentTimeMillis();
+		try {
+			while (!closed) {
+				selector.select(Math.max(1, timeout / 4));
+				Connection c;
+				while ((c = resumable.poll()) != null)
+					c.resume();
+				while ((c = writable.poll()) != null) {
+					if (c.key.isValid())
+						c.interest(true);
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					c = (Connection) key.attachment();
+					try {
+						if (key.isReadable())
+							c.read();
+						if (key.isValid() && key.isWritable())
+							c.write();
+					} catch (IOException ioe) {
+						c.close();
+					}
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - sweep >= timeout / 4) {
+					sweep = now;
+					closeIdle(now);
+				}
+			}
+		} catch (IOException ioe) {
+			// The selector failed; there is nothing left to serve with.
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Connection)
+					((Connection) key.attachment()).close();
+			}
+			try {
+				server.close();
+				selector.close();
+			} catch (IOException ioe) {
+				// Ignore.
+			}
+		}
+	}
+
+	/**
+	 * Close the connections that have kept the server waiting too long.
+	 */
+	private void closeIdle(long now) {
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof Connection) {
+				Connection c = (Connection) key.attachment();
+				if (c.waiting() && now - c.lastRead > timeout)
+					c.close();
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel ch = server.accept();
+		if (ch == null)
+			return;
+		ch.configureBlocking(false);
+		ch.socket().setTcpNoDelay(true);
+		Connection c = new Connection(ch);
+		c.key = ch.register(selector, SelectionKey.OP_READ, c);
+	}
+
+	/**
+	 * Map a requested name to a file under the root, refusing names that
+	 * lead out of it.
+	 */
+	private File resolve(String name) throws IOException {
+		File f = new File(root, name).getCanonicalFile();
+		if (!f.getPath().startsWith(root.getPath() + File.separator)
+				|| !f.isFile())
+			throw new FileNotFoundException("No such file: " + name);
+		return f;
+	}
+
+	/**
+	 * One client connection. Reading, and writing out queued frames, happen
+	 * on the selector thread; frames are queued by the workers.
+	 */
+	private class Connection implements FrameSender {
+		final SocketChannel ch;
+
+		SelectionKey key;
+
+		/** The frame being read. */
+		ByteBuffer in = ByteBuffer.allocate(SyncProtocol.HEADER_LENGTH);
+
+		/** The frames waiting to be written. */
+		final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+
+		/** Bounds the bytes in {@link #out}. */
+		final Semaphore credit = new Semaphore(OUT_LIMIT);
+
+		/** The open streams, by number. */
+		final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+
+		/**
+		 * A signature chunk that did not fit its stream's queue, or
+		 * <code>null</code>; the connection is not read while there is one.
+		 */
+		Chunk pending;
+
+		/** The stream of {@link #pending}. */
+		int pendingId;
+
+		/** Whether there is a {@link #pending} chunk; read by the readers. */
+		volatile boolean paused;
+
+		/** When the connection was last read from. */
+		long lastRead = System.currentTimeMillis();
+
+		/** The streams being matched; guarded by the connection. */
+		int matching;
+
+		/** The streams waiting for a worker; guarded by the connection. */
+		final Queue<Stream> queued = new LinkedList<>();
+
+		Connection(SocketChannel ch) {
+			this.ch = ch;
+		}
+
+		/**
+		 * Read what is available, and handle every complete frame.
+		 */
+		void read() throws IOException {
+			while (true) {
+				int n = ch.read(in);
+				if (n == -1) {
+					close();
+					return;
+				}
+				if (n > 0)
+					lastRead = System.currentTimeMillis();
+				if (in.hasRemaining())
+					return;
+
+				if (in.capacity() == SyncProtocol.HEADER_LENGTH) {
+					int len = in.getInt(5);
+					if (len < 0 || len > SyncProtocol.MAX_PAYLOAD)
+						throw new IOException("Bad frame length: " + len);
+					if (len > 0) {
+						ByteBuffer frame = ByteBuffer
+								.allocate(SyncProtocol.HEADER_LENGTH + len);
+						in.flip();
+						frame.put(in);
+						in = frame;
+						continue;
+					}
+				}
+				in.flip();
+				handle(in);
+				in = ByteBuffer.allocate(SyncProtocol.HEADER_LENGTH);
+				if (pending != null)
+					return;
+			}
+		}
+
+		void handle(ByteBuffer frame) {
+			byte type = frame.get();
+			int id = frame.getInt();
+			int len = frame.getInt();
+			byte[] payload = new byte[len];
+			frame.get(payload);
+
+			Stream s = streams.get(id);
+			switch (type) {
+			case SyncProtocol.OPEN:
+				if (s == null)
+					open(id, new String(payload, SyncProtocol.UTF8));
+				break;
+			case SyncProtocol.SIG:
+				if (s != null && len > 0)
+					deliver(id, s, new Chunk(payload, len));
+				break;
+			case SyncProtocol.SIG_END:
+				if (s != null && !s.ended) {
+					s.ended = true;
+					deliver(id, s, Chunk.END);
+				}
+				break;
+			default:
+				// Not a frame a client sends; ignore it.
+			}
+		}
+
+		/**
+		 * Queue a chunk for a stream's reader, or, if its queue is full,
+		 * hold the chunk and stop reading the connection.
+		 */
+		void deliver(int id, Stream s, Chunk chunk) {
+			if (s.queue.offer(chunk))
+				return;
+			pending = chunk;
+			pendingId = id;
+			paused = true;
+			interest((key.interestOps() & SelectionKey.OP_WRITE) != 0);
+			// The reader may have taken a chunk before it could see the
+			// pause; try once more.
+			resume();
+		}
+
+		/**
+		 * Queue the held chunk if there is room now, and read the
+		 * connection again.
+		 */
+		void resume() {
+			if (pending == null || !key.isValid())
+				return;
+			Stream s = streams.get(pendingId);
+			if (s != null && !s.queue.offer(pending))
+				return;
+			pending = null;
+			paused = false;
+			interest((key.interestOps() & SelectionKey.OP_WRITE) != 0);
+		}
+
+		/**
+		 * Ask the selector thread to try the held chunk again.
+		 */
+		void wake() {
+			resumable.add(this);
+			selector.wakeup();
+		}
+
+		/**
+		 * Set the interest of the connection: reading unless paused, and
+		 * writing if asked.
+		 */
+		void interest(boolean write) {
+			key.interestOps((pending == null ? SelectionKey.OP_READ : 0)
+					| (write ? SelectionKey.OP_WRITE : 0));
+		}
+
+		/**
+		 * Whether the server is waiting for the client: the connection has
+		 * no streams, or a stream whose signature has not ended and that is
+		 * being matched or could be read.
+		 */
+		boolean waiting() {
+			for (Stream s : streams.values()) {
+				if (!s.ended && (pending == null || s.job != null))
+					return true;
+			}
+			return streams.isEmpty();
+		}
+
+		void open(final int id, final String name) {
+			final Stream s = new Stream(this);
+			streams.put(id, s);
+			s.task = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						match(id, s, resolve(name));
+						send(SyncProtocol.frame(SyncProtocol.DELTA_END, id));
+					} catch (IOException ioe) {
+						try {
+							send(SyncProtocol.frame(SyncProtocol.ERROR, id,
+									ioe.getMessage()));
+						} catch (IOException e) {
+							// The connection is gone.
+						}
+					} finally {
+						streams.remove(id);
+						// Stop a reader still waiting for the signature, and
+						// let a connection paused on this stream go on.
+						s.fail(new IOException("Stream closed"));
+						if (paused)
+							wake();
+						next();
+					}
+				}
+			};
+			start(s);
+		}
+
+		/**
+		 * Match a stream now if the connection has a worker to spare, or
+		 * queue it until one of its streams ends.
+		 */
+		synchronized void start(Stream s) {
+			if (matching < streamLimit) {
+				matching++;
+				s.job = workers.submit(s.task);
+			} else {
+				queued.add(s);
+			}
+		}
+
+		/**
+		 * Hand the worker of an ended stream to the next queued stream.
+		 */
+		synchronized void next() {
+			Stream s = queued.poll();
+			if (s == null)
+				matching--;
+			else
+				s.job = workers.submit(s.task);
+		}
+
+		/**
+		 * Match a file against the signature arriving on a stream, sending
+		 * the delta as it is produced.
+		 */
+		void match(int id, Stream s, File f) throws IOException {
+			final OutputStream delta = new FrameOutputStream(this,
+					SyncProtocol.DELTA, id);
+			InputStream data = new BufferedInputStream(new FileInputStream(f));
+			Rdiff rdiff = new Rdiff((Configuration) config.clone());
+			try {
+				rdiff.setBufferPool(buffers);
+				rdiff.setExecutor(readers);
+				Rdiff.writeDeltaHeader(config.newStrongSum().getDigestLength(),
+						delta);
+				byte[] sum = rdiff.makeDeltas(s.sig, data, new DeltaSink() {
+					@Override
+					public void add(Delta d) throws IOException {
+						Rdiff.writeOp(d, delta);
+						if (d instanceof DataBlock)
+							((DataBlock) d).release();
+					}
+				});
+				delta.write(Rdiff.OP_END);
+				delta.write(sum);
+				delta.flush();
+			} finally {
+				rdiff.close();
+				data.close();
+			}
+		}
+
+		/**
+		 * Queue a frame from a worker, waiting while too much is queued.
+		 *
+		 * @throws java.io.IOException
+		 *             If the client does not read enough within the timeout.
+		 */
+		public void send(ByteBuffer frame) throws IOException {
+			try {
+				if (!credit.tryAcquire(frame.remaining(), timeout,
+						TimeUnit.MILLISECONDS))
+					throw new InterruptedIOException("Client not reading");
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted sending");
+			}
+			if (!ch.isOpen())
+				throw new IOException("Connection closed");
+			out.add(frame);
+			writable.add(this);
+			selector.wakeup();
+		}
+
+		/**
+		 * Write out queued frames until the socket would block.
+		 */
+		void write() throws IOException {
+			ByteBuffer frame;
+			while ((frame = out.peek()) != null) {
+				int before = frame.remaining();
+				ch.write(frame);
+				credit.release(before - frame.remaining());
+				if (frame.hasRemaining())
+					return;
+				out.poll();
+			}
+			interest(false);
+			// A frame queued after the loop ended would wait for the next
+			// one; look again.
+			if (!out.isEmpty())
+				interest(true);
+		}
+
+		/**
+		 * Close the connection and stop its streams.
+		 */
+		void close() {
+			if (key != null)
+				key.cancel();
+			try {
+				ch.close();
+			} catch (IOException ioe) {
+				// Ignore.
+			}
+			synchronized (this) {
+				queued.clear();
+			}
+			for (Stream s : streams.values()) {
+				s.fail(new IOException("Connection closed"));
+				if (s.job != null)
+					s.job.cancel(true);
+			}
+			// Let workers waiting for credit find the connection closed.
+			credit.release(OUT_LIMIT);
+		}
+	}
+
+	/**
+	 * An open stream: the signature arriving for it, and the task matching
+	 * it.
+	 */
+	private static class Stream {
+		final LinkedBlockingQueue<Chunk> queue;
+
+		final InputStream sig;
+
+		volatile Future<?> job;
+
+		/** The task matching the stream. */
+		Runnable task;
+
+		/** Whether the signature has ended; read by the selector thread. */
+		boolean ended;
+
+		Stream(final Connection c) {
+			// Each chunk taken makes room; tell a paused connection.
+			queue = new LinkedBlockingQueue<Chunk>(STREAM_CHUNKS) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public Chunk take() throws InterruptedException {
+					Chunk chunk = super.take();
+					if (c.paused)
+						c.wake();
+					return chunk;
+				}
+			};
+			sig = new QueueInputStream(queue, null);
+		}
+
+		/**
+		 * End the signature with an error, dropping what is still queued.
+		 */
+		void fail(IOException ioe) {
+			Chunk chunk = new Chunk(ioe);
+			while (!queue.offer(chunk))
+				queue.poll();
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.List;
+
+/**
+ * <p>
+ * A read-only, random-access view of the file that patching a basis file with
+ * a list of {@link Delta}s would produce. Nothing is reconstructed up front:
+ * every read is resolved through an interval index over the deltas, and goes
+ * either to the basis file or to the literal data of a {@link DataBlock}.
+ * </p>
+ *
+ * <p>
+ * The relative read methods share a single position and should not be used by
+ * several threads at once; {@link #read(ByteBuffer, long)} may.
+ * </p>
+ *
+ * @author xuchaoguo
+ */
+public class PatchedFileChannel implements SeekableByteChannel {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	/** The basis file. */
+	private final RandomAccessFile basis;
+
+	/** The channel of the basis file. */
+	private final FileChannel basisChannel;
+
+	/** The deltas, indexed by output offset. */
+	private final DeltaIndex index;
+
+	/** The current position. */
+	private long position;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create a view of <code>basis</code> patched with <code>deltas</code>.
+	 *
+	 * @param basis
+	 *            The basis file.
+	 * @param deltas
+	 *            The deltas to apply, in the order {@link Rdiff#readDeltas}
+	 *            returns them.
+	 * @throws java.io.IOException
+	 *             If the basis file cannot be opened, or the deltas copy
+	 *             from more than one basis file.
+	 */
+	public PatchedFileChannel(File basis, List<Delta> deltas)
+			throws IOException {
+		for (Delta delta : deltas) {
+			if (delta instanceof BasisOffsets)
+				throw new IOException("Copy from a second basis: " + delta);
+		}
+		this.index = new DeltaIndex(Rdiff.resolveTargetCopies(deltas));
+		this.basis = new RandomAccessFile(basis, "r");
+		this.basisChannel = this.basis.getChannel();
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Return an InputStream reading this view from the current position.
+	 *
+	 * @return The InputStream.
+	 */
+	public InputStream newInputStream() {
+		return Channels.newInputStream(this);
+	}
+
+	/**
+	 * Read a sequence of bytes from this view starting at the given position.
+	 * The position of this channel is not changed.
+	 *
+	 * @param dst
+	 *            The buffer to read into.
+	 * @param pos
+	 *            The position to read at.
+	 * @return The number of bytes read, or -1 if <code>pos</code> is at or
+	 *         past the end.
+	 * @throws java.io.IOException
+	 *             If reading the basis file fails.
+	 */
+	public int read(ByteBuffer dst, long pos) throws IOException {
+		ensureOpen();
+		if (pos < 0)
+			throw new IllegalArgumentException("Negative position");
+		if (pos >= index.length())
+			return -1;
+
+		int total = 0;
+		int i = index.find(pos);
+		while (dst.hasRemaining() && i < index.size()) {
+			Delta delta = index.get(i);
+			long within = pos - index.start(i);
+			int n = (int) Math.min(dst.remaining(), delta.getBlockLength()
+					- within);
+
+			if (delta instanceof DataBlock) {
+				((DataBlock) delta).copyTo((int) within, dst, n);
+			} else if (delta instanceof RunBlock) {
+				byte value = ((RunBlock) delta).getValue();
+				for (int j = 0; j < n; j++)
+					dst.put(value);
+			} else {
+				long oldOffset = ((Offsets) delta).getOldOffset() + within;
+				int limit = dst.limit();
+				dst.limit(dst.position() + n);
+				try {
+					while (dst.hasRemaining()) {
+						int len = basisChannel.read(dst, oldOffset + n
+								- dst.remaining());
+						if (len == -1)
+							throw new EOFException("Copy past end of basis");
+					}
+				} finally {
+					dst.limit(limit);
+				}
+			}
+
+			total += n;
+			pos += n;
+			i++;
+		}
+		return total;
+	}
+
+	// SeekableByteChannel interface implementation.
+
+	public int read(ByteBuffer dst) throws IOException {
+		int n = read(dst, position);
+		if (n > 0)
+			position += n;
+		return n;
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	public long position() throws IOException {
+		ensureOpen();
+		return position;
+	}
+
+	public SeekableByteChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0)
+			throw new IllegalArgumentException("Negative position");
+		position = newPosition;
+		return this;
+	}
+
+	public long size() throws IOException {
+		ensureOpen();
+		return index.length();
+	}
+
+	public SeekableByteChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	public boolean isOpen() {
+		return basisChannel.isOpen();
+	}
+
+	public void close() throws IOException {
+		basis.close();
+	}
+
+	private void ensureOpen() throws IOException {
+		if (!basisChannel.isOpen())
+			throw new ClosedChannelException();
+	}
+}
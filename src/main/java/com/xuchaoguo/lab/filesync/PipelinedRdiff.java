@@ -0,0 +1,288 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.xuchaoguo.lab.filesync.QueueInputStream.Chunk;
+
+/**
+ * <p>
+ * Makes and writes a delta in three stages that run at the same time: an I/O
+ * stage reads the new data into pooled buffers and takes the whole-file
+ * checksum, a match stage runs the search of
+ * {@link Matcher#hashSearch(List, InputStream)} on the calling thread, and an
+ * encode stage writes each {@link Delta} out as it is found. The stages
+ * are joined by bounded queues, so a slow stage holds back the ones before it
+ * instead of letting data pile up, and the time taken comes close to that of
+ * the slowest stage rather than the sum of all three. Literal data goes from
+ * the pooled buffers of the match stage to the output without being copied
+ * in between.
+ * </p>
+ *
+ * <p>
+ * The output is the same delta stream as {@link Rdiff#makeDeltas} followed
+ * by {@link Rdiff#writeDeltas} would give. Each call to {@link #makeDeltas}
+ * runs two tasks on the executor, so it must be able to run two tasks at
+ * once. Calls may run at the same time, each on its own copy of the
+ * configuration.
+ * </p>
+ *
+ * @author xuchaoguo
+ */
+public class PipelinedRdiff {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	/** The default number of read buffers. */
+	public static final int BUFFERS = 8;
+
+	/** The default number of batches of deltas queued for encoding. */
+	public static final int QUEUE_LENGTH = 16;
+
+	/** The number of deltas handed from the match stage at a time. */
+	private static final int BATCH = 256;
+
+	/** The executor used when none is given. */
+	private static final ExecutorService SHARED = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "rdiff pipeline");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/** Marks the end of the deltas. */
+	private static final List<Delta> END = new LinkedList<>();
+
+	/** The checksum configuration. */
+	private final Configuration config;
+
+	/** The executor running the I/O and encode stages. */
+	private final ExecutorService pool;
+
+	/** The number of read buffers per call. */
+	private final int buffers;
+
+	/** The number of batches of deltas queued for encoding. */
+	private final int queueLength;
+
+	/** The whole-file checksum of the last delta made. */
+	private volatile byte[] fileSum;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create a pipeline running on a shared pool of daemon threads.
+	 *
+	 * @param config
+	 *            The checksum configuration.
+	 */
+	public PipelinedRdiff(Configuration config) {
+		this(config, SHARED, BUFFERS, QUEUE_LENGTH);
+	}
+
+	/**
+	 * Create a pipeline.
+	 *
+	 * @param config
+	 *            The checksum configuration.
+	 * @param pool
+	 *            The executor to run the I/O and encode stages on.
+	 * @param buffers
+	 *            The number of read buffers, of {@link Configuration#chunkSize}
+	 *            bytes each.
+	 * @param queueLength
+	 *            The number of batches of deltas that may wait for
+	 *            encoding.
+	 */
+	public PipelinedRdiff(Configuration config, ExecutorService pool,
+			int buffers, int queueLength) {
+		if (buffers < 1 || queueLength < 1)
+			throw new IllegalArgumentException("Bad queue length");
+		this.config = (Configuration) config.clone();
+		this.pool = pool;
+		this.buffers = buffers;
+		this.queueLength = queueLength;
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Search <code>in</code> for the blocks in <code>sums</code> and write
+	 * the delta to <code>out</code>, with the whole-file checksum trailer.
+	 *
+	 * @param sums
+	 *            The checksums of the "old" file.
+	 * @param in
+	 *            The InputStream for the "new" file.
+	 * @param out
+	 *            The OutputStream to write the delta to.
+	 * @throws java.io.IOException
+	 *             If any stage fails.
+	 */
+	public void makeDeltas(List<ChecksumPair> sums, final InputStream in,
+			final OutputStream out) throws IOException {
+		Configuration config = (Configuration) this.config.clone();
+		final BufferPool buffers = new BufferPool(this.buffers,
+				config.chunkSize);
+		final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(
+				this.buffers + 1);
+		final BlockingQueue<List<Delta>> deltas = new ArrayBlockingQueue<>(
+				queueLength);
+		final MessageDigest digest = config.newStrongSum();
+
+		Future<?> reader = pool.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws InterruptedException {
+				try {
+					while (true) {
+						byte[] buf = buffers.take();
+						int len = in.read(buf, 0, buf.length);
+						if (len == -1) {
+							buffers.give(buf);
+							break;
+						}
+						digest.update(buf, 0, len);
+						chunks.put(new Chunk(buf, len));
+					}
+					chunks.put(Chunk.END);
+				} catch (IOException ioe) {
+					chunks.put(new Chunk(ioe));
+				}
+				return null;
+			}
+		});
+
+		// The reader is done with the digest before the match stage sees the
+		// end of the data, and so before the encoder sees the end of the
+		// deltas.
+		Future<byte[]> encoder = pool.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException, InterruptedException {
+				OutputStream o = new BufferedOutputStream(out);
+				IOException failure = null;
+				try {
+					Rdiff.writeDeltaHeader(digest.getDigestLength(), o);
+				} catch (IOException ioe) {
+					failure = ioe;
+				}
+				while (true) {
+					List<Delta> batch = deltas.take();
+					if (batch == END)
+						break;
+					// After a failure, keep taking deltas so that the match
+					// stage is not left waiting on a full queue.
+					if (failure == null) {
+						try {
+							for (Delta delta : batch)
+								Rdiff.writeOp(delta, o);
+						} catch (IOException ioe) {
+							failure = ioe;
+						}
+					}
+					// Give the match buffers back.
+					for (Delta delta : batch) {
+						if (delta instanceof DataBlock)
+							((DataBlock) delta).release();
+					}
+				}
+				if (failure != null)
+					throw failure;
+				byte[] sum = digest.digest();
+				o.write(Rdiff.OP_END);
+				o.write(sum);
+				o.flush();
+				return sum;
+			}
+		});
+
+		boolean done = false;
+		QueueInputStream data = new QueueInputStream(chunks, buffers);
+		try {
+			final LinkedList<Delta> batch = new LinkedList<>();
+			Matcher matcher = new Matcher(config);
+			matcher.setBufferPool(new BufferPool(this.buffers, Math.max(
+					config.chunkSize, 2 * config.blockLength)));
+			matcher.hashSearch(sums, data, new DeltaSink() {
+				@Override
+				public void add(Delta delta) throws IOException {
+					if (batch.size() >= BATCH) {
+						put(deltas, new LinkedList<>(batch));
+						batch.clear();
+					}
+					batch.add(delta);
+				}
+			});
+			put(deltas, batch);
+
+			put(deltas, END);
+			get(reader);
+			fileSum = get(encoder);
+			done = true;
+		} finally {
+			data.close();
+			if (!done) {
+				reader.cancel(true);
+				encoder.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Return the whole-file checksum of the data of the last call to
+	 * {@link #makeDeltas}.
+	 *
+	 * @return The whole-file checksum, or <code>null</code> if there is none.
+	 */
+	public byte[] getFileSum() {
+		return fileSum != null ? (byte[]) fileSum.clone() : null;
+	}
+
+	private static void put(BlockingQueue<List<Delta>> deltas,
+			List<Delta> batch) throws IOException {
+		try {
+			deltas.put(batch);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted queueing a delta");
+		}
+	}
+
+	/**
+	 * Wait for a stage, rethrowing its failure.
+	 *
+	 * @return The result of the stage.
+	 */
+	private static <T> T get(Future<T> stage) throws IOException {
+		try {
+			return stage.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a stage");
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException(cause);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An InputStream over chunks of data handed over through a queue by another
+ * thread. If the chunks come from a {@link BufferPool}, each buffer is given
+ * back to it once it has been read.
+ * 
+ * @author xuchaoguo
+ */
+class QueueInputStream extends InputStream {
+
+	/** The chunks to read, ended by {@link Chunk#END} or a failed chunk. */
+	private final BlockingQueue<Chunk> queue;
+
+	/** The pool the buffers go back to, or <code>null</code>. */
+	private final BufferPool pool;
+
+	/** The chunk being read, or <code>null</code>. */
+	private Chunk chunk;
+
+	/** The position in the chunk being read. */
+	private int pos;
+
+	private boolean eof;
+
+	QueueInputStream(BlockingQueue<Chunk> queue, BufferPool pool) {
+		this.queue = queue;
+		this.pool = pool;
+	}
+
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+	}
+
+	public int read(byte[] buf, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (chunk == null && !next())
+			return -1;
+
+		int n = Math.min(len, chunk.length - pos);
+		System.arraycopy(chunk.buf, pos, buf, off, n);
+		pos += n;
+		if (pos == chunk.length)
+			release();
+		return n;
+	}
+
+	public void close() {
+		if (chunk != null)
+			release();
+	}
+
+	private void release() {
+		if (pool != null)
+			pool.give(chunk.buf);
+		chunk = null;
+	}
+
+	/**
+	 * Wait for the next chunk.
+	 * 
+	 * @return <code>false</code> at the end of the data.
+	 */
+	private boolean next() throws IOException {
+		if (eof)
+			return false;
+		Chunk c;
+		try {
+			c = queue.take();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for data");
+		}
+		if (c.failure != null)
+			throw new IOException(c.failure);
+		if (c == Chunk.END) {
+			eof = true;
+			return false;
+		}
+		chunk = c;
+		pos = 0;
+		return true;
+	}
+
+	/**
+	 * A buffer and the number of bytes of data in it.
+	 */
+	static class Chunk {
+		/** Marks the end of the data. */
+		static final Chunk END = new Chunk(null, 0, null);
+
+		final byte[] buf;
+
+		final int length;
+
+		/** Marks a failure of the producer. */
+		final IOException failure;
+
+		Chunk(byte[] buf, int length) {
+			this(buf, length, null);
+		}
+
+		Chunk(IOException failure) {
+			this(null, 0, failure);
+		}
+
+		private Chunk(byte[] buf, int length, IOException failure) {
+			this.buf = buf;
+			this.length = length;
+			this.failure = failure;
+		}
+	}
+}
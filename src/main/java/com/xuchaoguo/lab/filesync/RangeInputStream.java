@@ -0,0 +1,66 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * An InputStream over a range of a {@link java.io.RandomAccessFile}. The file
+ * is positioned before every read, so several ranges of one file can be read
+ * in turn, but not by several threads at once.
+ *
+ * @author xuchaoguo
+ */
+class RangeInputStream extends InputStream {
+
+	/** The file to read from. */
+	private final RandomAccessFile file;
+
+	/** The position of the next byte to read. */
+	private long pos;
+
+	/** The end of the range. */
+	private final long end;
+
+	/**
+	 * Create a stream over <code>length</code> bytes of <code>file</code>,
+	 * starting at <code>offset</code>.
+	 */
+	RangeInputStream(RandomAccessFile file, long offset, long length) {
+		this.file = file;
+		this.pos = offset;
+		this.end = offset + length;
+	}
+
+	public int read() throws IOException {
+		if (pos >= end)
+			return -1;
+		file.seek(pos);
+		int b = file.read();
+		if (b != -1)
+			pos++;
+		return b;
+	}
+
+	public int read(byte[] buf, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (pos >= end)
+			return -1;
+		file.seek(pos);
+		int n = file.read(buf, off, (int) Math.min(len, end - pos));
+		if (n > 0)
+			pos += n;
+		return n;
+	}
+
+	public long skip(long n) {
+		n = Math.max(0, Math.min(n, end - pos));
+		pos += n;
+		return n;
+	}
+
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, end - pos);
+	}
+}
@@ -1,25 +1,54 @@
 package com.xuchaoguo.lab.filesync;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
-public class Rdiff {
+public class Rdiff implements Closeable {
 	/** Rdiff/rproxy signature magic. */
 	public static final int SIG_MAGIC = 0x72730136;
 
 	/** Rdiff/rproxy delta magic. */
 	public static final int DELTA_MAGIC = 0x72730236;
 
+	/**
+	 * Magic of a delta followed by a whole-file checksum. The magic is
+	 * followed by the length of the checksum, one byte, and the checksum
+	 * follows {@link #OP_END}. Not part of the rdiff format.
+	 */
+	public static final int CHECKED_DELTA_MAGIC = 0x72730936;
+
+	/** Magic of a signature of several basis files. */
+	public static final int MULTI_SIG_MAGIC = 0x72730736;
+
+	/** Magic of a batch of small files sent whole. */
+	public static final int BATCH_MAGIC = 0x72730636;
+
 	public static final short CHAR_OFFSET = 31;
 
 	public static final byte OP_END = 0x00;
@@ -31,11 +60,46 @@ public class Rdiff {
 
 	public static final byte OP_COPY_N4_N4 = 0x4f;
 
+	/**
+	 * Copy from earlier in the new data itself; see {@link TargetOffsets}.
+	 * Not part of the rdiff format.
+	 */
+	public static final byte OP_COPY_TARGET_N8_N4 = 0x60;
+
+	/**
+	 * Copy from a basis file other than the first; see {@link BasisOffsets}.
+	 * Not part of the rdiff format.
+	 */
+	public static final byte OP_COPY_BASIS_N2_N8_N4 = 0x61;
+
+	/**
+	 * A run of one byte value; see {@link RunBlock}. Not part of the rdiff
+	 * format.
+	 */
+	public static final byte OP_RUN_N1_N4 = 0x62;
+
 	/**
 	 * The checksum configuration
 	 */
 	private Configuration config;
 
+	/**
+	 * Runs the signature readers of searches against signature streams, or
+	 * <code>null</code> for a new thread each.
+	 */
+	private Executor executor;
+
+	/**
+	 * Where literal data goes past {@link Configuration#memoryBudget}, made
+	 * when first needed.
+	 */
+	private SpillFile spill;
+
+	/**
+	 * The pool to read new data into buffers from, or <code>null</code>.
+	 */
+	private BufferPool bufferPool;
+
 	// Constructors.
 	// -----------------------------------------------------------------
 	public Rdiff(Configuration c) {
@@ -57,7 +121,42 @@ public class Rdiff {
 	}
 
 	/**
-	 * Write the signatures to the specified output stream.
+	 * Make the signatures of several basis files together, so that a new file
+	 * can be matched against all of them at once. Each pair records the
+	 * number of the file it is from (see {@link ChecksumPair#getBasis()}),
+	 * and copies from any file but the first come out as
+	 * {@link BasisOffsets}.
+	 * 
+	 * @param bases
+	 *            The basis files, the one most like the new file first.
+	 * @return A List of signatures, file by file.
+	 * @throws java.io.IOException
+	 *             If reading fails.
+	 */
+	public List<ChecksumPair> makeSignatures(File[] bases) throws IOException {
+		if (bases.length > 0xffff)
+			throw new IllegalArgumentException("Too many bases: "
+					+ bases.length);
+		List<ChecksumPair> sigs = new ArrayList<>();
+		Generator gen = new Generator(config);
+		for (int i = 0; i < bases.length; i++) {
+			for (ChecksumPair pair : gen.generateSums(bases[i])) {
+				pair.setBasis(i);
+				sigs.add(pair);
+			}
+		}
+		return sigs;
+	}
+
+	/**
+	 * Write the signatures to the specified output stream. Signatures of
+	 * several basis files are written in a format of their own, as runs of
+	 * records each headed by the basis number and the number of records;
+	 * each record also gives the offset and length of its block, so the
+	 * blocks need not follow one another (see
+	 * {@link BlockStore#getSignatures(int, int)}). Signatures of the first
+	 * basis alone are written in the rdiff format, which gives neither: they
+	 * must be of consecutive blocks from the start of the file.
 	 * 
 	 * @param sigs
 	 *            The signatures to write.
@@ -68,14 +167,40 @@ public class Rdiff {
 	 */
 	public void writeSignatures(List<ChecksumPair> sigs, OutputStream out)
 			throws IOException {
-		writeInt(SIG_MAGIC, out);
+		boolean multi = false;
+		for (ChecksumPair pair : sigs) {
+			if (pair.getBasis() != 0) {
+				multi = true;
+				break;
+			}
+		}
+		writeInt(multi ? MULTI_SIG_MAGIC : SIG_MAGIC, out);
 		writeInt(config.blockLength, out);
 		writeInt(config.strongSumLength, out);
 
-		for (Iterator<ChecksumPair> i = sigs.iterator(); i.hasNext();) {
-			ChecksumPair pair = i.next();
-			writeInt(pair.getWeak(), out);
-			out.write(pair.getStrong().getBytes(), 0, config.strongSumLength);
+		List<ChecksumPair> list = sigs instanceof ArrayList ? sigs
+				: new ArrayList<>(sigs);
+		for (int i = 0; i < list.size();) {
+			int j = i + 1;
+			if (multi) {
+				int basis = list.get(i).getBasis();
+				while (j < list.size() && list.get(j).getBasis() == basis)
+					j++;
+				writeInt(basis, 2, out);
+				writeInt(j - i, out);
+			} else {
+				j = list.size();
+			}
+			for (; i < j; i++) {
+				ChecksumPair pair = list.get(i);
+				writeInt(pair.getWeak(), out);
+				out.write(pair.getStrong().getBytes(), 0,
+						config.strongSumLength);
+				if (multi) {
+					writeInt(pair.getOffset(), 8, out);
+					writeInt(pair.getLength(), out);
+				}
+			}
 		}
 	}
 
@@ -90,30 +215,79 @@ public class Rdiff {
 	 */
 	public List<ChecksumPair> readSignatures(InputStream in) throws IOException {
 		List<ChecksumPair> sigs = new LinkedList<>();
+		if (readSignatureHeader(in, true)) {
+			int basis;
+			while ((basis = in.read()) != -1) {
+				basis = basis << 8 | (int) readInt(1, in);
+				int count = readInt(in);
+				for (int i = 0; i < count; i++) {
+					int weak = readInt(in);
+					byte[] strong = new byte[config.strongSumLength];
+					readFully(in, strong);
+					long offset = readInt(8, in);
+					int length = readInt(in);
+					if (offset < 0 || length <= 0)
+						throw new IOException("Bad signature block: "
+								+ offset + "+" + length);
+					ChecksumPair pair = new ChecksumPair(weak, strong,
+							offset, length, i);
+					pair.setBasis(basis);
+					sigs.add(pair);
+				}
+			}
+			return sigs;
+		}
+
+		ChecksumPair pair;
+		long off = 0;
+		int seq = 0;
+		while ((pair = readSignature(in, off, seq)) != null) {
+			sigs.add(pair);
+			off += config.blockLength;
+			seq++;
+		}
+		return sigs;
+	}
+
+	/**
+	 * Read the header of a signature stream into the configuration.
+	 */
+	private void readSignatureHeader(InputStream in) throws IOException {
+		readSignatureHeader(in, false);
+	}
+
+	/**
+	 * Read the header of a signature stream into the configuration.
+	 * 
+	 * @return Whether it is the signature of several basis files.
+	 */
+	private boolean readSignatureHeader(InputStream in, boolean multiOk)
+			throws IOException {
 		int header = readInt(in);
-		if (header != SIG_MAGIC) {
+		if (header != SIG_MAGIC && (!multiOk || header != MULTI_SIG_MAGIC)) {
 			throw new IOException("Bad signature header: 0x"
 					+ Integer.toHexString(header));
 		}
-		long off = 0;
 		config.blockLength = readInt(in);
 		config.strongSumLength = readInt(in);
+		return header == MULTI_SIG_MAGIC;
+	}
 
-		int weak;
+	/**
+	 * Read one signature record.
+	 * 
+	 * @return The pair read, or <code>null</code> at the end of the stream.
+	 */
+	private ChecksumPair readSignature(InputStream in, long off, int seq)
+			throws IOException {
 		byte[] strong = new byte[config.strongSumLength];
-		do {
-			try {
-				weak = readInt(in);
-				int len = in.read(strong);
-				if (len < config.strongSumLength)
-					break;
-				sigs.add(new ChecksumPair(weak, strong, off));
-				off += config.blockLength;
-			} catch (EOFException eof) {
-				break;
-			}
-		} while (true);
-		return sigs;
+		try {
+			int weak = readInt(in);
+			readFully(in, strong);
+			return new ChecksumPair(weak, strong, off, config.blockLength, seq);
+		} catch (EOFException eof) {
+			return null;
+		}
 	}
 
 	/**
@@ -125,17 +299,278 @@ public class Rdiff {
 	 * @param in
 	 *            The InputStream for the "new" file.
 	 * @return A collection of {@link Delta}s that will patch the old file to
-	 *         the new.
+	 *         the new, a {@link DeltaList} carrying the whole-file checksum of
+	 *         the new file.
 	 * @throws java.io.IOException
 	 *             If reading fails.
 	 */
 	public List<Delta> makeDeltas(List<ChecksumPair> sums, InputStream in)
 			throws IOException, NoSuchAlgorithmException {
-		return new Matcher(config).hashSearch(sums, in);
+		Matcher matcher = new Matcher(config);
+		matcher.setSpill(spill());
+		matcher.setBufferPool(bufferPool);
+		List<Delta> deltas = matcher.hashSearch(sums, in);
+		return new DeltaList(deltas, matcher.getFileSum());
+	}
+
+	/**
+	 * Make a collection of {@link Delta}s from the given sums and file. Unlike
+	 * {@link #makeDeltas(List, InputStream)}, this can skip the rolling search
+	 * over any common prefix and suffix of the old and new files.
+	 * 
+	 * @param sums
+	 *            A collection of {@link ChecksumPair}s generated from the "old"
+	 *            file.
+	 * @param f
+	 *            The "new" file.
+	 * @return A collection of {@link Delta}s that will patch the old file to
+	 *         the new, a {@link DeltaList} carrying the whole-file checksum of
+	 *         the new file.
+	 * @throws java.io.IOException
+	 *             If reading fails.
+	 */
+	public List<Delta> makeDeltas(List<ChecksumPair> sums, File f)
+			throws IOException {
+		Matcher matcher = new Matcher(config);
+		matcher.setSpill(spill());
+		matcher.setBufferPool(bufferPool);
+		List<Delta> deltas = matcher.hashSearch(sums, f);
+		return new DeltaList(deltas, matcher.getFileSum());
 	}
 
 	/**
-	 * Write deltas to an output stream.
+	 * Make a collection of {@link Delta}s from a signature stream and the new
+	 * data, without waiting for the whole signature to be read. A separate
+	 * thread reads the signature records into a {@link ConcurrentChecksumMap}
+	 * while the new data is searched against the records indexed so far; see
+	 * {@link Matcher#hashSearch(ConcurrentChecksumMap, InputStream)}.
+	 * 
+	 * @param sigs
+	 *            The InputStream of the signature of the "old" file.
+	 * @param in
+	 *            The InputStream for the "new" file.
+	 * @return A collection of {@link Delta}s that will patch the old file to
+	 *         the new, a {@link DeltaList} carrying the whole-file checksum of
+	 *         the new file.
+	 * @throws java.io.IOException
+	 *             If reading either stream fails.
+	 */
+	public List<Delta> makeDeltas(InputStream sigs, InputStream in)
+			throws IOException {
+		final DeltaList deltas = new DeltaList();
+		deltas.setFileSum(makeDeltas(sigs, in, new DeltaSink() {
+			@Override
+			public void add(Delta delta) {
+				deltas.add(delta);
+			}
+		}));
+		return deltas;
+	}
+
+	/**
+	 * Search the new data against a signature stream as
+	 * {@link #makeDeltas(InputStream, InputStream)} does, handing each
+	 * {@link Delta} to <code>sink</code> as it is settled; see
+	 * {@link Matcher#hashSearch(ConcurrentChecksumMap, InputStream, DeltaSink)}
+	 * .
+	 * 
+	 * @param sigs
+	 *            The InputStream of the signature of the "old" file.
+	 * @param in
+	 *            The InputStream for the "new" file.
+	 * @param sink
+	 *            The sink to hand the deltas to, in order.
+	 * @return The whole-file checksum of the new data.
+	 * @throws java.io.IOException
+	 *             If reading either stream fails, or the sink fails.
+	 */
+	public byte[] makeDeltas(final InputStream sigs, InputStream in,
+			DeltaSink sink) throws IOException {
+		readSignatureHeader(sigs);
+
+		final ConcurrentChecksumMap map = new ConcurrentChecksumMap();
+		Runnable reader = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ChecksumPair pair;
+					long off = 0;
+					int seq = 0;
+					while ((pair = readSignature(sigs, off, seq)) != null) {
+						map.add(pair);
+						off += config.blockLength;
+						seq++;
+					}
+					map.finish();
+				} catch (IOException ioe) {
+					map.fail(ioe);
+				} catch (RuntimeException re) {
+					map.fail(new IOException(re));
+				}
+			}
+		};
+		if (executor != null) {
+			executor.execute(reader);
+		} else {
+			Thread t = new Thread(reader, "signature reader");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		Matcher matcher = new Matcher(config);
+		matcher.setSpill(spill());
+		matcher.setBufferPool(bufferPool);
+		matcher.hashSearch(map, in, sink);
+		return matcher.getFileSum();
+	}
+
+	/**
+	 * Read the signature streams of
+	 * {@link #makeDeltas(InputStream, InputStream, DeltaSink)} with tasks on
+	 * <code>executor</code> rather than a new thread for each. Each search
+	 * waits for its reader, so the executor must be able to run the reader
+	 * of every search running at once, or the searches can deadlock.
+	 * 
+	 * @param executor
+	 *            The executor, or <code>null</code> to start a thread for
+	 *            each search.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Read the new data searched by <code>makeDeltas</code> into buffers
+	 * taken from <code>pool</code>, and make the literal data of the deltas
+	 * parts of those buffers rather than copies, so that it is copied once on
+	 * its way from the input to the output. A buffer goes back to the pool
+	 * once every {@link DataBlock} referring to it is released with
+	 * {@link DataBlock#release()}, which callers that write deltas as they
+	 * are made should do; blocks never released leave their buffers to the
+	 * garbage collector, and the pool makes new ones. The pool is not used
+	 * while {@link Configuration#memoryBudget} is set, nor if its buffers are
+	 * shorter than {@link Configuration#chunkSize} or two blocks.
+	 * 
+	 * @param pool
+	 *            The pool, or <code>null</code> to copy literal data.
+	 */
+	public void setBufferPool(BufferPool pool) {
+		this.bufferPool = pool;
+	}
+
+	/**
+	 * Delete the temporary file of the literal data spilled past
+	 * {@link Configuration#memoryBudget}. Deltas made or read before then
+	 * cannot be written or applied afterwards if any of their data was
+	 * spilled; this Rdiff can still be used, and spills anew.
+	 * 
+	 * @throws java.io.IOException
+	 *             If closing the file fails.
+	 */
+	public synchronized void close() throws IOException {
+		if (spill != null) {
+			spill.close();
+			spill = null;
+		}
+	}
+
+	/**
+	 * Return the spill for literal data, or <code>null</code> if there is no
+	 * memory budget.
+	 */
+	private synchronized SpillFile spill() {
+		if (spill == null && config.memoryBudget > 0)
+			spill = new SpillFile(config.memoryBudget);
+		return spill;
+	}
+
+	/**
+	 * Whether a new file is better sent whole than by a signature exchange:
+	 * either it is shorter than {@link Configuration#smallFileLength}, or the
+	 * signature of the basis would be at least as long as the file itself.
+	 * 
+	 * @param basisLength
+	 *            The length of the old file, or 0 if there is none.
+	 * @param newLength
+	 *            The length of the new file.
+	 * @return Whether to send the new file as one literal; see
+	 *         {@link #makeLiteralDeltas(InputStream)}.
+	 */
+	public boolean isSmallFile(long basisLength, long newLength) {
+		if (newLength < config.smallFileLength)
+			return true;
+		long blocks = (basisLength + config.blockLength - 1)
+				/ config.blockLength;
+		long sigLength = 12 + blocks * (4 + config.strongSumLength);
+		return blocks == 0 || sigLength >= newLength;
+	}
+
+	/**
+	 * Make a delta that carries all of the new data as literals, with no
+	 * signature and no search; see
+	 * {@link #makeLiteralDeltas(InputStream, DeltaSink)}.
+	 * 
+	 * @param in
+	 *            The InputStream for the "new" file.
+	 * @return A {@link DeltaList} of {@link DataBlock}s, carrying the
+	 *         whole-file checksum.
+	 * @throws java.io.IOException
+	 *             If reading fails.
+	 */
+	public List<Delta> makeLiteralDeltas(InputStream in) throws IOException {
+		final DeltaList deltas = new DeltaList();
+		deltas.setFileSum(makeLiteralDeltas(in, new DeltaSink() {
+			@Override
+			public void add(Delta delta) {
+				deltas.add(delta);
+			}
+		}));
+		return deltas;
+	}
+
+	/**
+	 * Hand all of the new data to a sink as literals, with no signature and
+	 * no search. Data shorter than {@link Configuration#smallFileLength} is
+	 * one literal; longer data is read and handed over
+	 * {@link Configuration#chunkSize} bytes at a time, so that it need not
+	 * fit in memory. Literals are spilled past
+	 * {@link Configuration#memoryBudget}.
+	 * 
+	 * @param in
+	 *            The InputStream for the "new" file.
+	 * @param sink
+	 *            The sink to hand the {@link DataBlock}s to, in order.
+	 * @return The whole-file checksum of the new data.
+	 * @throws java.io.IOException
+	 *             If reading fails, or the sink fails.
+	 */
+	public byte[] makeLiteralDeltas(InputStream in, DeltaSink sink)
+			throws IOException {
+		MessageDigest digest = config.newStrongSum();
+		SpillFile spill = spill();
+		byte[] buf = new byte[Math.max(config.chunkSize,
+				config.smallFileLength)];
+		int len = read(in, buf, buf.length);
+		int chunk = len < config.smallFileLength ? len : config.chunkSize;
+		long offset = 0;
+		while (len > 0) {
+			digest.update(buf, 0, len);
+			for (int off = 0; off < len; off += chunk) {
+				int n = Math.min(chunk, len - off);
+				sink.add(spill != null ? spill.dataBlock(offset, buf, off, n)
+						: new DataBlock(offset, buf, off, n));
+				offset += n;
+			}
+			len = read(in, buf, chunk);
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Write deltas to an output stream. If they carry a whole-file checksum
+	 * (see {@link DeltaList}), the delta starts with
+	 * {@link #CHECKED_DELTA_MAGIC} and the checksum follows {@link #OP_END};
+	 * otherwise it is an rdiff delta.
 	 * 
 	 * @param deltas
 	 *            A collection of {@link Delta}s to write.
@@ -146,58 +581,208 @@ public class Rdiff {
 	 */
 	public void writeDeltas(List<Delta> deltas, OutputStream out)
 			throws IOException {
-		writeInt(DELTA_MAGIC, out);
+		byte[] sum = DeltaList.getFileSum(deltas);
+		writeDeltaHeader(sum != null ? sum.length : 0, out);
 		for (Iterator<Delta> i = deltas.iterator(); i.hasNext();) {
-			Delta o = i.next();
-			if (o instanceof Offsets) {
-				writeCopy((Offsets) o, out);
-			} else if (o instanceof DataBlock) {
-				writeLiteral((DataBlock) o, out);
-			}
+			writeOp(i.next(), out);
 		}
 		out.write(OP_END);
+		if (sum != null)
+			out.write(sum);
 	}
 
 	/**
-	 * Read a collection of {@link Delta}s from the InputStream.
+	 * Write the header of a delta.
+	 * 
+	 * @param sumLength
+	 *            The length of the whole-file checksum that will follow
+	 *            {@link #OP_END}, or 0 for none.
+	 * @param out
+	 *            The OutputStream to write to.
+	 * @throws java.io.IOException
+	 *             If writing fails.
+	 */
+	static void writeDeltaHeader(int sumLength, OutputStream out)
+			throws IOException {
+		if (sumLength == 0) {
+			writeInt(DELTA_MAGIC, out);
+		} else {
+			writeInt(CHECKED_DELTA_MAGIC, out);
+			out.write(sumLength);
+		}
+	}
+
+	/**
+	 * Read a collection of {@link Delta}s from the InputStream, and the
+	 * whole-file checksum if the header says one follows. Nothing past the
+	 * end of the delta is read.
 	 * 
 	 * @param in
 	 *            The InputStream to read from.
-	 * @return A collection of {@link Delta}s read.
+	 * @return A {@link DeltaList} of the {@link Delta}s read, carrying the
+	 *         whole-file checksum if there is one.
 	 * @throws java.io.IOException
 	 *             If the input stream is malformed.
 	 */
 	public List<Delta> readDeltas(InputStream in) throws IOException {
-		List<Delta> deltas = new LinkedList<>();
+		DeltaList deltas = new DeltaList();
 		int header = readInt(in);
-		if (header != DELTA_MAGIC) {
+		int len = 0;
+		if (header == CHECKED_DELTA_MAGIC) {
+			if ((len = in.read()) <= 0)
+				throw new IOException("Bad whole-file checksum length");
+		} else if (header != DELTA_MAGIC) {
 			throw new IOException("Bad delta header: 0x"
 					+ Integer.toHexString(header));
 		}
+		readOps(in, 0, deltas, spill());
+
+		if (len > 0) {
+			byte[] sum = new byte[len];
+			readFully(in, sum);
+			deltas.setFileSum(sum);
+		}
+		return deltas;
+	}
+
+	/**
+	 * Write many small files whole into one stream, each as a name followed
+	 * by a literal-only delta with its whole-file checksum trailer (see
+	 * {@link #makeLiteralDeltas(InputStream)}). An empty name ends the batch.
+	 * 
+	 * @param names
+	 *            The names to send the files under; none may be empty.
+	 * @param files
+	 *            The files to send.
+	 * @param out
+	 *            The OutputStream to write to.
+	 * @throws java.io.IOException
+	 *             If reading or writing fails.
+	 */
+	public void writeBatch(String[] names, File[] files,
+			final OutputStream out) throws IOException {
+		if (names.length != files.length)
+			throw new IllegalArgumentException("Lengths differ");
+		DataOutputStream data = new DataOutputStream(out);
+		writeInt(BATCH_MAGIC, out);
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].length() == 0)
+				throw new IllegalArgumentException("Empty name");
+			data.writeUTF(names[i]);
+
+			byte[] sum;
+			InputStream in = new FileInputStream(files[i]);
+			try {
+				sum = makeLiteralDeltas(in, new DeltaSink() {
+					@Override
+					public void add(Delta delta) throws IOException {
+						writeOp(delta, out);
+						((DataBlock) delta).release();
+					}
+				});
+			} finally {
+				in.close();
+			}
+			out.write(OP_END);
+			out.write(sum.length);
+			out.write(sum);
+		}
+		data.writeUTF("");
+	}
+
+	/**
+	 * Read a batch written by {@link #writeBatch}, verifying the whole-file
+	 * checksum of each file.
+	 * 
+	 * @param in
+	 *            The InputStream to read from.
+	 * @return The contents of the files, by name, in the order written.
+	 * @throws java.io.IOException
+	 *             If the input stream is malformed.
+	 * @throws ChecksumMismatchException
+	 *             If a file does not have its whole-file checksum.
+	 */
+	public Map<String, byte[]> readBatch(InputStream in) throws IOException {
+		int header = readInt(in);
+		if (header != BATCH_MAGIC) {
+			throw new IOException("Bad batch header: 0x"
+					+ Integer.toHexString(header));
+		}
+		DataInputStream data = new DataInputStream(in);
+		Map<String, byte[]> files = new LinkedHashMap<>();
+		String name;
+		while ((name = data.readUTF()).length() > 0) {
+			List<Delta> deltas = new LinkedList<>();
+			byte[] buf = new byte[(int) readOps(in, 0, deltas)];
+			for (Delta delta : deltas) {
+				if (!(delta instanceof DataBlock))
+					throw new IOException("Copy in a batch: " + name);
+				byte[] block = ((DataBlock) delta).getData();
+				System.arraycopy(block, 0, buf, (int) delta.getWriteOffset(),
+						block.length);
+			}
+
+			int len = in.read();
+			if (len == -1)
+				throw new EOFException();
+			byte[] sum = new byte[len];
+			readFully(in, sum);
+			MessageDigest digest = config.newStrongSum();
+			if (!MessageDigest.isEqual(sum, digest.digest(buf)))
+				throw new ChecksumMismatchException(
+						"Whole-file checksum mismatch in batch: " + name);
+			files.put(name, buf);
+		}
+		return files;
+	}
+
+	/**
+	 * Read delta commands from the InputStream up to and including the
+	 * terminating {@link #OP_END}.
+	 * 
+	 * @param in
+	 *            The InputStream to read from.
+	 * @param offset
+	 *            The write offset of the first command read.
+	 * @param deltas
+	 *            The list to add the {@link Delta}s read to.
+	 * @return The write offset just past the last command read.
+	 * @throws java.io.IOException
+	 *             If the input stream is malformed.
+	 */
+	static long readOps(InputStream in, long offset, List<Delta> deltas)
+			throws IOException {
+		return readOps(in, offset, deltas, null);
+	}
+
+	/**
+	 * Read delta commands as {@link #readOps(InputStream, long, List)} does,
+	 * making the data blocks with <code>spill</code>.
+	 * 
+	 * @param spill
+	 *            The spill, or <code>null</code> to keep data on the heap.
+	 */
+	static long readOps(InputStream in, long offset, List<Delta> deltas,
+			SpillFile spill) throws IOException {
 		int command;
-		long offset = 0;
-		byte[] buf;
 		while ((command = in.read()) != -1) {
 			switch (command) {
 			case OP_END:
-				return deltas;
+				return offset;
 			case OP_LITERAL_N1:
-				buf = new byte[(int) readInt(1, in)];
-				in.read(buf);
-				deltas.add(new DataBlock(offset, buf));
-				offset += buf.length;
-				break;
 			case OP_LITERAL_N2:
-				buf = new byte[(int) readInt(2, in)];
-				in.read(buf);
-				deltas.add(new DataBlock(offset, buf));
-				offset += buf.length;
-				break;
 			case OP_LITERAL_N4:
-				buf = new byte[(int) readInt(4, in)];
-				in.read(buf);
-				deltas.add(new DataBlock(offset, buf));
-				offset += buf.length;
+				int length = (int) readInt(1 << command - OP_LITERAL_N1, in);
+				if (length < 0)
+					throw new IOException("Bad literal length: " + length);
+				if (spill != null) {
+					deltas.add(spill.dataBlock(offset, in, length));
+				} else {
+					byte[] buf = new byte[length];
+					readFully(in, buf);
+					deltas.add(new DataBlock(offset, buf, false));
+				}
+				offset += length;
 				break;
 			case OP_COPY_N4_N4:
 				int oldOff = (int) readInt(4, in);
@@ -205,6 +790,29 @@ public class Rdiff {
 				deltas.add(new Offsets(oldOff, offset, bs));
 				offset += bs;
 				break;
+			case OP_COPY_TARGET_N8_N4:
+				long src = readInt(8, in);
+				int n = (int) readInt(4, in);
+				if (src < 0 || n < 0 || src + n > offset)
+					throw new IOException("Target copy past its own output");
+				deltas.add(new TargetOffsets(src, offset, n));
+				offset += n;
+				break;
+			case OP_COPY_BASIS_N2_N8_N4:
+				int basis = (int) readInt(2, in);
+				long old = readInt(8, in);
+				int m = (int) readInt(4, in);
+				deltas.add(new BasisOffsets(basis, old, offset, m));
+				offset += m;
+				break;
+			case OP_RUN_N1_N4:
+				byte value = (byte) readInt(1, in);
+				int r = (int) readInt(4, in);
+				if (r < 0)
+					throw new IOException("Bad run length: " + r);
+				deltas.add(new RunBlock(offset, value, r));
+				offset += r;
+				break;
 			default:
 				throw new IOException("Bad delta command: 0x"
 						+ Integer.toHexString(command));
@@ -213,9 +821,223 @@ public class Rdiff {
 		throw new IOException("Didn't recieve RS_OP_END.");
 	}
 
+	/**
+	 * Write a single {@link Delta} as a delta command.
+	 * 
+	 * @param delta
+	 *            The {@link Delta} to write.
+	 * @param out
+	 *            The OutputStream to write to.
+	 * @throws java.io.IOException
+	 *             If writing fails.
+	 */
+	static void writeOp(Delta delta, OutputStream out) throws IOException {
+		if (delta instanceof Offsets) {
+			writeCopy((Offsets) delta, out);
+		} else if (delta instanceof BasisOffsets) {
+			BasisOffsets copy = (BasisOffsets) delta;
+			out.write(OP_COPY_BASIS_N2_N8_N4);
+			writeInt(copy.getBasis(), 2, out);
+			writeInt(copy.getOldOffset(), 8, out);
+			writeInt(copy.getBlockLength(), out);
+		} else if (delta instanceof TargetOffsets) {
+			out.write(OP_COPY_TARGET_N8_N4);
+			writeInt(((TargetOffsets) delta).getSourceOffset(), 8, out);
+			writeInt(delta.getBlockLength(), out);
+		} else if (delta instanceof DataBlock) {
+			writeLiteral((DataBlock) delta, out);
+		} else if (delta instanceof RunBlock) {
+			out.write(OP_RUN_N1_N4);
+			out.write(((RunBlock) delta).getValue());
+			writeInt(delta.getBlockLength(), out);
+		}
+	}
+
+	/**
+	 * Compose two consecutive deltas into one. Given <code>first</code>, which
+	 * patches A into B, and <code>second</code>, which patches B into C, the
+	 * result patches A directly into C. Copies in <code>second</code> are
+	 * resolved through an interval index over <code>first</code>, so B itself
+	 * is never reconstructed.
+	 * 
+	 * @param first
+	 *            The {@link Delta}s from A to B, in stream order.
+	 * @param second
+	 *            The {@link Delta}s from B to C, in stream order.
+	 * @return The {@link Delta}s from A to C, a {@link DeltaList} carrying
+	 *         the whole-file checksum of <code>second</code>, if any.
+	 * @throws java.io.IOException
+	 *             If <code>second</code> copies data past the end of B, or
+	 *             from a file other than B.
+	 */
+	public List<Delta> composeDeltas(List<Delta> first, List<Delta> second)
+			throws IOException {
+		DeltaIndex index = new DeltaIndex(resolveTargetCopies(first));
+		DeltaList deltas = new DeltaList();
+		deltas.setFileSum(DeltaList.getFileSum(second));
+		long offset = 0;
+
+		for (Delta delta : resolveTargetCopies(second)) {
+			if (delta instanceof DataBlock) {
+				if (delta.getWriteOffset() != offset)
+					delta = ((DataBlock) delta).slice(offset, 0,
+							delta.getBlockLength());
+				deltas.add(delta);
+				offset += delta.getBlockLength();
+				continue;
+			}
+			if (delta instanceof RunBlock) {
+				deltas.add(new RunBlock(offset, ((RunBlock) delta).getValue(),
+						delta.getBlockLength()));
+				offset += delta.getBlockLength();
+				continue;
+			}
+			if (delta instanceof BasisOffsets)
+				throw new IOException("Copy from another basis: " + delta);
+
+			long pos = ((Offsets) delta).getOldOffset();
+			long end = pos + delta.getBlockLength();
+			if (pos < 0 || end > index.length()) {
+				throw new IOException("Copy past end of intermediate data: "
+						+ delta);
+			}
+			offset = copyOut(index, pos, end, offset, deltas, true);
+		}
+		return deltas;
+	}
+
+	/**
+	 * Replace every {@link TargetOffsets} in a list of deltas by the copies
+	 * from the basis and the literal data that produced the part of the new
+	 * data it repeats, so that the deltas can be applied without reading back
+	 * their own output.
+	 * 
+	 * @param deltas
+	 *            The {@link Delta}s, in stream order.
+	 * @return The {@link Delta}s without target copies; <code>deltas</code>
+	 *         itself if it has none.
+	 * @throws java.io.IOException
+	 *             If a target copy reads past the output before it.
+	 */
+	public static List<Delta> resolveTargetCopies(List<Delta> deltas)
+			throws IOException {
+		boolean any = false;
+		for (Delta delta : deltas) {
+			if (delta instanceof TargetOffsets) {
+				any = true;
+				break;
+			}
+		}
+		if (!any)
+			return deltas;
+
+		DeltaIndex index = new DeltaIndex();
+		LinkedList<Delta> resolved = new LinkedList<>();
+		long offset = 0;
+		for (Delta delta : deltas) {
+			if (!(delta instanceof TargetOffsets)) {
+				resolved.add(delta);
+				index.add(delta);
+				offset += delta.getBlockLength();
+				continue;
+			}
+
+			long pos = ((TargetOffsets) delta).getSourceOffset();
+			long end = pos + delta.getBlockLength();
+			if (pos < 0 || end > offset)
+				throw new IOException("Target copy past its own output: "
+						+ delta);
+			int first = resolved.size();
+			offset = copyOut(index, pos, end, offset, resolved, false);
+			for (Delta d : resolved.subList(first, resolved.size()))
+				index.add(d);
+		}
+		return resolved;
+	}
+
+	/**
+	 * Append the deltas that produce bytes <code>pos</code> to
+	 * <code>end</code> of the output of <code>index</code>, written at
+	 * <code>offset</code>.
+	 * 
+	 * @param merge
+	 *            Whether copies may be merged into the last delta of
+	 *            <code>deltas</code>.
+	 * @return The write offset just past the deltas appended.
+	 * @throws java.io.IOException
+	 *             If spilling a slice of literal data fails.
+	 */
+	private static long copyOut(DeltaIndex index, long pos, long end,
+			long offset, LinkedList<Delta> deltas, boolean merge)
+			throws IOException {
+		for (int i = pos < end ? index.find(pos) : 0; pos < end; i++) {
+			Delta src = index.get(i);
+			int within = (int) (pos - index.start(i));
+			int n = (int) Math.min(end - pos, src.getBlockLength() - within);
+			if (src instanceof DataBlock) {
+				deltas.add(((DataBlock) src).slice(offset, within, n));
+			} else if (src instanceof RunBlock) {
+				deltas.add(new RunBlock(offset, ((RunBlock) src).getValue(), n));
+			} else if (src instanceof BasisOffsets) {
+				BasisOffsets copy = (BasisOffsets) src;
+				deltas.add(new BasisOffsets(copy.getBasis(), copy
+						.getOldOffset() + within, offset, n));
+			} else if (merge) {
+				addCopy(deltas, ((Offsets) src).getOldOffset() + within,
+						offset, n);
+			} else {
+				deltas.add(new Offsets(((Offsets) src).getOldOffset() + within,
+						offset, n));
+			}
+			offset += n;
+			pos += n;
+		}
+		return offset;
+	}
+
+	/**
+	 * Compose two consecutive deltas read from input streams, and write the
+	 * composed delta to an output stream.
+	 * 
+	 * @param first
+	 *            The InputStream of the delta from A to B.
+	 * @param second
+	 *            The InputStream of the delta from B to C.
+	 * @param out
+	 *            The OutputStream to write the delta from A to C to.
+	 * @throws java.io.IOException
+	 *             If either stream is malformed, or if writing fails.
+	 * @see #composeDeltas(List, List)
+	 */
+	public void composeDeltas(InputStream first, InputStream second,
+			OutputStream out) throws IOException {
+		List<Delta> deltas = composeDeltas(readDeltas(first),
+				readDeltas(second));
+		writeDeltas(deltas, out);
+	}
+
+	/**
+	 * Append a copy to a list of deltas, merging it into the last delta if
+	 * that one is a copy ending just where this one begins.
+	 */
+	static void addCopy(LinkedList<Delta> deltas, long oldOffset,
+			long newOffset, int len) {
+		if (!deltas.isEmpty() && deltas.getLast() instanceof Offsets) {
+			Offsets last = (Offsets) deltas.getLast();
+			if (last.getOldOffset() + last.getBlockLength() == oldOffset
+					&& (long) last.getBlockLength() + len <= Integer.MAX_VALUE) {
+				last.setBlockLength(last.getBlockLength() + len);
+				return;
+			}
+		}
+		deltas.add(new Offsets(oldOffset, newOffset, len));
+	}
+
 	/**
 	 * Patch the file <code>basis</code> using <code>deltas</code>, writing the
-	 * patched file to <code>out</code>.
+	 * patched file to <code>out</code>. If the deltas carry a whole-file
+	 * checksum (see {@link DeltaList}), the output is checksummed as it is
+	 * written and verified at the end.
 	 * 
 	 * @param basis
 	 *            The basis file.
@@ -225,35 +1047,187 @@ public class Rdiff {
 	 *            The OutputStream to write the patched file to.
 	 * @throws java.io.IOException
 	 *             If reading/writing fails.
+	 * @throws ChecksumMismatchException
+	 *             If the patched file does not have the whole-file checksum.
 	 */
 	public void rebuildFile(File basis, List<Delta> deltas, OutputStream out)
 			throws IOException {
+		rebuildFile(new File[] { basis }, deltas, out);
+	}
+
+	/**
+	 * Patch several basis files together using <code>deltas</code>, made
+	 * against their signatures from {@link #makeSignatures(File[])}, writing
+	 * the patched file to <code>out</code>. Each basis file is opened when a
+	 * copy from it is first met.
+	 * 
+	 * @param bases
+	 *            The basis files, in the order their signatures were made.
+	 * @param deltas
+	 *            The collection of {@link Delta}s to apply.
+	 * @param out
+	 *            The OutputStream to write the patched file to.
+	 * @throws java.io.IOException
+	 *             If reading/writing fails, or a copy names a basis file
+	 *             that was not given.
+	 * @throws ChecksumMismatchException
+	 *             If the patched file does not have the whole-file checksum.
+	 */
+	public void rebuildFile(File[] bases, List<Delta> deltas, OutputStream out)
+			throws IOException {
+		rebuild(bases, deltas, out, null);
+	}
+
+	/**
+	 * Patch the file <code>basis</code> using <code>deltas</code> into the
+	 * file <code>newFile</code>, as
+	 * {@link #rebuildFile(File[], List, File)} does.
+	 * 
+	 * @param basis
+	 *            The basis file.
+	 * @param deltas
+	 *            The collection of {@link Delta}s to apply.
+	 * @param newFile
+	 *            The file to write the patched file to.
+	 * @throws java.io.IOException
+	 *             If reading/writing fails.
+	 * @throws ChecksumMismatchException
+	 *             If the patched file does not have the whole-file checksum.
+	 */
+	public void rebuildFile(File basis, List<Delta> deltas, File newFile)
+			throws IOException {
+		rebuildFile(new File[] { basis }, deltas, newFile);
+	}
+
+	/**
+	 * Patch several basis files together using <code>deltas</code> into the
+	 * file <code>newFile</code>, which is replaced. Runs of zeros of at least
+	 * a block (see {@link RunBlock}) are skipped over rather than written, so
+	 * that on file systems that support it they take no disk space.
+	 * 
+	 * @param bases
+	 *            The basis files, in the order their signatures were made.
+	 * @param deltas
+	 *            The collection of {@link Delta}s to apply.
+	 * @param newFile
+	 *            The file to write the patched file to.
+	 * @throws java.io.IOException
+	 *             If reading/writing fails, or a copy names a basis file
+	 *             that was not given.
+	 * @throws ChecksumMismatchException
+	 *             If the patched file does not have the whole-file checksum.
+	 */
+	public void rebuildFile(File[] bases, List<Delta> deltas, File newFile)
+			throws IOException {
+		FileOutputStream fos = new FileOutputStream(newFile);
+		try {
+			OutputStream out = new BufferedOutputStream(fos);
+			rebuild(bases, deltas, out, fos.getChannel());
+			out.flush();
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * Patch several basis files together, leaving holes for runs of zeros if
+	 * <code>sparse</code> is the channel <code>out</code> writes to.
+	 */
+	private void rebuild(File[] bases, List<Delta> deltas, OutputStream out,
+			FileChannel sparse) throws IOException {
+		byte[] fileSum = DeltaList.getFileSum(deltas);
+		MessageDigest digest = null;
+		if (fileSum != null) {
+			digest = config.newStrongSum();
+			out = new DigestOutputStream(out, digest);
+		}
+
 		Collections.sort(deltas, new Comparator<Delta>() {
 			@Override
 			public int compare(Delta o1, Delta o2) {
-				return o1.getWriteOffset() > o2.getWriteOffset() ? 1 : -1;
+				long d = o1.getWriteOffset() - o2.getWriteOffset();
+				return d > 0 ? 1 : (d < 0 ? -1 : 0);
 			}
 
 		});
+		deltas = resolveTargetCopies(deltas);
 
-		RandomAccessFile f = new RandomAccessFile(basis, "r");
+		RandomAccessFile[] files = new RandomAccessFile[bases.length];
+		try {
+			byte[] buf = new byte[config.blockLength];
+			byte[] zeros = null;
+			boolean hole = false;
+			for (Delta delta : deltas) {
+				if (delta instanceof DataBlock) {
+					((DataBlock) delta).writeTo(out);
+					hole = false;
+					continue;
+				}
+				if (delta instanceof RunBlock) {
+					RunBlock run = (RunBlock) delta;
+					int len = run.getBlockLength();
+					hole = sparse != null && run.getValue() == 0
+							&& len >= config.blockLength;
+					if (!hole) {
+						Arrays.fill(buf, run.getValue());
+						for (int n; len > 0; len -= n)
+							out.write(buf, 0, n = Math.min(len, buf.length));
+						continue;
+					}
+					out.flush();
+					if (digest != null) {
+						if (zeros == null)
+							zeros = new byte[config.chunkSize];
+						for (int n; len > 0; len -= n)
+							digest.update(zeros, 0,
+									n = Math.min(len, zeros.length));
+					}
+					sparse.position(sparse.position() + run.getBlockLength());
+					continue;
+				}
+				hole = false;
 
-		byte[] buf = new byte[config.blockLength];
-		for (Delta delta : deltas) {
-			if (delta instanceof DataBlock) {
-				out.write(((DataBlock) delta).getData());
-			} else {
-				f.seek(((Offsets) delta).getOldOffset());
+				int basis = 0;
+				long oldOffset;
+				if (delta instanceof BasisOffsets) {
+					basis = ((BasisOffsets) delta).getBasis();
+					oldOffset = ((BasisOffsets) delta).getOldOffset();
+				} else {
+					oldOffset = ((Offsets) delta).getOldOffset();
+				}
+				if (basis >= bases.length)
+					throw new IOException("No basis file " + basis);
+				if (files[basis] == null)
+					files[basis] = new RandomAccessFile(bases[basis], "r");
+				RandomAccessFile f = files[basis];
+
+				f.seek(oldOffset);
 				int len = 0, total = 0;
-				do {
-					len = f.read(buf);
+				while (total < delta.getBlockLength()) {
+					len = f.read(buf, 0,
+							Math.min(buf.length, delta.getBlockLength() - total));
+					if (len == -1)
+						throw new EOFException("Copy past end of basis");
 					total += len;
 					out.write(buf, 0, len);
-				} while (total < delta.getBlockLength());
+				}
+			}
+			if (hole) {
+				// Give the file its length with the last byte of the hole.
+				sparse.write(ByteBuffer.wrap(new byte[1]),
+						sparse.position() - 1);
+			}
+		} finally {
+			for (RandomAccessFile f : files) {
+				if (f != null)
+					f.close();
 			}
 		}
 
-		f.close();
+		if (digest != null && !MessageDigest.isEqual(fileSum, digest.digest())) {
+			throw new ChecksumMismatchException(
+					"Whole-file checksum mismatch after patching " + bases[0]);
+		}
 	}
 
 	/**
@@ -265,7 +1239,7 @@ public class Rdiff {
 	 * @throws java.io.IOException
 	 *             if reading fails.
 	 */
-	private static int readInt(InputStream in) throws IOException {
+	static int readInt(InputStream in) throws IOException {
 		int i = 0;
 		for (int j = 3; j >= 0; j--) {
 			int k = in.read();
@@ -289,7 +1263,7 @@ public class Rdiff {
 	 * @throws java.io.IOException
 	 *             If writing fails.
 	 */
-	private static void writeInt(long l, int len, OutputStream out)
+	static void writeInt(long l, int len, OutputStream out)
 			throws IOException {
 		for (int i = len - 1; i >= 0; i--) {
 			out.write((int) (l >>> i * 8) & 0xff);
@@ -306,7 +1280,7 @@ public class Rdiff {
 	 * @throws java.io.IOException
 	 *             If writing fails.
 	 */
-	private static void writeInt(int i, OutputStream out) throws IOException {
+	static void writeInt(int i, OutputStream out) throws IOException {
 		out.write((byte) ((i >>> 24) & 0xff));
 		out.write((byte) ((i >>> 16) & 0xff));
 		out.write((byte) ((i >>> 8) & 0xff));
@@ -359,7 +1333,7 @@ public class Rdiff {
 
 		out.write(cmd);
 		writeInt(d.getBlockLength(), param_len, out);
-		out.write(d.getData());
+		d.writeTo(out);
 	}
 
 	/**
@@ -393,14 +1367,59 @@ public class Rdiff {
 	 * @throws java.io.IOException
 	 *             if reading fails.
 	 */
-	private static long readInt(int len, InputStream in) throws IOException {
+	static long readInt(int len, InputStream in) throws IOException {
 		long i = 0;
 		for (int j = len - 1; j >= 0; j--) {
 			int k = in.read();
 			if (k == -1)
 				throw new EOFException();
-			i |= (k & 0xff) << 8 * j;
+			i |= (long) (k & 0xff) << 8 * j;
 		}
 		return i;
 	}
+
+	/**
+	 * Read exactly <code>buf.length</code> bytes from the input stream.
+	 * 
+	 * @param in
+	 *            The InputStream to read from.
+	 * @param buf
+	 *            The array to fill.
+	 * @throws java.io.IOException
+	 *             if reading fails or the stream ends early.
+	 */
+	static void readFully(InputStream in, byte[] buf) throws IOException {
+		int off = 0;
+		while (off < buf.length) {
+			int len = in.read(buf, off, buf.length - off);
+			if (len == -1)
+				throw new EOFException();
+			off += len;
+		}
+	}
+
+	/**
+	 * Read up to <code>len</code> bytes, stopping early only at the end of the
+	 * stream.
+	 * 
+	 * @param in
+	 *            The InputStream to read from.
+	 * @param buf
+	 *            The array to read into, from its start.
+	 * @param len
+	 *            The most bytes to read.
+	 * @return The number of bytes read.
+	 * @throws java.io.IOException
+	 *             If reading fails.
+	 */
+	static int read(InputStream in, byte[] buf, int len) throws IOException {
+		int off = 0;
+		while (off < len) {
+			int n = in.read(buf, off, len - off);
+			if (n == -1)
+				break;
+			off += n;
+		}
+		return off;
+	}
 }
@@ -0,0 +1,337 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A front end to {@link Rdiff} that one instance of can serve many threads at
+ * once. {@link Configuration} carries mutable hashing state, and
+ * {@link Rdiff#readSignatures} even changes its block length, so neither it
+ * nor the classes using it may be shared. Here every job borrows a session
+ * from a pool: a search buffer, and a private copy of the configuration,
+ * with its own message digest and rolling checksum, made once from an
+ * immutable template. Each borrow sets its parameters back to those of the
+ * template and resets its checksums. When the job ends the session goes
+ * back to the pool, so steady traffic allocates no new buffers or
+ * checksums.
+ * </p>
+ *
+ * <p>
+ * All methods are safe to call from several threads.
+ * </p>
+ *
+ * @author xuchaoguo
+ */
+public class RdiffService {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	/** The default number of idle sessions kept. */
+	public static final int POOL_SIZE = 64;
+
+	/** The parameters every session starts from. Never handed out. */
+	private final Configuration template;
+
+	/** The idle sessions. */
+	private final ConcurrentLinkedQueue<Session> idle = new ConcurrentLinkedQueue<>();
+
+	/** The number of sessions in {@link #idle}. */
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	/** The maximum number of idle sessions kept. */
+	private final int poolSize;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create a service keeping up to {@link #POOL_SIZE} idle sessions.
+	 *
+	 * @param config
+	 *            The checksum configuration. It is copied, so later changes
+	 *            to it have no effect.
+	 */
+	public RdiffService(Configuration config) {
+		this(config, POOL_SIZE);
+	}
+
+	/**
+	 * Create a service.
+	 *
+	 * @param config
+	 *            The checksum configuration. It is copied, so later changes
+	 *            to it have no effect.
+	 * @param poolSize
+	 *            The maximum number of idle sessions kept.
+	 */
+	public RdiffService(Configuration config, int poolSize) {
+		this.template = (Configuration) config.clone();
+		if (template.checksumSeed != null)
+			template.checksumSeed = (byte[]) template.checksumSeed.clone();
+		this.poolSize = poolSize;
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Write the signature of the basis data.
+	 *
+	 * @param basis
+	 *            The basis data.
+	 * @param sig
+	 *            The OutputStream to write the signature to.
+	 * @throws java.io.IOException
+	 *             If reading or writing fails.
+	 */
+	public void signature(InputStream basis, OutputStream sig)
+			throws IOException {
+		Session s = borrow();
+		try {
+			List<ChecksumPair> sums = new Generator(s.config)
+					.generateSums(basis);
+			new Rdiff(s.config).writeSignatures(sums, sig);
+		} finally {
+			release(s);
+		}
+	}
+
+	/**
+	 * Return the signature of a basis file.
+	 *
+	 * @param basis
+	 *            The basis file.
+	 * @return The signature.
+	 * @throws java.io.IOException
+	 *             If reading fails.
+	 */
+	public List<ChecksumPair> signature(File basis) throws IOException {
+		Session s = borrow();
+		try {
+			return new Generator(s.config).generateSums(basis);
+		} finally {
+			release(s);
+		}
+	}
+
+	/**
+	 * Read a signature. Every record read has the block length of the
+	 * signature, which {@link #delta(List, InputStream, DeltaSink)} takes from
+	 * them.
+	 *
+	 * @param sig
+	 *            The signature of the basis data.
+	 * @return The records of the signature.
+	 * @throws java.io.IOException
+	 *             If reading fails, or the signature is malformed.
+	 */
+	public List<ChecksumPair> readSignatures(InputStream sig)
+			throws IOException {
+		Session s = borrow();
+		try {
+			return new Rdiff(s.config).readSignatures(sig);
+		} finally {
+			release(s);
+		}
+	}
+
+	/**
+	 * Read a signature and write the delta of the new data against it, with
+	 * the whole-file checksum trailer. The block length is taken from the
+	 * signature.
+	 *
+	 * @param sig
+	 *            The signature of the basis data.
+	 * @param newData
+	 *            The new data.
+	 * @param delta
+	 *            The OutputStream to write the delta to.
+	 * @throws java.io.IOException
+	 *             If reading or writing fails.
+	 */
+	public void delta(InputStream sig, InputStream newData, OutputStream delta)
+			throws IOException {
+		Session s = borrow();
+		try {
+			Rdiff rdiff = new Rdiff(s.config);
+			try {
+				List<ChecksumPair> sums = rdiff.readSignatures(sig);
+				delta(s, rdiff, sums, newData, delta);
+			} finally {
+				rdiff.close();
+			}
+		} finally {
+			release(s);
+		}
+	}
+
+	/**
+	 * Write the delta of the new data against a signature, with the
+	 * whole-file checksum trailer.
+	 *
+	 * @param sums
+	 *            The signature of the basis data, made with the block length
+	 *            of this service.
+	 * @param newData
+	 *            The new data.
+	 * @param delta
+	 *            The OutputStream to write the delta to.
+	 * @throws java.io.IOException
+	 *             If reading or writing fails.
+	 */
+	public void delta(List<ChecksumPair> sums, InputStream newData,
+			OutputStream delta) throws IOException {
+		Session s = borrow();
+		try {
+			Rdiff rdiff = new Rdiff(s.config);
+			try {
+				delta(s, rdiff, sums, newData, delta);
+			} finally {
+				rdiff.close();
+			}
+		} finally {
+			release(s);
+		}
+	}
+
+	/**
+	 * Search the new data against a signature read by
+	 * {@link #readSignatures}, handing each {@link Delta} to
+	 * <code>sink</code> as it is found. The block length is taken from the
+	 * records. Nothing is written, so the caller may run the search on one
+	 * thread and write the deltas on another.
+	 *
+	 * @param sums
+	 *            The signature of the basis data.
+	 * @param newData
+	 *            The new data.
+	 * @param sink
+	 *            The sink to hand the deltas to, in order.
+	 * @return The whole-file checksum of the new data.
+	 * @throws java.io.IOException
+	 *             If reading fails, or the sink fails.
+	 */
+	public byte[] delta(List<ChecksumPair> sums, InputStream newData,
+			DeltaSink sink) throws IOException {
+		Session s = borrow();
+		try {
+			if (!sums.isEmpty())
+				s.config.blockLength = sums.get(0).getLength();
+			ChecksumMap map = new ChecksumMap();
+			map.reset(sums);
+			MessageDigest digest = s.config.newStrongSum();
+			new Matcher(s.config, s.buffer).search(map, new DigestInputStream(
+					newData, digest), 0, sink);
+			return digest.digest();
+		} finally {
+			release(s);
+		}
+	}
+
+	/**
+	 * Read a delta and write the result of applying it to the basis file. If
+	 * the delta carries a whole-file checksum, the result is verified.
+	 *
+	 * @param basis
+	 *            The basis file.
+	 * @param delta
+	 *            The delta.
+	 * @param out
+	 *            The OutputStream to write the patched data to.
+	 * @throws java.io.IOException
+	 *             If reading or writing fails.
+	 * @throws ChecksumMismatchException
+	 *             If the result does not match the whole-file checksum.
+	 */
+	public void patch(File basis, InputStream delta, OutputStream out)
+			throws IOException {
+		Session s = borrow();
+		try {
+			Rdiff rdiff = new Rdiff(s.config);
+			try {
+				rdiff.rebuildFile(basis, rdiff.readDeltas(delta), out);
+			} finally {
+				rdiff.close();
+			}
+		} finally {
+			release(s);
+		}
+	}
+
+	private void delta(Session s, Rdiff rdiff, List<ChecksumPair> sums,
+			InputStream newData, OutputStream delta) throws IOException {
+		Matcher matcher = new Matcher(s.config, s.buffer);
+		List<Delta> deltas = matcher.hashSearch(sums, newData);
+		rdiff.writeDeltas(new DeltaList(deltas, matcher.getFileSum()), delta);
+	}
+
+	/**
+	 * Take an idle session, or create one.
+	 */
+	private Session borrow() {
+		Session s = idle.poll();
+		if (s == null)
+			return new Session(template);
+		idleCount.decrementAndGet();
+		s.reset(template);
+		return s;
+	}
+
+	/**
+	 * Return a session to the pool, unless the pool is full.
+	 */
+	private void release(Session s) {
+		if (idleCount.incrementAndGet() <= poolSize) {
+			idle.offer(s);
+		} else {
+			idleCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * The state one job needs to itself.
+	 */
+	private static class Session {
+		final Configuration config;
+
+		/** The session's copy of the seed, in case a job replaced it. */
+		final byte[] seed;
+
+		final byte[] buffer;
+
+		Session(Configuration template) {
+			this.config = (Configuration) template.clone();
+			this.seed = config.checksumSeed;
+			this.buffer = new byte[Math.max(config.chunkSize,
+					2 * config.blockLength)];
+		}
+
+		/**
+		 * Undo whatever the last job changed: set the parameters back to
+		 * those of the template, and reset the checksums, which the session
+		 * keeps.
+		 */
+		void reset(Configuration template) {
+			config.blockLength = template.blockLength;
+			config.strongSumLength = template.strongSumLength;
+			config.doRunLength = template.doRunLength;
+			config.doTargetCopies = template.doTargetCopies;
+			config.checksumSeed = seed;
+			config.chunkSize = template.chunkSize;
+			config.frameLength = template.frameLength;
+			config.smallFileLength = template.smallFileLength;
+			config.memoryBudget = template.memoryBudget;
+			config.strongSum.reset();
+			config.weakSum.reset();
+		}
+	}
+}
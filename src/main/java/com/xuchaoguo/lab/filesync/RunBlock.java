@@ -0,0 +1,101 @@
+package com.xuchaoguo.lab.filesync;
+
+/**
+ * This class represents a run of one byte value repeated in the new data,
+ * such as the zero-filled regions of disk images and database files. It is
+ * made only when {@link Configuration#doRunLength} is set, and is sent as a
+ * value and a length instead of as literal data or many copies of the same
+ * block. Runs of zeros are left as holes when patching into a file.
+ *
+ * @see Rdiff#rebuildFile(java.io.File[], java.util.List, java.io.File)
+ * @author xuchaoguo
+ */
+public class RunBlock implements Delta, java.io.Serializable {
+
+	// Constants and variables
+	// ------------------------------------------------------------------------
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The offset in the new data.
+	 */
+	protected long offset;
+
+	/**
+	 * The repeated byte.
+	 */
+	protected byte value;
+
+	/**
+	 * The length of the run, in bytes.
+	 */
+	protected int blockLength;
+
+	// Constructors
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create a new run.
+	 *
+	 * @param offset
+	 *            The offset in the new data.
+	 * @param value
+	 *            The repeated byte.
+	 * @param blockLength
+	 *            The length, in bytes, of the run.
+	 */
+	public RunBlock(long offset, byte value, int blockLength) {
+		this.offset = offset;
+		this.value = value;
+		this.blockLength = blockLength;
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------------
+
+	// Delta interface implementation.
+
+	public long getWriteOffset() {
+		return offset;
+	}
+
+	public int getBlockLength() {
+		return blockLength;
+	}
+
+	// Property accessor methods
+
+	/**
+	 * Get the repeated byte.
+	 *
+	 * @return The byte value.
+	 */
+	public byte getValue() {
+		return value;
+	}
+
+	// Public instance methods overriding java.lang.Object -------------
+
+	/**
+	 * Return a {@link java.lang.String} representation of this object.
+	 *
+	 * @return A string representing this object.
+	 */
+	public String toString() {
+		return "[ off=" + offset + " value=" + (value & 0xff) + " len="
+				+ blockLength + " ]";
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof RunBlock))
+			return false;
+		RunBlock that = (RunBlock) o;
+		return offset == that.offset && value == that.value
+				&& blockLength == that.blockLength;
+	}
+
+	public int hashCode() {
+		return (int) (offset + value + blockLength);
+	}
+}
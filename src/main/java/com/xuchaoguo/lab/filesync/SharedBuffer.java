@@ -0,0 +1,54 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A buffer shared by the code filling it and the data blocks referring to
+ * parts of it (see {@link SlicedDataBlock}), with a count of references. The
+ * buffer goes back to its pool when the last reference is released.
+ *
+ * @author xuchaoguo
+ */
+final class SharedBuffer {
+
+	/** The data. */
+	final byte[] buf;
+
+	/** The pool to give the buffer back to. */
+	private final BufferPool pool;
+
+	private final AtomicInteger refs = new AtomicInteger(1);
+
+	/**
+	 * Take a buffer from a pool, or make one if none is free. The buffer
+	 * starts with one reference, held by the caller.
+	 *
+	 * @param pool
+	 *            The pool.
+	 */
+	SharedBuffer(BufferPool pool) {
+		byte[] b = pool.poll();
+		this.buf = b != null ? b : new byte[pool.getBufferLength()];
+		this.pool = pool;
+	}
+
+	/**
+	 * Add a reference.
+	 */
+	void retain() {
+		if (refs.getAndIncrement() <= 0)
+			throw new IllegalStateException("Buffer already released");
+	}
+
+	/**
+	 * Drop a reference, giving the buffer back to the pool if it was the
+	 * last.
+	 */
+	void release() {
+		int n = refs.decrementAndGet();
+		if (n == 0)
+			pool.offer(buf);
+		else if (n < 0)
+			throw new IllegalStateException("Buffer released too often");
+	}
+}
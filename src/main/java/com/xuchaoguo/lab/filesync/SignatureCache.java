@@ -0,0 +1,292 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * An on-disk cache of file signatures. Entries are keyed by the identity of
+ * the file (its canonical path, size, modification time and, where the file
+ * system provides one, its file key or inode) together with the parameters of
+ * the signature: block length, strong sum length, digest algorithm and
+ * checksum seed. A basis file that has not changed since its signature was
+ * cached costs one <code>stat</code> and one small read instead of a full
+ * read and hash.
+ * </p>
+ *
+ * <p>
+ * The cache is kept under a disk budget; when an insertion exceeds it, the
+ * least recently used entries are removed. Each entry holds the signature in
+ * the format of {@link Rdiff#writeSignatures}, preceded by its key.
+ * </p>
+ *
+ * <p>
+ * The cache stands on its own: {@link TreeSync} and {@link VersionStore} sign
+ * each version of a basis file once, so they have nothing to gain from it. It
+ * is meant for callers that sign the same unchanged files again and again,
+ * such as a server handing out signatures to many clients.
+ * </p>
+ *
+ * @author xuchaoguo
+ */
+public class SignatureCache {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	/** Signature cache entry magic. */
+	public static final int CACHE_MAGIC = 0x72730536;
+
+	/** The default disk budget, 256 megabytes. */
+	public static final long BUDGET = 256L << 20;
+
+	private static final String SUFFIX = ".sig";
+
+	/** The checksum configuration. */
+	private final Configuration config;
+
+	/** The directory holding the cache entries. */
+	private final File dir;
+
+	/** The maximum number of bytes the cache entries may take. */
+	private final long budget;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create a cache with the default disk budget.
+	 *
+	 * @param config
+	 *            The checksum configuration signatures are made with.
+	 * @param dir
+	 *            The directory holding the cache entries.
+	 * @throws java.io.IOException
+	 *             If the directory cannot be created.
+	 */
+	public SignatureCache(Configuration config, File dir) throws IOException {
+		this(config, dir, BUDGET);
+	}
+
+	/**
+	 * Create a cache.
+	 *
+	 * @param config
+	 *            The checksum configuration signatures are made with.
+	 * @param dir
+	 *            The directory holding the cache entries.
+	 * @param budget
+	 *            The maximum number of bytes the cache entries may take.
+	 * @throws java.io.IOException
+	 *             If the directory cannot be created.
+	 */
+	public SignatureCache(Configuration config, File dir, long budget)
+			throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create " + dir);
+		this.config = (Configuration) config.clone();
+		this.dir = dir;
+		this.budget = budget;
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Return the signatures of a file, from the cache if the file has not
+	 * changed since they were cached, otherwise by generating them with
+	 * {@link Generator#generateSums(File)} and caching the result.
+	 *
+	 * @param f
+	 *            The file to get the signatures of.
+	 * @return A {@link java.util.List} of {@link ChecksumPair}s for the file.
+	 * @throws java.io.IOException
+	 *             If <code>f</code> cannot be read.
+	 */
+	public List<ChecksumPair> getSignatures(File f) throws IOException {
+		String key = key(f);
+		List<ChecksumPair> sums = get(key);
+		if (sums != null)
+			return sums;
+
+		sums = new Generator((Configuration) config.clone()).generateSums(f);
+
+		// Only cache what we know matches the file as it is now.
+		if (key.equals(key(f)))
+			put(key, sums);
+		return sums;
+	}
+
+	/**
+	 * Remove every entry from the cache.
+	 */
+	public void clear() {
+		for (File entry : entries())
+			entry.delete();
+	}
+
+	/**
+	 * Look up the entry for a key.
+	 *
+	 * @return The cached signatures, or <code>null</code> on a miss.
+	 */
+	private List<ChecksumPair> get(String key) throws IOException {
+		File entry = entry(key);
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(entry)));
+		} catch (FileNotFoundException fnfe) {
+			return null;
+		}
+
+		List<ChecksumPair> sums;
+		long length;
+		try {
+			if (in.readInt() != CACHE_MAGIC || !key.equals(in.readUTF()))
+				return null;
+			length = in.readLong();
+			sums = new Rdiff((Configuration) config.clone())
+					.readSignatures(in);
+		} catch (IOException ioe) {
+			// A damaged entry is just a miss.
+			return null;
+		} finally {
+			in.close();
+		}
+
+		// The signature format does not record the length of the last block.
+		if (!sums.isEmpty()) {
+			ChecksumPair last = sums.get(sums.size() - 1);
+			last.length = (int) (length - last.offset);
+		}
+		entry.setLastModified(System.currentTimeMillis());
+		return sums;
+	}
+
+	/**
+	 * Store the entry for a key, then evict down to the budget.
+	 */
+	private void put(String key, List<ChecksumPair> sums) throws IOException {
+		long length = 0;
+		if (!sums.isEmpty()) {
+			ChecksumPair last = sums.get(sums.size() - 1);
+			length = last.offset + last.length;
+		}
+
+		File entry = entry(key);
+		File tmp = File.createTempFile("sig", ".tmp", dir);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp)));
+		try {
+			out.writeInt(CACHE_MAGIC);
+			out.writeUTF(key);
+			out.writeLong(length);
+			new Rdiff(config).writeSignatures(sums, out);
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), entry.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		evict();
+	}
+
+	/**
+	 * Delete the least recently used entries until the cache fits its budget.
+	 */
+	private void evict() {
+		File[] entries = entries();
+		long total = 0;
+		for (int i = 0; i < entries.length; i++) {
+			total += entries[i].length();
+		}
+		if (total <= budget)
+			return;
+
+		final long[] used = new long[entries.length];
+		for (int i = 0; i < entries.length; i++)
+			used[i] = entries[i].lastModified();
+		Integer[] order = new Integer[entries.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				long d = used[o1] - used[o2];
+				return d > 0 ? 1 : (d < 0 ? -1 : 0);
+			}
+		});
+
+		for (int i = 0; i < order.length && total > budget; i++) {
+			File entry = entries[order[i]];
+			long len = entry.length();
+			if (entry.delete())
+				total -= len;
+		}
+	}
+
+	private File[] entries() {
+		File[] entries = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File d, String name) {
+				return name.endsWith(SUFFIX);
+			}
+		});
+		return entries != null ? entries : new File[0];
+	}
+
+	/**
+	 * Build the cache key of a file from one <code>stat</code>.
+	 */
+	private String key(File f) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(f.toPath(),
+				BasicFileAttributes.class);
+		StringBuilder key = new StringBuilder(f.getCanonicalPath());
+		key.append('\n').append(attrs.size());
+		key.append('\n').append(
+				attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+		key.append('\n').append(attrs.fileKey());
+		key.append('\n').append(config.blockLength);
+		key.append('\n').append(config.strongSumLength);
+		key.append('\n').append(config.strongSum.getAlgorithm());
+		key.append('\n').append(
+				config.checksumSeed != null ? Util
+						.toHexString(config.checksumSeed) : "");
+		return key.toString();
+	}
+
+	/**
+	 * Map a key to the file of its entry.
+	 */
+	private File entry(String key) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			return new File(dir, Util.toHexString(md.digest(key
+					.getBytes("UTF-8"))) + SUFFIX);
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new Error(nsae);
+		} catch (UnsupportedEncodingException uee) {
+			throw new Error(uee);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link DataBlock} referring to part of a pooled buffer instead of holding
+ * a copy of its data, so that literal data goes from the buffer it was read
+ * into straight to the output. The block holds a reference to the buffer
+ * until {@link #release()}; {@link #getData()} copies the data out each time,
+ * and the block is serialized as an ordinary data block.
+ *
+ * @author xuchaoguo
+ */
+final class SlicedDataBlock extends DataBlock {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	private static final long serialVersionUID = 1L;
+
+	/** The buffer, or <code>null</code> once released. */
+	private transient SharedBuffer shared;
+
+	/** The offset of the data in the buffer. */
+	private final int from;
+
+	private final int length;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create a block over part of a buffer, adding a reference to it.
+	 */
+	SlicedDataBlock(long offset, SharedBuffer shared, int from, int length) {
+		super(offset, null, false);
+		shared.retain();
+		this.shared = shared;
+		this.from = from;
+		this.length = length;
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	public int getBlockLength() {
+		return length;
+	}
+
+	/**
+	 * Copy the data of this block out.
+	 *
+	 * @return A new array of the data.
+	 */
+	public byte[] getData() {
+		byte[] data = new byte[length];
+		System.arraycopy(buf(), from, data, 0, length);
+		return data;
+	}
+
+	public ByteBuffer getBuffer() {
+		return ByteBuffer.wrap(buf(), from, length).slice().asReadOnlyBuffer();
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buf(), from, length);
+	}
+
+	public synchronized void release() {
+		if (shared != null) {
+			shared.release();
+			shared = null;
+		}
+	}
+
+	void copyTo(int from, ByteBuffer dst, int len) {
+		dst.put(buf(), this.from + from, len);
+	}
+
+	synchronized DataBlock slice(long offset, int from, int len) {
+		if (shared == null)
+			throw new IllegalStateException("Data block released");
+		return new SlicedDataBlock(offset, shared, this.from + from, len);
+	}
+
+	private synchronized byte[] buf() {
+		if (shared == null)
+			throw new IllegalStateException("Data block released");
+		return shared.buf;
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		return new DataBlock(offset, getData(), false);
+	}
+}
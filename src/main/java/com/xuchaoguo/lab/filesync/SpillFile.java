@@ -0,0 +1,212 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * <p>
+ * Holds literal data for the deltas of an {@link Rdiff} within a memory
+ * budget (see {@link Configuration#memoryBudget}). Data blocks are made on
+ * the heap while the total held there stays within the budget; past it, the
+ * data is appended to a temporary file and the block refers to it by
+ * position (see {@link SpilledDataBlock}). A block kept on the heap spends its
+ * length of the budget until it is released (see {@link DataBlock#release()})
+ * or the spill is closed, since the deltas made may be kept that long.
+ * </p>
+ *
+ * <p>
+ * The temporary file is created when first needed and deleted on closing,
+ * after which spilled blocks can no longer be read. Instances are safe for
+ * use by several threads at once.
+ * </p>
+ *
+ * @author xuchaoguo
+ */
+final class SpillFile implements Closeable {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	/** The length of the chunks streamed into the file. */
+	private static final int CHUNK = 65536;
+
+	/** The most literal data to hold on the heap. */
+	private final long budget;
+
+	/** The literal data held on the heap so far. */
+	private long held;
+
+	private File file;
+
+	private RandomAccessFile raf;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create a spill.
+	 *
+	 * @param budget
+	 *            The most literal data, in bytes, to hold on the heap.
+	 */
+	SpillFile(long budget) {
+		this.budget = budget;
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Make a data block of a copy of part of an array.
+	 *
+	 * @param offset
+	 *            The write offset of the block.
+	 * @param buf
+	 *            The data.
+	 * @param off
+	 *            The offset of the data in <code>buf</code>.
+	 * @param len
+	 *            The length of the data.
+	 * @return The block, on the heap or spilled.
+	 * @throws java.io.IOException
+	 *             If writing the file fails.
+	 */
+	synchronized DataBlock dataBlock(long offset, byte[] buf, int off, int len)
+			throws IOException {
+		if (reserve(len)) {
+			byte[] data = new byte[len];
+			System.arraycopy(buf, off, data, 0, len);
+			return new HeldDataBlock(this, offset, data);
+		}
+		long pos = open().length();
+		raf.seek(pos);
+		raf.write(buf, off, len);
+		return new SpilledDataBlock(this, pos, offset, len);
+	}
+
+	/**
+	 * Make a data block of data read from a stream, never holding more of it
+	 * in memory at once than a chunk if it is spilled.
+	 *
+	 * @param offset
+	 *            The write offset of the block.
+	 * @param in
+	 *            The stream to read the data from.
+	 * @param len
+	 *            The length of the data.
+	 * @return The block, on the heap or spilled.
+	 * @throws java.io.IOException
+	 *             If reading or writing fails, or the stream ends early.
+	 */
+	synchronized DataBlock dataBlock(long offset, InputStream in, int len)
+			throws IOException {
+		if (reserve(len)) {
+			byte[] buf = new byte[len];
+			Rdiff.readFully(in, buf);
+			return new HeldDataBlock(this, offset, buf);
+		}
+		long pos = open().length();
+		raf.seek(pos);
+		byte[] buf = new byte[Math.min(len, CHUNK)];
+		for (int total = 0, n; total < len; total += n) {
+			n = in.read(buf, 0, Math.min(buf.length, len - total));
+			if (n == -1)
+				throw new EOFException();
+			raf.write(buf, 0, n);
+		}
+		return new SpilledDataBlock(this, pos, offset, len);
+	}
+
+	/**
+	 * Read spilled data.
+	 *
+	 * @param pos
+	 *            The position in the file.
+	 * @param buf
+	 *            The array to read into.
+	 * @param off
+	 *            The offset in <code>buf</code>.
+	 * @param len
+	 *            The number of bytes to read.
+	 * @throws java.io.IOException
+	 *             If reading fails, or the spill is closed.
+	 */
+	synchronized void read(long pos, byte[] buf, int off, int len)
+			throws IOException {
+		if (raf == null)
+			throw new IOException("Spill closed");
+		raf.seek(pos);
+		raf.readFully(buf, off, len);
+	}
+
+	/**
+	 * Copy spilled data to a stream.
+	 *
+	 * @param pos
+	 *            The position in the file.
+	 * @param len
+	 *            The number of bytes to copy.
+	 * @param out
+	 *            The OutputStream to write to.
+	 * @throws java.io.IOException
+	 *             If reading or writing fails, or the spill is closed.
+	 */
+	void writeTo(long pos, int len, OutputStream out) throws IOException {
+		byte[] buf = new byte[Math.min(len, CHUNK)];
+		for (int n; len > 0; len -= n, pos += n) {
+			n = Math.min(len, buf.length);
+			read(pos, buf, 0, n);
+			out.write(buf, 0, n);
+		}
+	}
+
+	/**
+	 * Delete the file.
+	 *
+	 * @throws java.io.IOException
+	 *             If closing the file fails.
+	 */
+	public synchronized void close() throws IOException {
+		if (raf == null)
+			return;
+		try {
+			raf.close();
+		} finally {
+			raf = null;
+			if (!file.delete())
+				file.deleteOnExit();
+		}
+	}
+
+	/**
+	 * Count <code>len</code> more bytes held on the heap, if the budget
+	 * allows.
+	 */
+	private boolean reserve(int len) {
+		if (held + len > budget)
+			return false;
+		held += len;
+		return true;
+	}
+
+	/**
+	 * Give back <code>len</code> bytes of the budget, for a block on the heap
+	 * that was released.
+	 */
+	synchronized void unreserve(int len) {
+		held -= len;
+	}
+
+	private RandomAccessFile open() throws IOException {
+		if (raf == null) {
+			file = File.createTempFile("spill", ".tmp");
+			raf = new RandomAccessFile(file, "rw");
+		}
+		return raf;
+	}
+}
@@ -0,0 +1,92 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.IOError;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link DataBlock} whose data was spilled to the temporary file of a
+ * {@link SpillFile} rather than kept on the heap. Its data is read back when
+ * it is written; {@link #getData()} reads it into a new array each time, and
+ * the block is serialized as an ordinary data block.
+ *
+ * @author xuchaoguo
+ */
+final class SpilledDataBlock extends DataBlock {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient SpillFile spill;
+
+	/** The position of the data in the file. */
+	private final long position;
+
+	private final int length;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	SpilledDataBlock(SpillFile spill, long position, long offset, int length) {
+		super(offset, null, false);
+		this.spill = spill;
+		this.position = position;
+		this.length = length;
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	public int getBlockLength() {
+		return length;
+	}
+
+	/**
+	 * Read the data of this block back.
+	 *
+	 * @return A new array of the data.
+	 * @throws java.io.IOError
+	 *             If reading fails, or the spill was closed.
+	 */
+	public byte[] getData() {
+		byte[] buf = new byte[length];
+		try {
+			spill.read(position, buf, 0, length);
+		} catch (IOException ioe) {
+			throw new IOError(ioe);
+		}
+		return buf;
+	}
+
+	public ByteBuffer getBuffer() {
+		return ByteBuffer.wrap(getData()).asReadOnlyBuffer();
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		spill.writeTo(position, length, out);
+	}
+
+	void copyTo(int from, ByteBuffer dst, int len) throws IOException {
+		if (dst.hasArray()) {
+			spill.read(position + from, dst.array(), dst.arrayOffset()
+					+ dst.position(), len);
+			dst.position(dst.position() + len);
+		} else {
+			byte[] buf = new byte[len];
+			spill.read(position + from, buf, 0, len);
+			dst.put(buf);
+		}
+	}
+
+	DataBlock slice(long offset, int from, int len) {
+		return new SpilledDataBlock(spill, position + from, offset, len);
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		return new DataBlock(offset, getData(), false);
+	}
+}
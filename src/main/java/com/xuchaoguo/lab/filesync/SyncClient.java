@@ -0,0 +1,105 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Brings a local file up to date with its copy on a {@link SyncServer}, in
+ * one session over a new connection. Instances may be shared by several
+ * threads.
+ *
+ * @author xuchaoguo
+ */
+public class SyncClient {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	/** The address of the server. */
+	private final InetSocketAddress server;
+
+	/** Runs the signature and patch jobs. */
+	private final RdiffService service;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create a client.
+	 *
+	 * @param config
+	 *            The checksum configuration.
+	 * @param server
+	 *            The address of the server.
+	 */
+	public SyncClient(Configuration config, InetSocketAddress server) {
+		this.server = server;
+		this.service = new RdiffService(config);
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Write the server's copy of a file to <code>out</code>, patching
+	 * <code>basis</code>.
+	 *
+	 * @param name
+	 *            The name of the file on the server, relative to its root.
+	 * @param basis
+	 *            The local copy of the file. It may be empty.
+	 * @param out
+	 *            The file to write the new version to. It must not be
+	 *            <code>basis</code>.
+	 * @throws java.io.IOException
+	 *             If the session fails, or the server reports an error.
+	 */
+	public void sync(String name, File basis, File out) throws IOException {
+		ByteArrayOutputStream sig = new ByteArrayOutputStream();
+		InputStream data = new FileInputStream(basis);
+		try {
+			service.signature(new BufferedInputStream(data), sig);
+		} finally {
+			data.close();
+		}
+
+		Socket socket = new Socket();
+		try {
+			socket.connect(server);
+			socket.setSoTimeout(SyncServer.TIMEOUT);
+			socket.setTcpNoDelay(true);
+			DataOutputStream request = new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream()));
+			request.writeUTF(name);
+			request.writeInt(sig.size());
+			sig.writeTo(request);
+			request.flush();
+
+			DataInputStream reply = new DataInputStream(
+					new BufferedInputStream(socket.getInputStream()));
+			if (reply.readUnsignedByte() != SyncServer.OK)
+				throw new IOException("Server error: " + reply.readUTF());
+
+			OutputStream o = new BufferedOutputStream(new FileOutputStream(
+					out));
+			try {
+				service.patch(basis, reply, o);
+			} finally {
+				o.close();
+			}
+		} finally {
+			socket.close();
+		}
+	}
+}
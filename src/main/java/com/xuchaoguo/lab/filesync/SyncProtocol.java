@@ -0,0 +1,201 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * <p>
+ * The framed wire protocol of {@link NioSyncServer} and {@link NioSyncClient}.
+ * Many files are synchronized over one connection at once, each in a stream
+ * of its own, numbered by the client. Every frame is a type byte, a
+ * four-byte stream number, a four-byte payload length and the payload:
+ * </p>
+ *
+ * <dl>
+ * <dt>{@link #OPEN}</dt>
+ * <dd>Client to server: start a stream for the file named by the UTF-8
+ * payload, relative to the server's root.</dd>
+ * <dt>{@link #SIG}</dt>
+ * <dd>Client to server: the next part of the signature of the client's copy,
+ * in the format of {@link Rdiff#writeSignatures}.</dd>
+ * <dt>{@link #SIG_END}</dt>
+ * <dd>Client to server: the signature is complete.</dd>
+ * <dt>{@link #DELTA}</dt>
+ * <dd>Server to client: the next part of the delta, in the format of
+ * {@link Rdiff#writeDeltas}, sent as the search produces it.</dd>
+ * <dt>{@link #DELTA_END}</dt>
+ * <dd>Server to client: the delta is complete and the stream closed.</dd>
+ * <dt>{@link #ERROR}</dt>
+ * <dd>Server to client: the stream failed, for the reason in the UTF-8
+ * payload, and is closed.</dd>
+ * </dl>
+ *
+ * <p>
+ * The server starts matching as soon as a stream is opened, while the
+ * signature is still arriving, and the client may open further streams
+ * without waiting for earlier ones to finish.
+ * </p>
+ *
+ * @author xuchaoguo
+ */
+public final class SyncProtocol {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	public static final byte OPEN = 1;
+
+	public static final byte SIG = 2;
+
+	public static final byte SIG_END = 3;
+
+	public static final byte DELTA = 4;
+
+	public static final byte DELTA_END = 5;
+
+	public static final byte ERROR = 6;
+
+	/** The length of a frame header. */
+	public static final int HEADER_LENGTH = 9;
+
+	/** The longest payload a frame may carry. */
+	public static final int MAX_PAYLOAD = 1 << 20;
+
+	/** The payload length {@link FrameOutputStream} sends at a time. */
+	static final int FRAME_PAYLOAD = 64 * 1024;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private SyncProtocol() {
+	}
+
+	// Class methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Build a frame, ready to write.
+	 */
+	static ByteBuffer frame(byte type, int stream, byte[] data, int off,
+			int len) {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + len);
+		frame.put(type).putInt(stream).putInt(len).put(data, off, len);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Build a frame with an empty payload.
+	 */
+	static ByteBuffer frame(byte type, int stream) {
+		return frame(type, stream, new byte[0], 0, 0);
+	}
+
+	/**
+	 * Build a frame with a text payload.
+	 */
+	static ByteBuffer frame(byte type, int stream, String text) {
+		byte[] data = String.valueOf(text).getBytes(UTF8);
+		return frame(type, stream, data, 0,
+				Math.min(data.length, FRAME_PAYLOAD));
+	}
+
+	/**
+	 * Read a whole frame from a blocking channel.
+	 *
+	 * @return The frame, with its header, or <code>null</code> at the end of
+	 *         the channel.
+	 */
+	static ByteBuffer readFrame(ReadableByteChannel ch) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		if (!readFully(ch, header, true))
+			return null;
+		int len = header.getInt(5);
+		if (len < 0 || len > MAX_PAYLOAD)
+			throw new IOException("Bad frame length: " + len);
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + len);
+		header.flip();
+		frame.put(header);
+		readFully(ch, frame, false);
+		frame.flip();
+		return frame;
+	}
+
+	private static boolean readFully(ReadableByteChannel ch, ByteBuffer buf,
+			boolean eofOk) throws IOException {
+		while (buf.hasRemaining()) {
+			if (ch.read(buf) == -1) {
+				if (eofOk && buf.position() == 0)
+					return false;
+				throw new EOFException("Connection closed within a frame");
+			}
+		}
+		return true;
+	}
+
+	// Inner classes.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Where frames are sent.
+	 */
+	interface FrameSender {
+		/**
+		 * Send a frame, waiting if too much is already waiting to be sent.
+		 */
+		void send(ByteBuffer frame) throws IOException;
+	}
+
+	/**
+	 * An OutputStream that sends what is written to it as frames of one type
+	 * and stream.
+	 */
+	static class FrameOutputStream extends OutputStream {
+		private final FrameSender sender;
+
+		private final byte type;
+
+		private final int stream;
+
+		private final byte[] buf = new byte[FRAME_PAYLOAD];
+
+		private int count;
+
+		FrameOutputStream(FrameSender sender, byte type, int stream) {
+			this.sender = sender;
+			this.type = type;
+			this.stream = stream;
+		}
+
+		public void write(int b) throws IOException {
+			if (count == buf.length)
+				flush();
+			buf[count++] = (byte) b;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buf.length)
+					flush();
+				int n = Math.min(len, buf.length - count);
+				System.arraycopy(b, off, buf, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		/**
+		 * Send what has been written so far as one frame.
+		 */
+		public void flush() throws IOException {
+			if (count > 0) {
+				sender.send(frame(type, stream, buf, 0, count));
+				count = 0;
+			}
+		}
+	}
+}
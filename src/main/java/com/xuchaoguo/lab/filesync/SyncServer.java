@@ -0,0 +1,565 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Serves the files under a directory to {@link SyncClient}s. A session goes:
+ * the client sends the name of a file and the signature of its copy, the
+ * server matches the file against the signature, and sends back the delta
+ * with its whole-file checksum. The connection is closed after one session.
+ * </p>
+ *
+ * <p>
+ * Each session runs on a thread of its own. On a JDK with virtual threads
+ * (Java 21 and later) those are virtual threads, so thousands of clients
+ * cost little more than their sockets; on older JDKs a cached pool of
+ * platform threads is used. Matching is CPU-bound and runs on a separate
+ * fixed pool, one thread per processor by default, so that however many
+ * sessions are open the server never runs more searches at once than it has
+ * processors for.
+ * </p>
+ *
+ * <p>
+ * The wire format of a request is the file name as by
+ * {@link DataOutputStream#writeUTF}, the length of the signature as a
+ * four-byte integer, and the signature as by {@link Rdiff#writeSignatures}.
+ * The reply is a status byte: {@link #OK} followed by the delta as by
+ * {@link Rdiff#writeDeltas}, or {@link #ERROR} followed by a message as by
+ * {@link DataOutputStream#writeUTF}. The session thread reads the whole
+ * signature, parsing it as it arrives, before the search starts; signatures
+ * longer than {@link #getMaxSignatureLength()} are refused. The search on the
+ * match pool only reads the file: it hands the deltas back through a short
+ * queue, and the session thread writes them to the connection as they come,
+ * so a slow client never holds a match thread on the socket. A search whose
+ * deltas are not taken within {@link #TIMEOUT} gives up. A failure after the
+ * delta has started can no longer be reported, so the connection is closed
+ * instead, leaving the client a truncated delta.
+ * </p>
+ *
+ * @author xuchaoguo
+ */
+public class SyncServer implements Closeable {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	/** The reply status of a session that succeeded. */
+	public static final int OK = 0;
+
+	/** The reply status of a session that failed. */
+	public static final int ERROR = 1;
+
+	/** The default read timeout of a session, in milliseconds. */
+	public static final int TIMEOUT = 60000;
+
+	/**
+	 * The default longest signature accepted, in bytes: enough for a file of
+	 * about 5 GB at the default block and strong sum lengths.
+	 */
+	public static final int MAX_SIGNATURE_LENGTH = 64 << 20;
+
+	/** The length of the accept queue asked for. */
+	private static final int BACKLOG = 4096;
+
+	/** The number of batches of deltas a search may queue for its session. */
+	private static final int QUEUE_LENGTH = 16;
+
+	/** The number of deltas handed from a search at a time. */
+	private static final int BATCH = 256;
+
+	/** Marks the end of the deltas of a search. */
+	private static final List<Delta> END = new LinkedList<>();
+
+	/** The directory of the files served. */
+	private final File root;
+
+	/** Runs the signature, delta and patch jobs. */
+	private final RdiffService service;
+
+	/** The listening socket. */
+	private final ServerSocket server;
+
+	/** Runs one task per session. */
+	private final ExecutorService sessions;
+
+	/** Runs the matching; its size bounds the CPU given to it. */
+	private final ExecutorService matchers;
+
+	/** The thread accepting connections. */
+	private final Thread acceptor;
+
+	/** The length of the whole-file checksum sent with each delta. */
+	private final int sumLength;
+
+	/** The longest signature accepted, in bytes. */
+	private volatile int maxSignatureLength = MAX_SIGNATURE_LENGTH;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create a server on the given port, matching on one thread per
+	 * processor. The server does not accept connections until
+	 * {@link #start()}.
+	 *
+	 * @param config
+	 *            The checksum configuration.
+	 * @param root
+	 *            The directory of the files served.
+	 * @param port
+	 *            The port to listen on, or 0 for any free port.
+	 * @throws java.io.IOException
+	 *             If the port cannot be bound.
+	 */
+	public SyncServer(Configuration config, File root, int port)
+			throws IOException {
+		this(config, root, new InetSocketAddress(port), Runtime.getRuntime()
+				.availableProcessors());
+	}
+
+	/**
+	 * Create a server. The server does not accept connections until
+	 * {@link #start()}.
+	 *
+	 * @param config
+	 *            The checksum configuration.
+	 * @param root
+	 *            The directory of the files served.
+	 * @param address
+	 *            The address to listen on.
+	 * @param matchThreads
+	 *            The number of sessions that may be matching at once.
+	 * @throws java.io.IOException
+	 *             If the address cannot be bound.
+	 */
+	public SyncServer(Configuration config, File root,
+			InetSocketAddress address, int matchThreads) throws IOException {
+		this.root = root.getCanonicalFile();
+		this.service = new RdiffService(config);
+		this.sumLength = config.newStrongSum().getDigestLength();
+		this.server = new ServerSocket();
+		server.bind(address, BACKLOG);
+		this.sessions = newSessionExecutor();
+		this.matchers = Executors.newFixedThreadPool(matchThreads,
+				daemon("sync matcher"));
+		this.acceptor = daemon("sync acceptor").newThread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		});
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Start accepting connections.
+	 */
+	public void start() {
+		acceptor.start();
+	}
+
+	/**
+	 * @return The port the server listens on.
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * @return The longest signature accepted, in bytes.
+	 */
+	public int getMaxSignatureLength() {
+		return maxSignatureLength;
+	}
+
+	/**
+	 * Set the longest signature accepted. A request with a longer signature
+	 * gets an {@link #ERROR} reply without the signature being read.
+	 *
+	 * @param length
+	 *            The longest signature accepted, in bytes.
+	 */
+	public void setMaxSignatureLength(int length) {
+		if (length < 0)
+			throw new IllegalArgumentException("Negative length");
+		maxSignatureLength = length;
+	}
+
+	/**
+	 * Stop accepting connections and stop the sessions in progress.
+	 *
+	 * @throws java.io.IOException
+	 *             If closing the listening socket fails.
+	 */
+	public void close() throws IOException {
+		server.close();
+		sessions.shutdownNow();
+		matchers.shutdownNow();
+	}
+
+	private void accept() {
+		while (!server.isClosed()) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException ioe) {
+				// Closed, or a connection that failed before it was
+				// accepted; the loop test tells which.
+				continue;
+			}
+			try {
+				sessions.execute(new Runnable() {
+					@Override
+					public void run() {
+						session(socket);
+					}
+				});
+			} catch (RuntimeException re) {
+				close(socket);
+			}
+		}
+	}
+
+	/**
+	 * Serve one session. The request is read, and the delta written, on the
+	 * session thread; only the search runs on the match pool.
+	 */
+	private void session(Socket socket) {
+		try {
+			socket.setSoTimeout(TIMEOUT);
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream()));
+
+			String name = in.readUTF();
+			int len = in.readInt();
+			if (len < 0 || len > maxSignatureLength) {
+				error(out, "Bad signature length: " + len);
+				return;
+			}
+			SignatureInputStream sig = new SignatureInputStream(in, len);
+			File f;
+			List<ChecksumPair> sums;
+			try {
+				f = resolve(name);
+				sums = service.readSignatures(sig);
+			} catch (IOException ioe) {
+				// Read the rest of the request, so that the client gets the
+				// reply rather than a reset connection.
+				sig.drain();
+				error(out, String.valueOf(ioe.getMessage()));
+				return;
+			}
+			sig.drain();
+
+			ReplyOutputStream reply = new ReplyOutputStream(out);
+			try {
+				match(sums, f, reply);
+			} catch (IOException ioe) {
+				if (reply.started)
+					throw ioe;
+				error(out, String.valueOf(ioe.getMessage()));
+				return;
+			}
+			out.flush();
+			socket.shutdownOutput();
+		} catch (IOException ioe) {
+			// The client went away, or the delta failed after it started;
+			// closing the connection is all that can be done.
+		} finally {
+			close(socket);
+		}
+	}
+
+	private static void error(DataOutputStream out, String message)
+			throws IOException {
+		out.writeByte(ERROR);
+		out.writeUTF(message);
+		out.flush();
+	}
+
+	/**
+	 * Run the search for one session on the match pool, and write the delta
+	 * as the search hands it over. Nothing is written if the search fails
+	 * before finding anything, so that the failure can still be reported.
+	 */
+	private void match(final List<ChecksumPair> sums, final File f,
+			OutputStream delta) throws IOException {
+		final BlockingQueue<List<Delta>> queue = new ArrayBlockingQueue<>(
+				QUEUE_LENGTH);
+		Future<byte[]> job = matchers.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				InputStream data = new BufferedInputStream(new FileInputStream(
+						f));
+				try {
+					final LinkedList<Delta> batch = new LinkedList<>();
+					byte[] sum = service.delta(sums, data, new DeltaSink() {
+						@Override
+						public void add(Delta d) throws IOException {
+							if (batch.size() >= BATCH) {
+								put(queue, new LinkedList<>(batch));
+								batch.clear();
+							}
+							if (d instanceof Offsets) {
+								Offsets o = (Offsets) d;
+								Rdiff.addCopy(batch, o.getOldOffset(),
+										o.getNewOffset(), o.getBlockLength());
+							} else {
+								batch.add(d);
+							}
+						}
+					});
+					put(queue, batch);
+					return sum;
+				} finally {
+					data.close();
+					// Always end the queue, dropping what the session will
+					// not take after a failure.
+					while (!queue.offer(END))
+						queue.poll();
+				}
+			}
+		});
+
+		boolean done = false;
+		try {
+			boolean started = false;
+			List<Delta> batch;
+			while ((batch = take(queue)) != END) {
+				if (!started) {
+					Rdiff.writeDeltaHeader(sumLength, delta);
+					started = true;
+				}
+				for (Delta d : batch)
+					Rdiff.writeOp(d, delta);
+			}
+			byte[] sum = get(job, f);
+			if (!started)
+				Rdiff.writeDeltaHeader(sumLength, delta);
+			delta.write(Rdiff.OP_END);
+			delta.write(sum);
+			done = true;
+		} finally {
+			if (!done)
+				job.cancel(true);
+		}
+	}
+
+	/**
+	 * Queue a batch of deltas for the session, giving up if the session
+	 * does not take one within {@link #TIMEOUT}.
+	 */
+	private static void put(BlockingQueue<List<Delta>> queue,
+			List<Delta> batch) throws IOException {
+		try {
+			if (!queue.offer(batch, TIMEOUT, TimeUnit.MILLISECONDS))
+				throw new InterruptedIOException("Session not taking deltas");
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted queueing a delta");
+		}
+	}
+
+	private static List<Delta> take(BlockingQueue<List<Delta>> queue)
+			throws IOException {
+		try {
+			return queue.take();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for deltas");
+		}
+	}
+
+	/**
+	 * Wait for a search, rethrowing its failure.
+	 */
+	private static byte[] get(Future<byte[]> job, File f) throws IOException {
+		try {
+			return job.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted matching " + f);
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Map a requested name to a file under the root, refusing names that
+	 * lead out of it.
+	 */
+	private File resolve(String name) throws IOException {
+		File f = new File(root, name).getCanonicalFile();
+		if (!f.getPath().startsWith(root.getPath() + File.separator)
+				|| !f.isFile())
+			throw new FileNotFoundException("No such file: " + name);
+		return f;
+	}
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException ioe) {
+			// Ignore.
+		}
+	}
+
+	/**
+	 * Create an executor running each task on a new virtual thread if the JDK
+	 * has them, and on a cached pool of daemon threads if not.
+	 */
+	static ExecutorService newSessionExecutor() {
+		try {
+			Method m = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (ReflectiveOperationException roe) {
+			return Executors.newCachedThreadPool(daemon("sync session"));
+		}
+	}
+
+	/**
+	 * The signature of a request: the next <code>length</code> bytes of the
+	 * connection.
+	 */
+	private static class SignatureInputStream extends FilterInputStream {
+		private long remaining;
+
+		SignatureInputStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		public int read() throws IOException {
+			if (remaining == 0)
+				return -1;
+			int b = in.read();
+			if (b == -1)
+				throw new EOFException("Truncated signature");
+			remaining--;
+			return b;
+		}
+
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (remaining == 0)
+				return -1;
+			int n = in.read(buf, off, (int) Math.min(len, remaining));
+			if (n == -1)
+				throw new EOFException("Truncated signature");
+			remaining -= n;
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			n = in.skip(Math.min(n, remaining));
+			remaining -= n;
+			return n;
+		}
+
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		public void close() {
+			// The connection stays open for the reply.
+		}
+
+		public boolean markSupported() {
+			return false;
+		}
+
+		/**
+		 * Skip whatever of the signature is left unread.
+		 */
+		void drain() throws IOException {
+			while (remaining > 0) {
+				if (skip(remaining) == 0)
+					read();
+			}
+		}
+	}
+
+	/**
+	 * The reply of a request that succeeded so far: writes {@link #OK}
+	 * before the first byte of the delta.
+	 */
+	private static class ReplyOutputStream extends FilterOutputStream {
+		/** Whether anything was written, after which errors cannot be sent. */
+		volatile boolean started;
+
+		ReplyOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			start();
+			out.write(b);
+		}
+
+		public void write(byte[] buf, int off, int len) throws IOException {
+			start();
+			out.write(buf, off, len);
+		}
+
+		private void start() throws IOException {
+			if (!started) {
+				started = true;
+				out.write(OK);
+			}
+		}
+	}
+
+	/**
+	 * Create a factory of named daemon threads.
+	 */
+	static ThreadFactory daemon(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+}
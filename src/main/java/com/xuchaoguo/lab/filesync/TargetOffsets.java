@@ -0,0 +1,102 @@
+package com.xuchaoguo.lab.filesync;
+
+/**
+ * This class represents a block of the new data that repeats a block written
+ * earlier in the new data itself, rather than one of the original data. It
+ * is made only when {@link Configuration#doTargetCopies} is set, so that
+ * content that is new but repeated is sent once. The source block always
+ * ends at or before the write offset.
+ *
+ * @see Rdiff#resolveTargetCopies(java.util.List)
+ * @author xuchaoguo
+ */
+public class TargetOffsets implements Delta, java.io.Serializable {
+
+	// Constants and variables
+	// ------------------------------------------------------------------------
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The offset in the new data to copy from.
+	 */
+	protected long sourceOffset;
+
+	/**
+	 * The offset in the new data to copy to.
+	 */
+	protected long newOffset;
+
+	/**
+	 * The size of the repeated block, in bytes.
+	 */
+	protected int blockLength;
+
+	// Constructors
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create a new copy from the new data.
+	 *
+	 * @param sourceOffset
+	 *            The offset in the new data to copy from.
+	 * @param newOffset
+	 *            The offset in the new data to copy to.
+	 * @param blockLength
+	 *            The size, in bytes, of the repeated block.
+	 */
+	public TargetOffsets(long sourceOffset, long newOffset, int blockLength) {
+		this.sourceOffset = sourceOffset;
+		this.newOffset = newOffset;
+		this.blockLength = blockLength;
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------------
+
+	// Delta interface implementation.
+
+	public long getWriteOffset() {
+		return newOffset;
+	}
+
+	public int getBlockLength() {
+		return blockLength;
+	}
+
+	// Property accessor methods
+
+	/**
+	 * Get the offset in the new data to copy from.
+	 *
+	 * @return The source offset.
+	 */
+	public long getSourceOffset() {
+		return sourceOffset;
+	}
+
+	// Public instance methods overriding java.lang.Object -------------
+
+	/**
+	 * Return a {@link java.lang.String} representation of this object.
+	 *
+	 * @return A string representing this object.
+	 */
+	public String toString() {
+		return "[ source=" + sourceOffset + " new=" + newOffset + " len="
+				+ blockLength + " ]";
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof TargetOffsets))
+			return false;
+		TargetOffsets that = (TargetOffsets) o;
+		return sourceOffset == that.sourceOffset
+				&& newOffset == that.newOffset
+				&& blockLength == that.blockLength;
+	}
+
+	public int hashCode() {
+		return (int) (sourceOffset + newOffset + blockLength);
+	}
+}
@@ -0,0 +1,380 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Brings a destination directory tree up to date with a source tree. The
+ * source tree is walked once; each regular file is compared with the file at
+ * the same relative path under the destination by size and modification
+ * time, as rsync's quick check does, and skipped if both agree. Only the
+ * files that differ are read: a file missing from the destination, or too
+ * small to be worth a delta (see {@link Rdiff#isSmallFile}), is copied whole,
+ * and any other file that has changed is patched with a delta against the
+ * old copy, unless a sample of it finds too little in common with the old
+ * copy (see {@link DeltaEstimator}). The copying and patching run on a
+ * work-stealing pool while the walk goes on, so for a tree of mostly
+ * unchanged files the time taken is that of listing the two trees.
+ * </p>
+ *
+ * <p>
+ * With {@link #setChecksum(boolean)} a file of the same size is compared by
+ * whole-file checksum instead of modification time, which reads every such
+ * file on both sides. Files are written to a temporary file next to the
+ * destination and renamed into place, and given the modification time of
+ * the source. Files in the destination that are not in the source are left
+ * alone.
+ * </p>
+ *
+ * <p>
+ * Instances are not safe for use by several threads at once.
+ * </p>
+ *
+ * @author xuchaoguo
+ */
+public class TreeSync {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	/** The checksum configuration; copied for every file. */
+	private final Configuration config;
+
+	/** Decides which files to send whole; see {@link Rdiff#isSmallFile}. */
+	private final Rdiff policy;
+
+	/** The number of files synchronized at once. */
+	private final int parallelism;
+
+	/** Whether to compare files by checksum rather than time. */
+	private boolean checksum;
+
+	private final AtomicLong checked = new AtomicLong();
+
+	private final AtomicLong skipped = new AtomicLong();
+
+	private final AtomicLong copied = new AtomicLong();
+
+	private final AtomicLong patched = new AtomicLong();
+
+	/** The first file that failed in the last sync, or null. */
+	private volatile String failedFile;
+
+	private volatile IOException failure;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create a tree synchronizer using one thread per processor.
+	 *
+	 * @param config
+	 *            The checksum configuration.
+	 */
+	public TreeSync(Configuration config) {
+		this(config, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a tree synchronizer.
+	 *
+	 * @param config
+	 *            The checksum configuration.
+	 * @param parallelism
+	 *            The number of files synchronized at once.
+	 */
+	public TreeSync(Configuration config, int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Bad parallelism: "
+					+ parallelism);
+		this.config = (Configuration) config.clone();
+		this.policy = new Rdiff(this.config);
+		this.parallelism = parallelism;
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Compare files of the same size by whole-file checksum instead of
+	 * modification time.
+	 *
+	 * @param checksum
+	 *            Whether to compare by checksum.
+	 */
+	public void setChecksum(boolean checksum) {
+		this.checksum = checksum;
+	}
+
+	/**
+	 * Bring <code>dest</code> up to date with <code>source</code>. A file that
+	 * fails does not stop the others.
+	 *
+	 * @param source
+	 *            The directory to copy from.
+	 * @param dest
+	 *            The directory to copy to. It is created if missing.
+	 * @throws java.io.IOException
+	 *             If any file fails; the message names the first file that
+	 *             failed.
+	 */
+	public void sync(File source, File dest) throws IOException {
+		checked.set(0);
+		skipped.set(0);
+		copied.set(0);
+		patched.set(0);
+		failedFile = null;
+		failure = null;
+
+		final Path from = source.toPath();
+		final Path to = dest.toPath();
+		final ForkJoinPool pool = new ForkJoinPool(parallelism);
+		final List<Future<?>> jobs = new ArrayList<>();
+		try {
+			Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir,
+						BasicFileAttributes attrs) {
+					Path target = to.resolve(from.relativize(dir));
+					try {
+						Files.createDirectories(target);
+						return FileVisitResult.CONTINUE;
+					} catch (IOException ioe) {
+						fail(target, ioe);
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file,
+						BasicFileAttributes attrs) {
+					if (attrs.isRegularFile()) {
+						Path target = to.resolve(from.relativize(file));
+						Future<?> job = visit(pool, file, attrs, target);
+						if (job != null)
+							jobs.add(job);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file,
+						IOException ioe) {
+					fail(file, ioe);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+
+			for (Future<?> job : jobs) {
+				try {
+					job.get();
+				} catch (ExecutionException ee) {
+					// The jobs catch their own failures.
+					throw new IOException(ee.getCause());
+				}
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted syncing");
+		} finally {
+			pool.shutdownNow();
+		}
+
+		if (failure != null)
+			throw new IOException(failedFile + ": " + failure.getMessage(),
+					failure);
+	}
+
+	/**
+	 * @return The number of source files looked at in the last sync.
+	 */
+	public long getFilesChecked() {
+		return checked.get();
+	}
+
+	/**
+	 * @return The number of files the last sync found up to date.
+	 */
+	public long getFilesSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * @return The number of files the last sync copied whole, because they
+	 *         were new, small, or rewritten throughout.
+	 */
+	public long getFilesCopied() {
+		return copied.get();
+	}
+
+	/**
+	 * @return The number of files the last sync patched with a delta.
+	 */
+	public long getFilesPatched() {
+		return patched.get();
+	}
+
+	/**
+	 * Quick-check one source file against its destination on the walking
+	 * thread, and queue the work for it if it needs any.
+	 *
+	 * @return The queued job, or <code>null</code> if there is none.
+	 */
+	private Future<?> visit(ForkJoinPool pool, final Path file,
+			final BasicFileAttributes attrs, final Path target) {
+		checked.incrementAndGet();
+		BasicFileAttributes old;
+		try {
+			old = Files.readAttributes(target, BasicFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS);
+		} catch (NoSuchFileException nsfe) {
+			old = null;
+		} catch (IOException ioe) {
+			fail(target, ioe);
+			return null;
+		}
+
+		if (old != null && !old.isRegularFile()) {
+			fail(target, new IOException("Not a regular file"));
+			return null;
+		}
+		final boolean exists = old != null;
+		final boolean sameSize = exists && old.size() == attrs.size();
+		final boolean whole = !exists
+				|| policy.isSmallFile(old.size(), attrs.size());
+		if (sameSize
+				&& !checksum
+				&& old.lastModifiedTime().toMillis() == attrs
+						.lastModifiedTime().toMillis()) {
+			skipped.incrementAndGet();
+			return null;
+		}
+
+		return pool.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (exists && sameSize && checksum
+							&& sameSum(file, target)) {
+						skipped.incrementAndGet();
+					} else if (whole) {
+						copy(file, target);
+						copied.incrementAndGet();
+					} else {
+						if (patch(file, target))
+							patched.incrementAndGet();
+						else
+							copied.incrementAndGet();
+					}
+					Files.setLastModifiedTime(target, attrs.lastModifiedTime());
+				} catch (IOException ioe) {
+					fail(file, ioe);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Copy a file whole, by way of a temporary file.
+	 */
+	private void copy(Path file, Path target) throws IOException {
+		File tmp = tempFile(target);
+		try {
+			Files.copy(file, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			Files.move(tmp.toPath(), target,
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Patch the old copy of a file with a delta against its signature, by way
+	 * of a temporary file, or copy the file whole if sampling it against the
+	 * signature says a delta would not pay off (see {@link DeltaEstimator}).
+	 *
+	 * @return Whether a delta was used.
+	 */
+	private boolean patch(Path file, Path target) throws IOException {
+		Configuration c = (Configuration) config.clone();
+		File basis = target.toFile();
+		List<ChecksumPair> sums = new Generator(c).generateSums(basis);
+		ChecksumMap map = new ChecksumMap();
+		map.reset(sums);
+		DeltaEstimator estimator = new DeltaEstimator(c);
+		if (!estimator.isWorthDelta(estimator.estimate(map, file.toFile()))) {
+			copy(file, target);
+			return false;
+		}
+		Rdiff rdiff = new Rdiff(c);
+		File tmp = tempFile(target);
+		try {
+			List<Delta> deltas = rdiff.makeDeltas(sums, file.toFile());
+			rdiff.rebuildFile(basis, deltas, tmp);
+			Files.move(tmp.toPath(), target,
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmp.delete();
+			rdiff.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Whether two files have the same whole-file checksum.
+	 */
+	private boolean sameSum(Path a, Path b) throws IOException {
+		return MessageDigest.isEqual(fileSum(a), fileSum(b));
+	}
+
+	private byte[] fileSum(Path file) throws IOException {
+		MessageDigest digest = config.newStrongSum();
+		InputStream in = new BufferedInputStream(new FileInputStream(
+				file.toFile()));
+		try {
+			byte[] buf = new byte[config.chunkSize];
+			int len;
+			while ((len = in.read(buf)) != -1)
+				digest.update(buf, 0, len);
+		} finally {
+			in.close();
+		}
+		return digest.digest();
+	}
+
+	private static File tempFile(Path target) throws IOException {
+		File out = target.toFile();
+		return File.createTempFile("." + out.getName() + ".", ".tmp", out
+				.getAbsoluteFile().getParentFile());
+	}
+
+	/**
+	 * Record a failure, keeping the first.
+	 */
+	private synchronized void fail(Path file, IOException ioe) {
+		if (failure == null) {
+			failedFile = file.toString();
+			failure = ioe;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * <p>
+ * Synchronizes a file in the way rsync does, with very short strong sums in
+ * the signature and a retry on failure. Short strong sums make the signature
+ * much smaller, but let through the odd false match. A false match changes
+ * the patched file, which the whole-file checksum carried in the delta (see
+ * {@link DeltaList}) then catches. In that case the file is
+ * synchronized again with strong sums of the full digest length.
+ * </p>
+ *
+ * <p>
+ * Instances are not safe for use by several threads at once.
+ * </p>
+ *
+ * @author xuchaoguo
+ */
+public class TwoPassSync {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	/** The default strong sum length of the first pass. */
+	public static final int SHORT_STRONG_LENGTH = 2;
+
+	/** The checksum configuration of the second pass. */
+	private final Configuration config;
+
+	/** The strong sum length of the first pass. */
+	private final int shortLength;
+
+	/** The number of passes the last call to {@link #sync} took. */
+	private int passes;
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Create a two-pass synchronizer with the default short strong sum
+	 * length.
+	 *
+	 * @param config
+	 *            The checksum configuration.
+	 */
+	public TwoPassSync(Configuration config) {
+		this(config, SHORT_STRONG_LENGTH);
+	}
+
+	/**
+	 * Create a two-pass synchronizer.
+	 *
+	 * @param config
+	 *            The checksum configuration.
+	 * @param shortLength
+	 *            The strong sum length of the first pass, usually 2 to 4.
+	 *            It must be at least 1: with no strong sum at all every weak
+	 *            match would be taken as a copy.
+	 */
+	public TwoPassSync(Configuration config, int shortLength) {
+		this.config = (Configuration) config.clone();
+		int full = this.config.strongSum.getDigestLength();
+		if (full > 0)
+			this.config.strongSumLength = full;
+		if (shortLength < 1 || shortLength > this.config.strongSumLength)
+			throw new IllegalArgumentException("Bad short strong sum length: "
+					+ shortLength);
+		this.shortLength = shortLength;
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Write the contents of <code>newFile</code> to <code>out</code>, patching
+	 * <code>basis</code> with a delta made against its signature. The output
+	 * is written to a temporary file next to <code>out</code> and only renamed
+	 * into place once its whole-file checksum has been verified.
+	 *
+	 * @param basis
+	 *            The old version of the file.
+	 * @param newFile
+	 *            The new version of the file.
+	 * @param out
+	 *            The file to write the new version to. It may be
+	 *            <code>basis</code>.
+	 * @return The number of passes taken, 1 or 2.
+	 * @throws java.io.IOException
+	 *             If reading or writing fails, or if even the second pass
+	 *             does not verify.
+	 */
+	public int sync(File basis, File newFile, File out) throws IOException {
+		File tmp = File.createTempFile(out.getName(), ".tmp",
+				out.getAbsoluteFile().getParentFile());
+		try {
+			passes = 1;
+			try {
+				pass(shortLength, basis, newFile, tmp);
+			} catch (ChecksumMismatchException cme) {
+				passes = 2;
+				pass(config.strongSumLength, basis, newFile, tmp);
+			}
+			Files.move(tmp.toPath(), out.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			return passes;
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * @return The number of passes the last call to {@link #sync} took.
+	 */
+	public int getPasses() {
+		return passes;
+	}
+
+	/**
+	 * One round of signature, delta and patch with the given strong sum
+	 * length.
+	 */
+	private void pass(int strongLength, File basis, File newFile, File out)
+			throws IOException {
+		Configuration c = (Configuration) config.clone();
+		c.strongSumLength = strongLength;
+		Rdiff rdiff = new Rdiff(c);
+		try {
+			List<ChecksumPair> sums = new Generator(c).generateSums(basis);
+			List<Delta> deltas = rdiff.makeDeltas(sums, newFile);
+
+			OutputStream o = new BufferedOutputStream(new FileOutputStream(
+					out));
+			try {
+				rdiff.rebuildFile(basis, deltas, o);
+			} finally {
+				o.close();
+			}
+		} finally {
+			rdiff.close();
+		}
+	}
+}
@@ -0,0 +1,541 @@
+package com.xuchaoguo.lab.filesync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>
+ * A local store of the successive versions of one file. Every
+ * {@link #getInterval() interval}-th version is kept as a full snapshot (a
+ * keyframe); the versions in between are kept as {@link Rdiff} deltas. A copy
+ * of the latest version is kept as well, as the basis for the next commit.
+ * </p>
+ *
+ * <p>
+ * Restoring a version walks back from it to its keyframe, composes the deltas
+ * on the way with {@link Rdiff#composeDeltas(List, List)} and patches the
+ * keyframe once, so no restore takes more than one patch pass over at most
+ * <code>interval - 1</code> deltas. {@link #compact()} rewrites every delta
+ * against its keyframe, which makes later restores a single delta read.
+ * </p>
+ *
+ * <p>
+ * The index is the commit point of every change. Files are never overwritten
+ * in place: a new delta, keyframe or copy of the latest version is written
+ * under a name of its own, the index is replaced atomically, and only then
+ * are the files it no longer refers to deleted. Every file is forced to disk
+ * before it is renamed into place, and the directory after the index is, so
+ * a crash, even of the machine, leaves the store as it was before or after
+ * the change; files left over are deleted when the store is next opened.
+ * </p>
+ *
+ * <p>
+ * All methods are safe to call from several threads.
+ * </p>
+ *
+ * @author xuchaoguo
+ */
+public class VersionStore {
+
+	// Constants and variables.
+	// -----------------------------------------------------------------
+
+	/** Version store index magic. */
+	public static final int STORE_MAGIC = 0x72730436;
+
+	/** The default number of versions between two keyframes. */
+	public static final int INTERVAL = 16;
+
+	private static final String INDEX = "index";
+
+	private static final String HEAD = ".head";
+
+	/** The checksum configuration. */
+	private final Configuration config;
+
+	/** The directory holding this store. */
+	private final File dir;
+
+	/** The number of versions between two keyframes. */
+	private final int interval;
+
+	/** The index, one entry per version. */
+	private final List<Version> versions = new ArrayList<>();
+
+	/** Guards {@link #versions} and the files they refer to. */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** Serializes compactions. */
+	private final Object compaction = new Object();
+
+	// Constructors.
+	// -----------------------------------------------------------------
+
+	/**
+	 * Open or create a store with the default keyframe interval.
+	 *
+	 * @param config
+	 *            The checksum configuration.
+	 * @param dir
+	 *            The directory holding the store.
+	 * @throws java.io.IOException
+	 *             If the index cannot be read.
+	 */
+	public VersionStore(Configuration config, File dir) throws IOException {
+		this(config, dir, INTERVAL);
+	}
+
+	/**
+	 * Open or create a store. The keyframe interval of an existing store is
+	 * kept and <code>interval</code> is ignored.
+	 *
+	 * @param config
+	 *            The checksum configuration.
+	 * @param dir
+	 *            The directory holding the store.
+	 * @param interval
+	 *            The number of versions between two keyframes.
+	 * @throws java.io.IOException
+	 *             If the index cannot be read.
+	 */
+	public VersionStore(Configuration config, File dir, int interval)
+			throws IOException {
+		if (interval < 1)
+			throw new IllegalArgumentException("interval must be positive");
+		this.config = (Configuration) config.clone();
+		this.dir = dir;
+
+		File index = new File(dir, INDEX);
+		if (index.exists()) {
+			this.interval = readIndex(index);
+			clean();
+		} else {
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("Cannot create " + dir);
+			this.interval = interval;
+		}
+	}
+
+	// Instance methods.
+	// -----------------------------------------------------------------
+
+	/**
+	 * @return The number of versions between two keyframes.
+	 */
+	public int getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @return The number of versions in this store. Versions are numbered from
+	 *         0.
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return versions.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Add the current contents of <code>f</code> as the next version.
+	 *
+	 * @param f
+	 *            The new version of the file.
+	 * @return The number of the new version.
+	 * @throws java.io.IOException
+	 *             If reading or writing fails.
+	 */
+	public int commit(File f) throws IOException {
+		lock.writeLock().lock();
+		try {
+			int n = versions.size();
+			Version v;
+			if (n % interval == 0) {
+				v = new Version(n, -1);
+				copy(f, v.file());
+			} else {
+				v = new Version(n, n - 1);
+				File tmp = temp(v.file());
+				Rdiff rdiff = new Rdiff(config);
+				try {
+					List<ChecksumPair> sums = new Generator(config)
+							.generateSums(head(n - 1));
+					List<Delta> deltas;
+					InputStream in = new FileInputStream(f);
+					try {
+						deltas = rdiff.makeDeltas(sums, in);
+					} catch (NoSuchAlgorithmException nsae) {
+						throw new IOException(nsae);
+					} finally {
+						in.close();
+					}
+
+					OutputStream out = new BufferedOutputStream(
+							new FileOutputStream(tmp));
+					try {
+						rdiff.writeDeltas(deltas, out);
+					} finally {
+						out.close();
+					}
+				} finally {
+					rdiff.close();
+				}
+				rename(tmp, v.file());
+			}
+
+			copy(f, head(n));
+			versions.add(v);
+			try {
+				writeIndex();
+			} catch (IOException ioe) {
+				versions.remove(n);
+				throw ioe;
+			}
+			if (n > 0)
+				Files.deleteIfExists(head(n - 1).toPath());
+			return n;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Restore a version, writing it to <code>out</code>.
+	 *
+	 * @param version
+	 *            The version to restore.
+	 * @param out
+	 *            The OutputStream to write the version to.
+	 * @throws java.io.IOException
+	 *             If reading or writing fails.
+	 */
+	public void restore(int version, OutputStream out) throws IOException {
+		lock.readLock().lock();
+		try {
+			if (version < 0 || version >= versions.size())
+				throw new IllegalArgumentException("No version " + version);
+
+			// The latest version is kept whole.
+			if (version == versions.size() - 1) {
+				Files.copy(head(version).toPath(), out);
+				return;
+			}
+
+			Version v = versions.get(version);
+			if (v.isKeyframe()) {
+				Files.copy(v.file().toPath(), out);
+				return;
+			}
+
+			Version keyframe = versions.get(keyframe(version));
+			Rdiff rdiff = new Rdiff(config);
+			try {
+				rdiff.rebuildFile(keyframe.file(), chain(rdiff, v), out);
+			} finally {
+				rdiff.close();
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Restore a version, writing it to the file <code>f</code>.
+	 *
+	 * @param version
+	 *            The version to restore.
+	 * @param f
+	 *            The file to write the version to.
+	 * @throws java.io.IOException
+	 *             If reading or writing fails.
+	 */
+	public void restore(int version, File f) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+		try {
+			restore(version, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Rewrite every delta that is not yet relative to its keyframe as a single
+	 * delta against the keyframe.
+	 *
+	 * @return The number of deltas rewritten.
+	 * @throws java.io.IOException
+	 *             If reading or writing fails.
+	 */
+	public int compact() throws IOException {
+		synchronized (compaction) {
+			int count = 0;
+			for (int n = size() - 1; n >= 0; n--) {
+				if (compact(n))
+					count++;
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Run {@link #compact()} as a task on <code>pool</code>. Restores and
+	 * commits may run while the compaction is in progress.
+	 *
+	 * @param pool
+	 *            The executor to run the compaction on.
+	 * @return The pending result of {@link #compact()}.
+	 */
+	public Future<Integer> compact(ExecutorService pool) {
+		return pool.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws IOException {
+				return compact();
+			}
+		});
+	}
+
+	/**
+	 * Rewrite the delta of one version against its keyframe. The composed
+	 * delta is built under the read lock and swapped in under the write lock.
+	 */
+	private boolean compact(int version) throws IOException {
+		Version v;
+		Version compacted;
+		File tmp;
+		lock.readLock().lock();
+		try {
+			v = versions.get(version);
+			int keyframe = keyframe(version);
+			if (v.isKeyframe() || v.base == keyframe)
+				return false;
+
+			compacted = new Version(version, keyframe);
+			tmp = temp(compacted.file());
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(
+					tmp));
+			Rdiff rdiff = new Rdiff(config);
+			try {
+				rdiff.writeDeltas(chain(rdiff, v), out);
+			} finally {
+				rdiff.close();
+				out.close();
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		lock.writeLock().lock();
+		try {
+			rename(tmp, compacted.file());
+			versions.set(version, compacted);
+			try {
+				writeIndex();
+			} catch (IOException ioe) {
+				versions.set(version, v);
+				throw ioe;
+			}
+			Files.deleteIfExists(v.file().toPath());
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Compose the deltas from the keyframe of <code>v</code> up to
+	 * <code>v</code>, carrying the whole-file checksum of <code>v</code>.
+	 * Must be called with the lock held.
+	 */
+	private List<Delta> chain(Rdiff rdiff, Version v) throws IOException {
+		LinkedList<Version> path = new LinkedList<>();
+		for (; !v.isKeyframe(); v = versions.get(v.base))
+			path.addFirst(v);
+
+		List<Delta> deltas = null;
+		for (Version step : path) {
+			List<Delta> next = readDeltas(rdiff, step.file());
+			deltas = deltas == null ? next : rdiff.composeDeltas(deltas, next);
+		}
+		return deltas;
+	}
+
+	private int keyframe(int version) {
+		return version - version % interval;
+	}
+
+	/**
+	 * The copy of a version kept while it is the latest.
+	 */
+	private File head(int version) {
+		return new File(dir, version + HEAD);
+	}
+
+	/**
+	 * Delete the files the index does not refer to, left over by a change
+	 * that did not complete.
+	 */
+	private void clean() throws IOException {
+		Set<String> names = new HashSet<>();
+		names.add(INDEX);
+		for (Version v : versions)
+			names.add(v.file().getName());
+		if (!versions.isEmpty())
+			names.add(head(versions.size() - 1).getName());
+
+		File[] files = dir.listFiles();
+		if (files == null)
+			throw new IOException("Cannot list " + dir);
+		for (File f : files) {
+			if (!names.contains(f.getName()))
+				Files.deleteIfExists(f.toPath());
+		}
+	}
+
+	private static List<Delta> readDeltas(Rdiff rdiff, File f)
+			throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(f));
+		try {
+			return rdiff.readDeltas(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private int readIndex(File index) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(index)));
+		try {
+			int magic = in.readInt();
+			if (magic != STORE_MAGIC) {
+				throw new IOException("Bad version store header: 0x"
+						+ Integer.toHexString(magic));
+			}
+			int k = in.readInt();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				versions.add(new Version(i, in.readInt()));
+			}
+			return k;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeIndex() throws IOException {
+		File index = new File(dir, INDEX);
+		File tmp = temp(index);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp)));
+		try {
+			out.writeInt(STORE_MAGIC);
+			out.writeInt(interval);
+			out.writeInt(versions.size());
+			for (Version v : versions)
+				out.writeInt(v.base);
+		} finally {
+			out.close();
+		}
+		rename(tmp, index);
+		sync(dir);
+	}
+
+	private static File temp(File f) {
+		return new File(f.getParentFile(), f.getName() + ".tmp");
+	}
+
+	private static void copy(File from, File to) throws IOException {
+		File tmp = temp(to);
+		Files.copy(from.toPath(), tmp.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		rename(tmp, to);
+	}
+
+	/**
+	 * Force a file to disk, then rename it into place. The rename itself is
+	 * durable once the directory is synced.
+	 */
+	private static void rename(File from, File to) throws IOException {
+		FileChannel ch = FileChannel.open(from.toPath(),
+				StandardOpenOption.WRITE);
+		try {
+			ch.force(true);
+		} finally {
+			ch.close();
+		}
+		Files.move(from.toPath(), to.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Force the entries of a directory to disk, so that the renames into it
+	 * survive a crash.
+	 */
+	private static void sync(File dir) throws IOException {
+		FileChannel ch;
+		try {
+			ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+		} catch (IOException ioe) {
+			// Some platforms cannot open a directory; their renames are as
+			// durable as they get.
+			return;
+		}
+		try {
+			ch.force(true);
+		} finally {
+			ch.close();
+		}
+	}
+
+	/**
+	 * An index entry: a version and the version its delta applies to, or -1
+	 * for a keyframe. The file of a delta is named after both, so that
+	 * rewriting it against another version never overwrites the file the
+	 * index refers to.
+	 */
+	private class Version {
+		final int number;
+
+		final int base;
+
+		Version(int number, int base) {
+			this.number = number;
+			this.base = base;
+		}
+
+		boolean isKeyframe() {
+			return base < 0;
+		}
+
+		File file() {
+			return new File(dir, isKeyframe() ? number + ".snap" : number + "."
+					+ base + ".delta");
+		}
+	}
+}
@@ -1,14 +1,22 @@
 package com.xuchaoguo.lab.rync;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.security.Security;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
+import com.xuchaoguo.lab.filesync.ChecksumMismatchException;
 import com.xuchaoguo.lab.filesync.ChecksumPair;
 import com.xuchaoguo.lab.filesync.Configuration;
 import com.xuchaoguo.lab.filesync.Delta;
+import com.xuchaoguo.lab.filesync.DeltaList;
 import com.xuchaoguo.lab.filesync.Rdiff;
 import com.xuchaoguo.lab.filesync.RsyncProvider;
 
@@ -20,9 +28,16 @@ import junit.framework.TestSuite;
  * Unit test for simple App.
  */
 public class AppTest extends TestCase {
+
+	private File dir;
+
+	private File client;
+
+	private File server;
+
 	/**
 	 * Create the test case
-	 * 
+	 *
 	 * @param testName
 	 *            name of the test case
 	 */
@@ -37,45 +52,135 @@ public class AppTest extends TestCase {
 		return new TestSuite(AppTest.class);
 	}
 
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("app").toFile();
+		client = new File(dir, "client.doc");
+		server = new File(dir, "server.doc");
+
+		// 服务器上的文件：修改了客户端文件中的几处，末尾追加了新数据。
+		Random rnd = new Random(34);
+		byte[] data = new byte[100000];
+		rnd.nextBytes(data);
+		write(client, data);
+		data = Arrays.copyOf(data, data.length + 3000);
+		for (int i = 0; i < data.length; i++) {
+			if (i % 20000 == 7 || i >= data.length - 3000)
+				data[i] = (byte) rnd.nextInt();
+		}
+		write(server, data);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
 	/**
 	 * Rigourous Test :-)
 	 */
-	public void testApp() {
-		Security.addProvider(new RsyncProvider());
+	public void testApp() throws Exception {
+		Configuration c = new Configuration();
+		Rdiff rdf = new Rdiff(c);
+		File sig = new File(dir, "sig.txt");
+		File delta = new File(dir, "delta.txt");
+		File latest = new File(dir, "latest.doc");
+
+		// 1. 计算获得客户端（待同步文件）的文件签名
+		List<ChecksumPair> pairs = rdf.makeSignatures(new FileInputStream(
+				client));
+		// 2. 将文件签名写入输出流
+		rdf.writeSignatures(pairs, new FileOutputStream(sig));
+		// 3. 从输入流中读取解析文件签名
+		List<ChecksumPair> pairs2 = rdf.readSignatures(new FileInputStream(
+				sig));
+
+		// 4. 根据签名文件，服务器与最新文件比较得出差异（增量文件）
+		List<Delta> deltas = rdf.makeDeltas(pairs2, new FileInputStream(
+				server));
+		// 5. 服务器保存差异文件到输出流
+		rdf.writeDeltas(deltas, new FileOutputStream(delta));
+		// 6. 客户端读取差异流
+		List<Delta> deltas2 = rdf.readDeltas(new FileInputStream(delta));
+		// 7. 客户端根据差异流，生成最新的文件
+		rdf.rebuildFile(client, deltas2, new FileOutputStream(latest));
+
+		// 8. 比较文件是否同步完成
+		// 差异流末尾带有新文件的整文件摘要，rebuildFile 边写边计算并在结束时校验，
+		// 不一致时抛出 ChecksumMismatchException
+		assertNotNull(DeltaList.getFileSum(deltas2));
+		assertTrue(Arrays.equals(DeltaList.getFileSum(deltas),
+				DeltaList.getFileSum(deltas2)));
+		assertTrue(Arrays.equals(Files.readAllBytes(server.toPath()),
+				Files.readAllBytes(latest.toPath())));
+	}
+
+	/**
+	 * 差异中的数据被改动后，打补丁应因整文件摘要不符而失败。
+	 */
+	public void testCorruptDelta() throws Exception {
+		Rdiff rdf = new Rdiff(new Configuration());
+		List<Delta> deltas = rdf.makeDeltas(signatures(rdf), server);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		rdf.writeDeltas(deltas, out);
+
+		// 新文件以字面数据结尾，摘要和 OP_END 之前的一个字节就是字面数据。
+		byte[] delta = out.toByteArray();
+		delta[delta.length - DeltaList.getFileSum(deltas).length - 2]++;
+		List<Delta> corrupt = rdf.readDeltas(new ByteArrayInputStream(delta));
+		try {
+			rdf.rebuildFile(client, corrupt, new ByteArrayOutputStream());
+			fail("Corrupt delta applied");
+		} catch (ChecksumMismatchException expected) {
+		}
+	}
+
+	/**
+	 * 一个流中连续的两个差异：读取第一个时不能读到第二个的数据；
+	 * 同一个 Rdiff 交替处理不同的差异，各自按自己的摘要校验。
+	 */
+	public void testConsecutiveDeltas() throws Exception {
+		Rdiff rdf = new Rdiff(new Configuration());
+		List<ChecksumPair> sums = signatures(rdf);
+		List<Delta> toServer = rdf.makeDeltas(sums, server);
+		List<Delta> toClient = rdf.makeDeltas(sums, client);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		rdf.writeDeltas(toServer, out);
+		rdf.writeDeltas(toClient, out);
+
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		List<Delta> first = rdf.readDeltas(in);
+		List<Delta> second = rdf.readDeltas(in);
+		assertEquals(-1, in.read());
+
+		ByteArrayOutputStream patched = new ByteArrayOutputStream();
+		rdf.rebuildFile(client, first, patched);
+		assertTrue(Arrays.equals(Files.readAllBytes(server.toPath()),
+				patched.toByteArray()));
+		patched.reset();
+		rdf.rebuildFile(client, second, patched);
+		assertTrue(Arrays.equals(Files.readAllBytes(client.toPath()),
+				patched.toByteArray()));
+	}
+
+	private List<ChecksumPair> signatures(Rdiff rdf) throws Exception {
+		FileInputStream in = new FileInputStream(client);
+		try {
+			return rdf.makeSignatures(in);
+		} finally {
+			in.close();
+		}
+	}
 
+	private static void write(File f, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
 		try {
-			Configuration c = new Configuration();
-			Rdiff rdf = new Rdiff(c);
-			// 1. 计算获得客户端（待同步文件）的文件签名
-			List<ChecksumPair> pairs = rdf.makeSignatures(new FileInputStream(
-					"/Users/xuchaoguo/temp/rsync/sig/client.doc"));
-			// 2. 将文件签名写入输出流
-			rdf.writeSignatures(pairs, new FileOutputStream(
-					"/Users/xuchaoguo/temp/rsync/sig/sig.txt"));
-			// 3. 从输入流中读取解析文件签名
-			List<ChecksumPair> pairs2 = rdf.readSignatures(new FileInputStream(
-					"/Users/xuchaoguo/temp/rsync/sig/sig.txt"));
-
-			// 4. 根据签名文件，服务器与最新文件比较得出差异（增量文件）
-			List<Delta> deltas = rdf.makeDeltas(pairs2, new FileInputStream(
-					"/Users/xuchaoguo/temp/rsync/sig/server.doc"));
-			// 5. 服务器保存差异文件到输出流
-			rdf.writeDeltas(deltas, new FileOutputStream(
-					"/Users/xuchaoguo/temp/rsync/sig/delta.txt"));
-			// 6. 客户端读取差异流
-			List<Delta> deltas2 = rdf.readDeltas(new FileInputStream(
-					"/Users/xuchaoguo/temp/rsync/sig/delta.txt"));
-			// 7. 客户端根据差异流，生成最新的文件
-			rdf.rebuildFile(new File(
-					"/Users/xuchaoguo/temp/rsync/sig/client.doc"), deltas2,
-					new FileOutputStream(
-							"/Users/xuchaoguo/temp/rsync/sig/latest.doc"));
-
-			// 8. 比较文件是否同步完成
-			// TODO:
-
-		} catch (Exception e) {
-			e.printStackTrace();
+			out.write(data);
+		} finally {
+			out.close();
 		}
 	}
 }
@@ -0,0 +1,167 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.xuchaoguo.lab.filesync.ChecksumMismatchException;
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.DataBlock;
+import com.xuchaoguo.lab.filesync.Delta;
+import com.xuchaoguo.lab.filesync.DeltaList;
+import com.xuchaoguo.lab.filesync.Rdiff;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试整个发送的小文件：批量写出与读回，以及何时整个发送。
+ */
+public class BatchTest extends TestCase {
+
+	private File dir;
+
+	private Configuration config;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("batch").toFile();
+		config = new Configuration();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 空文件、小文件和跨越多个块的大文件批量写出后原样读回，顺序不变。
+	 */
+	public void testRoundTrip() throws Exception {
+		int[] lengths = { 0, 10, config.smallFileLength - 1,
+				3 * config.chunkSize + 5 };
+		String[] names = new String[lengths.length];
+		File[] files = new File[lengths.length];
+		byte[][] contents = new byte[lengths.length][];
+		Random rnd = new Random(43);
+		for (int i = 0; i < lengths.length; i++) {
+			names[i] = "f" + i;
+			files[i] = new File(dir, names[i]);
+			contents[i] = new byte[lengths[i]];
+			rnd.nextBytes(contents[i]);
+			write(files[i], contents[i]);
+		}
+
+		Rdiff rdf = new Rdiff(config);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		rdf.writeBatch(names, files, out);
+		Map<String, byte[]> read = rdf.readBatch(new ByteArrayInputStream(out
+				.toByteArray()));
+
+		assertEquals(Arrays.asList(names), new ArrayList<>(read.keySet()));
+		for (int i = 0; i < names.length; i++)
+			assertTrue(names[i], Arrays.equals(contents[i], read
+					.get(names[i])));
+	}
+
+	/**
+	 * 批中的数据损坏时，整文件校验和不符。
+	 */
+	public void testCorruptBatch() throws Exception {
+		byte[] data = new byte[1000];
+		new Random(44).nextBytes(data);
+		File f = new File(dir, "f");
+		write(f, data);
+
+		Rdiff rdf = new Rdiff(config);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		rdf.writeBatch(new String[] { "f" }, new File[] { f }, out);
+		byte[] batch = out.toByteArray();
+		batch[batch.length / 2]++;
+		try {
+			rdf.readBatch(new ByteArrayInputStream(batch));
+			fail("Read a corrupt batch");
+		} catch (ChecksumMismatchException expected) {
+		}
+	}
+
+	/**
+	 * 小于 smallFileLength 的数据是一个字面块；更长的数据按 chunkSize 分块，
+	 * 拼起来仍是原数据，校验和也相同。
+	 */
+	public void testLiteralChunks() throws Exception {
+		Rdiff rdf = new Rdiff(config);
+		Random rnd = new Random(45);
+
+		byte[] small = new byte[config.smallFileLength - 1];
+		rnd.nextBytes(small);
+		List<Delta> deltas = rdf.makeLiteralDeltas(new ByteArrayInputStream(
+				small));
+		assertEquals(1, deltas.size());
+		assertTrue(Arrays.equals(small, ((DataBlock) deltas.get(0))
+				.getData()));
+
+		byte[] large = new byte[5 * config.chunkSize / 2];
+		rnd.nextBytes(large);
+		deltas = rdf.makeLiteralDeltas(new ByteArrayInputStream(large));
+		assertEquals(3, deltas.size());
+		ByteArrayOutputStream joined = new ByteArrayOutputStream();
+		for (Delta delta : deltas) {
+			assertEquals(joined.size(), delta.getWriteOffset());
+			assertTrue(delta.getBlockLength() <= config.chunkSize);
+			((DataBlock) delta).writeTo(joined);
+		}
+		assertTrue(Arrays.equals(large, joined.toByteArray()));
+		assertTrue(Arrays.equals(config.newStrongSum().digest(large),
+				DeltaList.getFileSum(deltas)));
+
+		assertTrue(rdf.makeLiteralDeltas(
+				new ByteArrayInputStream(new byte[0])).isEmpty());
+	}
+
+	/**
+	 * 新文件短于 smallFileLength、没有旧文件，或旧文件的签名不比新文件短时，
+	 * 整个发送；否则交换签名。
+	 */
+	public void testIsSmallFile() {
+		Rdiff rdf = new Rdiff(config);
+		int block = config.blockLength;
+		int small = config.smallFileLength;
+		long record = 4 + config.strongSumLength;
+
+		assertTrue(rdf.isSmallFile(100 * block, small - 1));
+		assertFalse(rdf.isSmallFile(100 * block, small));
+		assertTrue(rdf.isSmallFile(0, small));
+		assertTrue(rdf.isSmallFile(0, 1L << 30));
+
+		// 签名长 12 + 块数 * record 字节。
+		long blocks = 10000;
+		long sigLength = 12 + blocks * record;
+		assertTrue(rdf.isSmallFile(blocks * block, sigLength));
+		assertFalse(rdf.isSmallFile(blocks * block, sigLength + 1));
+		// 不满一块的尾部也算一块。
+		assertTrue(rdf.isSmallFile(blocks * block - 1, sigLength));
+		assertFalse(rdf.isSmallFile((blocks - 1) * block, sigLength));
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
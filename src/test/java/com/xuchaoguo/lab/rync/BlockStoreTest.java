@@ -0,0 +1,185 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.xuchaoguo.lab.filesync.BlockStore;
+import com.xuchaoguo.lab.filesync.ChecksumPair;
+import com.xuchaoguo.lab.filesync.ChecksumPair.StrongKey;
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.DataBlock;
+import com.xuchaoguo.lab.filesync.Delta;
+import com.xuchaoguo.lab.filesync.Rdiff;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试按内容寻址的块存储。
+ */
+public class BlockStoreTest extends TestCase {
+
+	private File dir;
+
+	private File store;
+
+	private Configuration config;
+
+	/** 长度不是块长整数倍的文件，其后的块在包文件中不按块长对齐。 */
+	private byte[] first;
+
+	private byte[] second;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("blocks").toFile();
+		store = new File(dir, "store");
+		config = new Configuration();
+
+		Random rnd = new Random(47);
+		first = new byte[10500];
+		rnd.nextBytes(first);
+		second = new byte[30000];
+		rnd.nextBytes(second);
+		// 第二个文件的开头与第一个文件相同。
+		System.arraycopy(first, 0, second, 0, 2 * config.blockLength);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		delete(dir);
+	}
+
+	/**
+	 * 相同的块只保存一次；回收后仍被引用的块可以读出，重新打开后也一样。
+	 */
+	public void testGc() throws Exception {
+		BlockStore bs = new BlockStore(config, store);
+		List<StrongKey> a = bs.putFile(file("first", first));
+		List<StrongKey> b = bs.putFile(file("second", second));
+		int blocks = (first.length + config.blockLength - 1)
+				/ config.blockLength
+				+ (second.length + config.blockLength - 1)
+				/ config.blockLength;
+		assertEquals(blocks - 2, bs.size());
+
+		bs.release(a);
+		assertEquals(first.length - 2 * config.blockLength, bs.gc());
+		assertEquals(b.size(), bs.size());
+		assertEquals(second.length, bs.getPackFile().length());
+		assertFile(bs, b, second);
+		try {
+			bs.read(a.get(a.size() - 1));
+			fail("Read a collected block");
+		} catch (IOException expected) {
+		}
+
+		// 多释放一次引用应失败，且不改变引用计数。
+		try {
+			bs.release(Arrays.asList(b.get(0), b.get(0)));
+			fail("Released an unreferenced block");
+		} catch (IOException expected) {
+		}
+		bs.close();
+
+		bs = new BlockStore(config, store);
+		try {
+			assertEquals(b.size(), bs.size());
+			assertFile(bs, b, second);
+			bs.release(b);
+			assertEquals(second.length, bs.gc());
+			assertEquals(0, bs.size());
+		} finally {
+			bs.close();
+		}
+	}
+
+	/**
+	 * 把包文件当作另一个旧文件同步，签名经过写出和读回；
+	 * 回收之后重新取签名再同步一次。
+	 */
+	public void testMatchAgainstPack() throws Exception {
+		BlockStore bs = new BlockStore(config, store);
+		try {
+			List<StrongKey> a = bs.putFile(file("first", first));
+			bs.putFile(file("second", second));
+
+			// 新文件：第二个文件改动几个字节。
+			byte[] data = second.clone();
+			Random rnd = new Random(470);
+			for (int i = 0; i < 3; i++)
+				data[rnd.nextInt(data.length)]++;
+			File basis = file("basis", new byte[100]);
+			assertSync(bs, basis, data);
+
+			bs.release(a);
+			assertTrue(bs.gc() > 0);
+			assertSync(bs, basis, data);
+		} finally {
+			bs.close();
+		}
+	}
+
+	private void assertSync(BlockStore bs, File basis, byte[] data)
+			throws Exception {
+		Rdiff rdf = new Rdiff(config);
+		List<ChecksumPair> sums = new ArrayList<>(
+				rdf.makeSignatures(new File[] { basis }));
+		sums.addAll(bs.getSignatures(config.strongSumLength, 1));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		rdf.writeSignatures(sums, out);
+		List<Delta> deltas = rdf.makeDeltas(rdf
+				.readSignatures(new ByteArrayInputStream(out.toByteArray())),
+				new ByteArrayInputStream(data));
+
+		long copied = 0;
+		for (Delta delta : deltas) {
+			if (!(delta instanceof DataBlock))
+				copied += delta.getBlockLength();
+		}
+		assertTrue(copied >= data.length - 6 * config.blockLength);
+
+		ByteArrayOutputStream patched = new ByteArrayOutputStream();
+		rdf.rebuildFile(new File[] { basis, bs.getPackFile() }, deltas,
+				patched);
+		assertTrue(Arrays.equals(data, patched.toByteArray()));
+	}
+
+	private static void assertFile(BlockStore bs, List<StrongKey> keys,
+			byte[] data) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (StrongKey key : keys)
+			out.write(bs.read(key));
+		assertTrue(Arrays.equals(data, out.toByteArray()));
+	}
+
+	private File file(String name, byte[] data) throws IOException {
+		File f = new File(dir, name);
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		return f;
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c : children)
+				delete(c);
+		}
+		f.delete();
+	}
+}
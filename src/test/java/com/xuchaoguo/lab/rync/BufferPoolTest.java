@@ -0,0 +1,167 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.xuchaoguo.lab.filesync.BufferPool;
+import com.xuchaoguo.lab.filesync.ChecksumPair;
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.DataBlock;
+import com.xuchaoguo.lab.filesync.Delta;
+import com.xuchaoguo.lab.filesync.Rdiff;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试字面数据直接引用池中的缓冲区。
+ */
+public class BufferPoolTest extends TestCase {
+
+	private File dir;
+
+	private File basis;
+
+	private byte[] old;
+
+	private Configuration config;
+
+	private BufferPool pool;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("pool").toFile();
+		config = new Configuration();
+		// 缓冲区很少，每次搜索都要复用别的搜索用过的缓冲区。
+		pool = new BufferPool(2, config.chunkSize);
+
+		old = new byte[60000];
+		new Random(50).nextBytes(old);
+		basis = new File(dir, "basis");
+		FileOutputStream out = new FileOutputStream(basis);
+		try {
+			out.write(old);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 未释放的数据块占着缓冲区：之后的搜索复用池中的缓冲区，
+	 * 不能改动它们的数据。
+	 */
+	public void testKeptBlocks() throws Exception {
+		Rdiff rdf = new Rdiff(config);
+		rdf.setBufferPool(pool);
+		byte[] first = newData(1);
+		List<Delta> kept = rdf.makeDeltas(signatures(rdf), data(first));
+		for (int i = 2; i < 5; i++) {
+			byte[] data = newData(i);
+			List<Delta> deltas = rdf.makeDeltas(signatures(rdf), data(data));
+			assertTrue(Arrays.equals(data, patch(rdf, deltas)));
+			release(deltas);
+		}
+		assertTrue(Arrays.equals(first, patch(rdf, kept)));
+		release(kept);
+	}
+
+	/**
+	 * 目标复制展开成池中缓冲区的切片，结果不变。
+	 */
+	public void testTargetCopies() throws Exception {
+		config.doTargetCopies = true;
+		Rdiff rdf = new Rdiff(config);
+		rdf.setBufferPool(pool);
+		byte[] data = newData(5);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(data);
+		out.write(data, 0, 50000);
+		data = out.toByteArray();
+		List<Delta> deltas = rdf.makeDeltas(signatures(rdf), data(data));
+		assertTrue(Arrays.equals(data, patch(rdf, deltas)));
+		release(deltas);
+	}
+
+	/**
+	 * 释放之后读取池中缓冲区上的数据块应失败，而不是读到别的数据。
+	 */
+	public void testReleased() throws Exception {
+		Rdiff rdf = new Rdiff(config);
+		rdf.setBufferPool(pool);
+		List<Delta> deltas = rdf.makeDeltas(signatures(rdf),
+				data(newData(6)));
+		release(deltas);
+		int failed = 0;
+		for (Delta delta : deltas) {
+			if (!(delta instanceof DataBlock))
+				continue;
+			try {
+				((DataBlock) delta).getData();
+			} catch (IllegalStateException expected) {
+				failed++;
+			}
+		}
+		assertTrue(failed > 0);
+		// 重复释放无害。
+		release(deltas);
+	}
+
+	/**
+	 * 新文件：在旧文件的几处插入新数据。
+	 */
+	private byte[] newData(long seed) {
+		Random rnd = new Random(seed);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int at = 0; at < old.length; at += 15000) {
+			byte[] inserted = new byte[1000 + rnd.nextInt(20000)];
+			rnd.nextBytes(inserted);
+			out.write(inserted, 0, inserted.length);
+			out.write(old, at, Math.min(15000, old.length - at));
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * 写出、读回差异并打补丁。
+	 */
+	private byte[] patch(Rdiff rdf, List<Delta> deltas) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		rdf.writeDeltas(deltas, out);
+		List<Delta> read = rdf.readDeltas(new ByteArrayInputStream(out
+				.toByteArray()));
+		out.reset();
+		rdf.rebuildFile(basis, read, out);
+		return out.toByteArray();
+	}
+
+	private List<ChecksumPair> signatures(Rdiff rdf) throws Exception {
+		return rdf.makeSignatures(new ByteArrayInputStream(old));
+	}
+
+	private static ByteArrayInputStream data(byte[] data) {
+		return new ByteArrayInputStream(data);
+	}
+
+	private static void release(List<Delta> deltas) {
+		for (Delta delta : deltas) {
+			if (delta instanceof DataBlock)
+				((DataBlock) delta).release();
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.Delta;
+import com.xuchaoguo.lab.filesync.Rdiff;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试连续差异的合并。
+ */
+public class ComposeDeltasTest extends TestCase {
+
+	private static final int VERSIONS = 5;
+
+	private File dir;
+
+	private byte[][] versions;
+
+	/** 第 i 个差异把第 i 个版本变成第 i + 1 个版本，已写出并读回。 */
+	private byte[][] deltas;
+
+	private Configuration config;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("compose").toFile();
+		config = new Configuration();
+
+		Random rnd = new Random(28);
+		versions = new byte[VERSIONS][];
+		versions[0] = new byte[120000];
+		rnd.nextBytes(versions[0]);
+		for (int i = 1; i < VERSIONS; i++)
+			versions[i] = edit(versions[i - 1], rnd);
+
+		deltas = new byte[VERSIONS - 1][];
+		for (int i = 0; i < VERSIONS - 1; i++) {
+			Rdiff rdf = new Rdiff(config);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			rdf.writeDeltas(rdf.makeDeltas(rdf
+					.makeSignatures(new ByteArrayInputStream(versions[i])),
+					new ByteArrayInputStream(versions[i + 1])), out);
+			deltas[i] = out.toByteArray();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 依次合并整条差异链，用第一个版本打补丁应得到最后一个版本。
+	 */
+	public void testChain() throws Exception {
+		Rdiff rdf = new Rdiff(config);
+		List<Delta> composed = read(rdf, deltas[0]);
+		for (int i = 1; i < deltas.length; i++)
+			composed = rdf.composeDeltas(composed, read(rdf, deltas[i]));
+
+		// 合并的结果经过一次写出和读回。
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		rdf.writeDeltas(composed, out);
+		assertTrue(Arrays.equals(versions[VERSIONS - 1],
+				patch(versions[0], read(rdf, out.toByteArray()))));
+	}
+
+	/**
+	 * 从流中读取两个差异并合并。
+	 */
+	public void testStreams() throws Exception {
+		Rdiff rdf = new Rdiff(config);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		rdf.composeDeltas(new ByteArrayInputStream(deltas[0]),
+				new ByteArrayInputStream(deltas[1]), out);
+		assertTrue(Arrays.equals(versions[2],
+				patch(versions[0], read(rdf, out.toByteArray()))));
+	}
+
+	private List<Delta> read(Rdiff rdf, byte[] delta) throws IOException {
+		return rdf.readDeltas(new ByteArrayInputStream(delta));
+	}
+
+	private byte[] patch(byte[] basis, List<Delta> deltas) throws Exception {
+		File f = new File(dir, "basis");
+		write(f, basis);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new Rdiff(config).rebuildFile(f, deltas, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * 删除一段、插入一段并修改几个字节。
+	 */
+	private static byte[] edit(byte[] data, Random rnd) {
+		int del = rnd.nextInt(data.length - 5000);
+		byte[] inserted = new byte[1000 + rnd.nextInt(4000)];
+		rnd.nextBytes(inserted);
+		int ins = rnd.nextInt(data.length - 3000);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(data, 0, del);
+		out.write(data, del + 3000, data.length - del - 3000);
+		byte[] b = out.toByteArray();
+		out.reset();
+		out.write(b, 0, ins);
+		out.write(inserted, 0, inserted.length);
+		out.write(b, ins, b.length - ins);
+		b = out.toByteArray();
+		for (int i = 0; i < 5; i++)
+			b[rnd.nextInt(b.length)]++;
+		return b;
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.xuchaoguo.lab.filesync.ChecksumPair;
+import com.xuchaoguo.lab.filesync.ConcurrentChecksumMap;
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.Delta;
+import com.xuchaoguo.lab.filesync.DeltaList;
+import com.xuchaoguo.lab.filesync.DeltaSink;
+import com.xuchaoguo.lab.filesync.Matcher;
+import com.xuchaoguo.lab.filesync.Offsets;
+import com.xuchaoguo.lab.filesync.Rdiff;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试边读签名边搜索：签名读完前找不到的块在读完后重新搜索，
+ * 结果与对完整签名的搜索相同；暂存的差异超过 MAX_HELD_LENGTH 时，
+ * 搜索等待签名读完。
+ */
+public class ConcurrentSearchTest extends TestCase {
+
+	private File dir;
+
+	private File basis;
+
+	private byte[] old;
+
+	private Configuration config;
+
+	private List<ChecksumPair> sums;
+
+	private ExecutorService pool;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("concurrent").toFile();
+		config = new Configuration();
+		old = new byte[500 * config.blockLength + 77];
+		new Random(37).nextBytes(old);
+		basis = new File(dir, "basis");
+		FileOutputStream out = new FileOutputStream(basis);
+		try {
+			out.write(old);
+		} finally {
+			out.close();
+		}
+		sums = new Rdiff(config).makeSignatures(new ByteArrayInputStream(old));
+		pool = Executors.newSingleThreadExecutor();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		pool.shutdownNow();
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 搜索开始时签名只有后一半；搜索读完新数据后才加入前一半。
+	 * 新数据先用前一半的块，所以这些块都要在重新搜索时找到。
+	 */
+	public void testLateSignatures() throws Exception {
+		int half = sums.size() / 2;
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		Random rnd = new Random(38);
+		for (int i = 0; i < 40; i++) {
+			int block = rnd.nextInt(sums.size() - 1);
+			data.write(old, block * config.blockLength, config.blockLength);
+			byte[] inserted = new byte[rnd.nextInt(300)];
+			rnd.nextBytes(inserted);
+			data.write(inserted);
+		}
+		byte[] newData = data.toByteArray();
+
+		ConcurrentChecksumMap map = new ConcurrentChecksumMap();
+		for (ChecksumPair pair : sums.subList(half, sums.size()))
+			map.add(pair);
+		Search search = new Search(map, new ByteArrayInputStream(newData));
+		Future<List<Delta>> result = pool.submit(search);
+		awaitBlocked(search);
+		assertFalse(result.isDone());
+
+		for (ChecksumPair pair : sums.subList(0, half))
+			map.add(pair);
+		map.finish();
+		check(result.get(), search.matcher, newData);
+	}
+
+	/**
+	 * 签名一直不完整时，暂存的差异达到 MAX_HELD_LENGTH 后搜索停下等待，
+	 * 不再读新数据，也不交出差异；签名读完后结果与完整签名的搜索相同。
+	 */
+	public void testHeldLengthBound() throws Exception {
+		int bound = Matcher.MAX_HELD_LENGTH;
+		byte[] newData = new byte[bound + bound / 2];
+		new Random(39).nextBytes(newData);
+		// 末尾是旧文件的一段，签名读完后才找得到。
+		System.arraycopy(old, 0, newData, newData.length - old.length,
+				old.length);
+
+		ConcurrentChecksumMap map = new ConcurrentChecksumMap();
+		Search search = new Search(map, new ByteArrayInputStream(newData));
+		Future<List<Delta>> result = pool.submit(search);
+		awaitBlocked(search);
+		assertFalse(result.isDone());
+		assertTrue(search.read.get() >= bound);
+		assertTrue(search.read.get() < bound + bound / 4);
+		assertEquals(0, search.deltas.size());
+
+		for (ChecksumPair pair : sums)
+			map.add(pair);
+		map.finish();
+		check(result.get(), search.matcher, newData);
+	}
+
+	/**
+	 * 重建结果正确，整文件校验和正确，复制的字节数与完整签名的搜索相同。
+	 */
+	private void check(List<Delta> deltas, Matcher matcher, byte[] newData)
+			throws Exception {
+		assertTrue(Arrays.equals(config.newStrongSum().digest(newData),
+				matcher.getFileSum()));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new Rdiff(config).rebuildFile(basis, new DeltaList(deltas, matcher
+				.getFileSum()), out);
+		assertTrue(Arrays.equals(newData, out.toByteArray()));
+
+		ConcurrentChecksumMap complete = new ConcurrentChecksumMap();
+		for (ChecksumPair pair : sums)
+			complete.add(pair);
+		complete.finish();
+		List<Delta> expected = new Matcher((Configuration) config.clone())
+				.hashSearch(complete, new ByteArrayInputStream(newData));
+		assertEquals(copied(expected), copied(deltas));
+		assertTrue(copied(deltas) > 0);
+	}
+
+	/**
+	 * 等搜索线程停在等待签名处。
+	 */
+	private static void awaitBlocked(Search search) throws Exception {
+		long deadline = System.currentTimeMillis() + 30000;
+		while (search.thread == null
+				|| search.thread.getState() != Thread.State.WAITING) {
+			assertTrue("Search did not wait",
+					System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private static long copied(List<Delta> deltas) {
+		long n = 0;
+		for (Delta delta : deltas) {
+			if (delta instanceof Offsets)
+				n += delta.getBlockLength();
+		}
+		return n;
+	}
+
+	/**
+	 * 在线程池中搜索，记下读了多少新数据和交出了哪些差异。
+	 */
+	private class Search implements Callable<List<Delta>> {
+
+		final ConcurrentChecksumMap map;
+
+		final InputStream in;
+
+		final Matcher matcher = new Matcher((Configuration) config.clone());
+
+		final AtomicLong read = new AtomicLong();
+
+		final List<Delta> deltas = Collections
+				.synchronizedList(new ArrayList<Delta>());
+
+		volatile Thread thread;
+
+		Search(ConcurrentChecksumMap map, InputStream in) {
+			this.map = map;
+			this.in = new FilterInputStream(in) {
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					if (n > 0)
+						read.addAndGet(n);
+					return n;
+				}
+			};
+		}
+
+		@Override
+		public List<Delta> call() throws IOException {
+			thread = Thread.currentThread();
+			matcher.hashSearch(map, in, new DeltaSink() {
+				@Override
+				public void add(Delta delta) {
+					deltas.add(delta);
+				}
+			});
+			return deltas;
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.xuchaoguo.lab.filesync.ChecksumPair;
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.DeltaEstimator;
+import com.xuchaoguo.lab.filesync.DeltaEstimator.Estimate;
+import com.xuchaoguo.lab.filesync.Rdiff;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试抽样估计匹配比例及其 Wilson 置信区间。
+ */
+public class DeltaEstimatorTest extends TestCase {
+
+	private static final double Z2 = 1.96 * 1.96;
+
+	private File dir;
+
+	private File f;
+
+	private byte[] old;
+
+	private Configuration config;
+
+	private List<ChecksumPair> sums;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("estimator").toFile();
+		f = new File(dir, "new");
+		config = new Configuration();
+		old = new byte[100 * config.blockLength];
+		new Random(44).nextBytes(old);
+		sums = new Rdiff(config).makeSignatures(new ByteArrayInputStream(old));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File c : dir.listFiles())
+			c.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 没有变化的文件每个样本都匹配；下界为 n / (n + z²)。
+	 */
+	public void testUnchanged() throws Exception {
+		write(f, old);
+		DeltaEstimator estimator = new DeltaEstimator(config);
+		Estimate estimate = estimator.estimate(sums, f);
+		int n = DeltaEstimator.SAMPLES;
+		assertEquals(n, estimate.getSamples());
+		assertEquals(n, estimate.getHits());
+		assertEquals(1.0, estimate.getMatchRatio(), 0);
+		assertEquals(n / (n + Z2), estimate.getLowerBound(), 1e-9);
+		assertEquals(1.0, estimate.getUpperBound(), 1e-9);
+		assertTrue(estimator.isWorthDelta(estimate));
+	}
+
+	/**
+	 * 整个重写的文件没有样本匹配；上界为 z² / (n + z²)，低于默认门槛。
+	 */
+	public void testRewritten() throws Exception {
+		byte[] data = new byte[old.length];
+		new Random(45).nextBytes(data);
+		write(f, data);
+		DeltaEstimator estimator = new DeltaEstimator(config);
+		Estimate estimate = estimator.estimate(sums, f);
+		int n = DeltaEstimator.SAMPLES;
+		assertEquals(0, estimate.getHits());
+		assertEquals(0.0, estimate.getMatchRatio(), 0);
+		assertEquals(0.0, estimate.getLowerBound(), 1e-9);
+		assertEquals(Z2 / (n + Z2), estimate.getUpperBound(), 1e-9);
+		assertFalse(estimator.isWorthDelta(estimate));
+
+		estimator.setMinMatchRatio(0.05);
+		assertTrue(estimator.isWorthDelta(estimate));
+	}
+
+	/**
+	 * 前一半不变、后一半重写，十个样本中五个匹配：95% 区间为 [0.2366, 0.7634]。
+	 */
+	public void testHalfChanged() throws Exception {
+		byte[] data = old.clone();
+		byte[] tail = new byte[old.length / 2];
+		new Random(46).nextBytes(tail);
+		System.arraycopy(tail, 0, data, old.length / 2, tail.length);
+		write(f, data);
+
+		Estimate estimate = new DeltaEstimator(config, 10).estimate(sums, f);
+		assertEquals(10, estimate.getSamples());
+		assertEquals(5, estimate.getHits());
+		assertEquals(0.5, estimate.getMatchRatio(), 0);
+		assertEquals(0.2366, estimate.getLowerBound(), 1e-4);
+		assertEquals(0.7634, estimate.getUpperBound(), 1e-4);
+	}
+
+	/**
+	 * 不满一块的文件无法抽样，总是值得做差异。
+	 */
+	public void testTooShort() throws Exception {
+		write(f, Arrays.copyOf(old, config.blockLength - 1));
+		DeltaEstimator estimator = new DeltaEstimator(config);
+		Estimate estimate = estimator.estimate(sums, f);
+		assertEquals(0, estimate.getSamples());
+		assertEquals(1.0, estimate.getMatchRatio(), 0);
+		assertTrue(estimator.isWorthDelta(estimate));
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.xuchaoguo.lab.filesync.ChecksumPair;
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.Generator;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试增量更新签名：结果应与对改动后的文件重新生成的签名相同，
+ * 没有改动的块直接沿用旧签名。
+ */
+public class GeneratorTest extends TestCase {
+
+	private File dir;
+
+	private File f;
+
+	private Configuration config;
+
+	private Generator gen;
+
+	private int block;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("generator").toFile();
+		f = new File(dir, "f");
+		config = new Configuration();
+		gen = new Generator(config);
+		block = config.blockLength;
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File c : dir.listFiles())
+			c.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 中间改动跨两个块：只重算这两个块。
+	 */
+	public void testDirtyBlocks() throws Exception {
+		byte[] data = data(20 * block + 100, 1);
+		List<ChecksumPair> old = sums(data);
+
+		int offset = 5 * block - 10;
+		for (int i = 0; i < 20; i++)
+			data[offset + i]++;
+		List<ChecksumPair> sums = update(old, data, data.length, offset, 20);
+		for (int i = 0; i < sums.size(); i++) {
+			if (i != 4 && i != 5)
+				assertSame(old.get(i), sums.get(i));
+		}
+
+		// 再改动两处，每处调用一次。
+		data[block / 2]++;
+		sums = update(sums, data, data.length, block / 2, 1);
+		data[12 * block]++;
+		update(sums, data, data.length, 12 * block, 1);
+	}
+
+	/**
+	 * 文件变长：不满一块的末块补齐后重算，新增的块也算出。
+	 */
+	public void testGrow() throws Exception {
+		for (int oldLength : new int[] { 0, 100, 10 * block + 100,
+				10 * block }) {
+			byte[] data = data(oldLength, 2);
+			List<ChecksumPair> old = sums(data);
+			for (int extra : new int[] { 1, block - 100, 3 * block + 7 }) {
+				byte[] grown = Arrays.copyOf(data, oldLength + extra);
+				System.arraycopy(data(extra, 3), 0, grown, oldLength, extra);
+				update(old, grown, oldLength, 0, 0);
+			}
+		}
+	}
+
+	/**
+	 * 文件变短：截在块中间、块边界或截成空文件。
+	 */
+	public void testShrink() throws Exception {
+		byte[] data = data(10 * block + 100, 4);
+		List<ChecksumPair> old = sums(data);
+		for (int newLength : new int[] { 10 * block + 50, 10 * block,
+				7 * block + 3, 0 }) {
+			List<ChecksumPair> sums = update(old, Arrays.copyOf(data,
+					newLength), data.length, 0, 0);
+			for (int i = 0; i < newLength / block; i++)
+				assertSame(old.get(i), sums.get(i));
+		}
+	}
+
+	/**
+	 * 同时改动中间和长度。
+	 */
+	public void testDirtyAndGrow() throws Exception {
+		byte[] data = data(8 * block + 300, 5);
+		List<ChecksumPair> old = sums(data);
+		byte[] grown = Arrays.copyOf(data, data.length + 2 * block);
+		grown[3 * block]++;
+		update(old, grown, data.length, 3 * block, 1);
+
+		byte[] shrunk = Arrays.copyOf(data, 6 * block - 1);
+		shrunk[block]++;
+		update(old, shrunk, data.length, block, 1);
+	}
+
+	/**
+	 * 把 data 写入文件，用 updateSums 更新签名，并与 generateSums 的结果比较。
+	 */
+	private List<ChecksumPair> update(List<ChecksumPair> old, byte[] data,
+			long oldLength, long offset, long length) throws Exception {
+		write(f, data);
+		List<ChecksumPair> sums = gen.updateSums(old, f, oldLength, offset,
+				length);
+		assertSums(gen.generateSums(f), sums);
+		if (length == 0)
+			assertSums(sums, gen.updateSums(old, f, oldLength));
+		return sums;
+	}
+
+	private List<ChecksumPair> sums(byte[] data) throws Exception {
+		write(f, data);
+		return gen.generateSums(f);
+	}
+
+	private static byte[] data(int length, int seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	private static void assertSums(List<ChecksumPair> expected,
+			List<ChecksumPair> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			ChecksumPair x = expected.get(i), y = actual.get(i);
+			assertEquals(x.getWeak(), y.getWeak());
+			assertTrue(Arrays.equals(x.getStrong().getBytes(), y.getStrong()
+					.getBytes()));
+			assertEquals(x.getOffset(), y.getOffset());
+			assertEquals(x.getLength(), y.getLength());
+			assertEquals(x.getSequence(), y.getSequence());
+		}
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.Delta;
+import com.xuchaoguo.lab.filesync.DeltaList;
+import com.xuchaoguo.lab.filesync.HierarchicalSync;
+import com.xuchaoguo.lab.filesync.Offsets;
+import com.xuchaoguo.lab.filesync.Rdiff;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试多级分辨率的同步。
+ */
+public class HierarchicalSyncTest extends TestCase {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("hierarchical").toFile();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 旧文件比第一轮的块还短时，后面几轮仍应找到可复制的块。
+	 */
+	public void testBasisShorterThanCoarseBlock() throws Exception {
+		assertSync(40000);
+	}
+
+	public void testLargeBasis() throws Exception {
+		assertSync(300000);
+	}
+
+	/**
+	 * 没有变化的文件：第一轮报告的复制就是全部，最后一条消息只有头部、
+	 * 结束符和整文件校验和，复制不再计第二次。
+	 */
+	public void testDeltaBytes() throws Exception {
+		byte[] data = new byte[300000];
+		new Random(37).nextBytes(data);
+		File basis = new File(dir, "basis");
+		write(basis, data);
+		File newFile = new File(dir, "new");
+		write(newFile, data);
+
+		Configuration config = new Configuration();
+		HierarchicalSync sync = new HierarchicalSync(config);
+		int coarse = sync.getBlockLengths()[0];
+		HierarchicalSync.Receiver receiver = new HierarchicalSync.Receiver(
+				config, basis);
+		HierarchicalSync.Sender sender = new HierarchicalSync.Sender(config,
+				newFile);
+		try {
+			sender.match(receiver.refine(new ArrayList<Delta>(), coarse),
+					coarse);
+		} finally {
+			receiver.close();
+		}
+		assertFalse(sender.hasLiterals());
+		ByteArrayOutputStream end = new ByteArrayOutputStream();
+		new Rdiff(config).writeDeltas(new DeltaList(new ArrayList<Delta>(),
+				sender.getFileSum()), end);
+
+		sync.makeDeltas(basis, newFile);
+		assertEquals(sender.getMessageLength() + end.size(), sync
+				.getDeltaBytes());
+	}
+
+	private void assertSync(int length) throws Exception {
+		Random rnd = new Random(36);
+		byte[] data = new byte[length];
+		rnd.nextBytes(data);
+		File basis = new File(dir, "basis");
+		write(basis, data);
+		data[length / 2]++;
+		File newFile = new File(dir, "new");
+		write(newFile, data);
+
+		HierarchicalSync sync = new HierarchicalSync(new Configuration());
+		List<Delta> deltas = sync.makeDeltas(basis, newFile);
+		long copied = 0;
+		for (Delta delta : deltas) {
+			if (delta instanceof Offsets)
+				copied += delta.getBlockLength();
+		}
+		// 只有改动的那一块需要以字面数据发送。
+		assertTrue(copied >= length - 2 * new Configuration().blockLength);
+
+		File out = new File(dir, "out");
+		sync.sync(basis, newFile, out);
+		assertTrue(Arrays.equals(data, Files.readAllBytes(out.toPath())));
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
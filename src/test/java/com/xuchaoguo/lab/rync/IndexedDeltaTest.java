@@ -0,0 +1,297 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.xuchaoguo.lab.filesync.ChecksumMismatchException;
+import com.xuchaoguo.lab.filesync.ChecksumPair;
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.Delta;
+import com.xuchaoguo.lab.filesync.IndexedDelta;
+import com.xuchaoguo.lab.filesync.Rdiff;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试分帧的差异容器。
+ */
+public class IndexedDeltaTest extends TestCase {
+
+	private File dir;
+
+	private File basis;
+
+	private File target;
+
+	private Configuration config;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("indexed").toFile();
+		basis = new File(dir, "basis");
+		target = new File(dir, "target");
+
+		Random rnd = new Random(26);
+		byte[] data = new byte[200000];
+		rnd.nextBytes(data);
+		write(basis, data);
+		// 修改几处，并在中间插入一段新数据。
+		for (int i = 0; i < 10; i++)
+			data[rnd.nextInt(data.length)]++;
+		byte[] inserted = new byte[5000];
+		rnd.nextBytes(inserted);
+		byte[] changed = new byte[data.length + inserted.length];
+		System.arraycopy(data, 0, changed, 0, 90000);
+		System.arraycopy(inserted, 0, changed, 90000, inserted.length);
+		System.arraycopy(data, 90000, changed, 95000, data.length - 90000);
+		write(target, changed);
+
+		config = new Configuration();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 各帧倒序应用，结果应与新文件逐字节相同。
+	 */
+	public void testFramesOutOfOrder() throws Exception {
+		// 每条差异命令单独成帧。
+		config.frameLength = 1;
+		Rdiff rdf = new Rdiff(config);
+		List<Delta> deltas = deltas(rdf);
+		File delta = new File(dir, "delta");
+		FileOutputStream out = new FileOutputStream(delta);
+		try {
+			new IndexedDelta(config).writeDeltas(deltas, out);
+		} finally {
+			out.close();
+		}
+
+		// 单线程、后进先出的执行器：先用一个任务占住线程，
+		// 等全部帧都提交后再放行，使帧按提交的相反顺序执行。
+		final int frames = deltas.size();
+		assertTrue(frames > 3);
+		final LinkedBlockingDeque<Runnable> queue;
+		queue = new LinkedBlockingDeque<Runnable>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public boolean offer(Runnable r) {
+				return offerFirst(r);
+			}
+		};
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 0,
+				TimeUnit.SECONDS, queue);
+		pool.execute(new Runnable() {
+			@Override
+			public void run() {
+				long deadline = System.currentTimeMillis() + 10000;
+				while (queue.size() < frames
+						&& System.currentTimeMillis() < deadline)
+					Thread.yield();
+			}
+		});
+
+		File patched = new File(dir, "patched");
+		try {
+			new IndexedDelta(config).rebuildFile(basis, delta, patched, pool);
+		} finally {
+			pool.shutdown();
+		}
+		assertTrue(Arrays.equals(Files.readAllBytes(target.toPath()),
+				Files.readAllBytes(patched.toPath())));
+	}
+
+	/**
+	 * 默认分帧并行应用。
+	 */
+	public void testParallel() throws Exception {
+		config.frameLength = 16384;
+		Rdiff rdf = new Rdiff(config);
+		List<Delta> deltas = deltas(rdf);
+		File delta = new File(dir, "delta");
+		FileOutputStream out = new FileOutputStream(delta);
+		try {
+			new IndexedDelta(config).writeDeltas(deltas, out);
+		} finally {
+			out.close();
+		}
+
+		File patched = new File(dir, "patched");
+		new IndexedDelta(config).rebuildFile(basis, delta, patched);
+		assertTrue(Arrays.equals(Files.readAllBytes(target.toPath()),
+				Files.readAllBytes(patched.toPath())));
+	}
+
+	/**
+	 * 容器的各帧只针对一个旧文件应用，从第二个旧文件复制的差异应被拒绝。
+	 */
+	public void testSecondBasis() throws Exception {
+		File other = new File(dir, "other");
+		byte[] data = new byte[30000];
+		new Random(46).nextBytes(data);
+		write(other, data);
+		Rdiff rdf = new Rdiff(config);
+		List<Delta> deltas = rdf.makeDeltas(rdf.makeSignatures(new File[] {
+				other, basis }), target);
+
+		File delta = new File(dir, "delta");
+		FileOutputStream out = new FileOutputStream(delta);
+		try {
+			new IndexedDelta(config).writeDeltas(deltas, out);
+			fail("Wrote a copy from a second basis");
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage().startsWith("Copy from a second"));
+		} finally {
+			out.close();
+		}
+		assertEquals(0, delta.length());
+	}
+
+	/**
+	 * 索引项指向容器之外的帧时，在分配缓冲区之前就被拒绝。
+	 */
+	public void testBadIndexEntry() throws Exception {
+		File delta = container();
+		byte[] data = Files.readAllBytes(delta.toPath());
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		long indexPosition = buf.getLong(data.length - 12);
+		// 第一项的帧长。
+		buf.putInt((int) indexPosition + 24, Integer.MAX_VALUE);
+		write(delta, data);
+
+		try {
+			new IndexedDelta(config).rebuildFile(basis, delta, new File(dir,
+					"patched"));
+			fail("Read a frame past the index");
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage().startsWith("Bad index entry"));
+		}
+	}
+
+	/**
+	 * 整文件校验和存放在尾部之前，全部帧应用后核对。
+	 */
+	public void testFileSumMismatch() throws Exception {
+		File delta = container();
+		byte[] data = Files.readAllBytes(delta.toPath());
+		int sumLength = data[data.length - 17];
+		assertEquals(config.newStrongSum().getDigestLength(), sumLength);
+		data[data.length - 17 - sumLength]++;
+		write(delta, data);
+
+		try {
+			new IndexedDelta(config).rebuildFile(basis, delta, new File(dir,
+					"patched"));
+			fail("Patched with a wrong whole-file checksum");
+		} catch (ChecksumMismatchException expected) {
+		}
+	}
+
+	/**
+	 * 有帧失败时，等其余正在执行的帧结束后才关闭文件并抛出异常。
+	 */
+	public void testFailedFrame() throws Exception {
+		config.frameLength = 1;
+		File delta = container();
+		// 旧文件被截短，后面的复制都会失败。
+		File shortBasis = new File(dir, "short");
+		write(shortBasis, Arrays.copyOf(Files.readAllBytes(basis.toPath()),
+				50000));
+
+		final AtomicInteger running = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(2, 2, 0,
+				TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>()) {
+			@Override
+			protected <T> RunnableFuture<T> newTaskFor(final Callable<T> task) {
+				// 每帧先等一会儿再执行，帧结束后任务才算完成。
+				return super.newTaskFor(new Callable<T>() {
+					@Override
+					public T call() throws Exception {
+						running.incrementAndGet();
+						try {
+							Thread.sleep(20);
+							return task.call();
+						} finally {
+							running.decrementAndGet();
+						}
+					}
+				});
+			}
+		};
+		try {
+			new IndexedDelta(config).rebuildFile(shortBasis, delta, new File(
+					dir, "patched"), pool);
+			fail("Copied past the end of the basis");
+		} catch (EOFException expected) {
+			assertEquals(0, running.get());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * 把新文件的差异写成容器。
+	 */
+	private File container() throws Exception {
+		File delta = new File(dir, "delta");
+		FileOutputStream out = new FileOutputStream(delta);
+		try {
+			new IndexedDelta(config).writeDeltas(deltas(new Rdiff(config)),
+					out);
+		} finally {
+			out.close();
+		}
+		return delta;
+	}
+
+	private List<Delta> deltas(Rdiff rdf) throws Exception {
+		FileInputStream in = new FileInputStream(target);
+		try {
+			return rdf.makeDeltas(signatures(rdf, basis), in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static List<ChecksumPair> signatures(Rdiff rdf, File f)
+			throws Exception {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			return rdf.makeSignatures(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
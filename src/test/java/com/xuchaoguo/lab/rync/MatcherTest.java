@@ -0,0 +1,219 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.xuchaoguo.lab.filesync.ChecksumPair;
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.DataBlock;
+import com.xuchaoguo.lab.filesync.Delta;
+import com.xuchaoguo.lab.filesync.Generator;
+import com.xuchaoguo.lab.filesync.Matcher;
+import com.xuchaoguo.lab.filesync.Offsets;
+import com.xuchaoguo.lab.filesync.Rdiff;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试搜索前比较公共前缀和后缀，以及只在末尾追加数据时的快速路径。
+ */
+public class MatcherTest extends TestCase {
+
+	/** 旧文件的长度，不是块长的整数倍。 */
+	private static final int OLD_LENGTH = 100300;
+
+	/** 改动的位置。 */
+	private static final int EDIT = 50000;
+
+	private File dir;
+
+	private File basis;
+
+	private byte[] old;
+
+	private Configuration config;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("matcher").toFile();
+		config = new Configuration();
+		old = new byte[OLD_LENGTH];
+		new Random(33).nextBytes(old);
+		basis = new File(dir, "basis");
+		write(basis, old);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 原地改动几个字节：前缀和后缀各合并成一个复制，包括不满一块的末块。
+	 */
+	public void testPrefixAndSuffix() throws Exception {
+		byte[] data = old.clone();
+		for (int i = 0; i < 10; i++)
+			data[EDIT + i]++;
+		List<Delta> deltas = search(sums(config), data);
+
+		int block = config.blockLength;
+		int prefix = EDIT / block * block;
+		assertCopy(deltas.get(0), 0, 0, prefix);
+		int suffix = OLD_LENGTH - (prefix + block);
+		assertCopy(deltas.get(deltas.size() - 1), OLD_LENGTH - suffix,
+				OLD_LENGTH - suffix, suffix);
+	}
+
+	/**
+	 * 读回的签名把末块也记作整块；插入数据后，靠滚动比较找到末块的长度，
+	 * 后缀仍然整段复制。
+	 */
+	public void testSuffixWithReadSignature() throws Exception {
+		Rdiff rdf = new Rdiff(config);
+		ByteArrayOutputStream sig = new ByteArrayOutputStream();
+		rdf.writeSignatures(sums(config), sig);
+		List<ChecksumPair> sums = new Rdiff((Configuration) config.clone())
+				.readSignatures(new ByteArrayInputStream(sig.toByteArray()));
+
+		byte[] data = insert(old, EDIT, 777);
+		List<Delta> deltas = search(sums, data);
+
+		Delta last = deltas.get(deltas.size() - 1);
+		assertTrue(last instanceof Offsets);
+		Offsets copy = (Offsets) last;
+		assertEquals(OLD_LENGTH, copy.getOldOffset() + copy.getBlockLength());
+		assertEquals(data.length, copy.getNewOffset() + copy.getBlockLength());
+		assertTrue(copy.getBlockLength() > OLD_LENGTH - EDIT
+				- config.blockLength);
+	}
+
+	/**
+	 * 签名的块长与配置不同时，前缀和后缀按签名的块长比较。
+	 */
+	public void testOtherBlockLength() throws Exception {
+		for (int length : new int[] { 700, 2048 }) {
+			Configuration c = (Configuration) config.clone();
+			c.blockLength = length;
+			byte[] data = old.clone();
+			data[EDIT]++;
+			List<Delta> deltas = search(sums(c), data);
+
+			int prefix = EDIT / length * length;
+			assertCopy(deltas.get(0), 0, 0, prefix);
+			int suffix = OLD_LENGTH - (prefix + length);
+			assertCopy(deltas.get(deltas.size() - 1), OLD_LENGTH - suffix,
+					OLD_LENGTH - suffix, suffix);
+		}
+	}
+
+	/**
+	 * 只在末尾追加：旧文件整段复制，其余都是字面数据，
+	 * 文件和流两种搜索都是如此。
+	 */
+	public void testAppended() throws Exception {
+		byte[] extra = new byte[5000];
+		new Random(34).nextBytes(extra);
+		byte[] data = Arrays.copyOf(old, OLD_LENGTH + extra.length);
+		System.arraycopy(extra, 0, data, OLD_LENGTH, extra.length);
+
+		List<ChecksumPair> sums = sums(config);
+		List<Delta> fromFile = search(sums, data);
+		Matcher matcher = new Matcher(config);
+		List<Delta> fromStream = matcher.hashSearch(sums,
+				new ByteArrayInputStream(data));
+		assertTrue(Arrays.equals(config.newStrongSum().digest(data), matcher
+				.getFileSum()));
+		check(fromStream, data);
+
+		for (List<Delta> deltas : Arrays.asList(fromFile, fromStream)) {
+			assertCopy(deltas.get(0), 0, 0, OLD_LENGTH);
+			for (Delta delta : deltas.subList(1, deltas.size()))
+				assertTrue(delta instanceof DataBlock);
+		}
+	}
+
+	/**
+	 * 读回的签名加上追加的数据：末块记录的长度不对，结果仍然正确。
+	 */
+	public void testAppendedWithReadSignature() throws Exception {
+		Rdiff rdf = new Rdiff(config);
+		ByteArrayOutputStream sig = new ByteArrayOutputStream();
+		rdf.writeSignatures(sums(config), sig);
+		List<ChecksumPair> sums = new Rdiff((Configuration) config.clone())
+				.readSignatures(new ByteArrayInputStream(sig.toByteArray()));
+
+		byte[] data = Arrays.copyOf(old, OLD_LENGTH + 3000);
+		search(sums, data);
+		check(new Matcher(config).hashSearch(sums, new ByteArrayInputStream(
+				data)), data);
+	}
+
+	/**
+	 * 搜索文件，检查补丁结果和整文件校验和。
+	 */
+	private List<Delta> search(List<ChecksumPair> sums, byte[] data)
+			throws Exception {
+		File f = new File(dir, "new");
+		write(f, data);
+		Matcher matcher = new Matcher(config);
+		List<Delta> deltas = matcher.hashSearch(sums, f);
+		assertTrue(Arrays.equals(config.newStrongSum().digest(data), matcher
+				.getFileSum()));
+		check(deltas, data);
+		return deltas;
+	}
+
+	private void check(List<Delta> deltas, byte[] data) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new Rdiff(config).rebuildFile(basis, deltas, out);
+		assertTrue(Arrays.equals(data, out.toByteArray()));
+	}
+
+	private List<ChecksumPair> sums(Configuration c) throws Exception {
+		return new Generator(c).generateSums(basis);
+	}
+
+	private static void assertCopy(Delta delta, long oldOffset,
+			long newOffset, int length) {
+		assertTrue(delta.toString(), delta instanceof Offsets);
+		Offsets copy = (Offsets) delta;
+		assertEquals(oldOffset, copy.getOldOffset());
+		assertEquals(newOffset, copy.getNewOffset());
+		assertEquals(length, copy.getBlockLength());
+	}
+
+	/**
+	 * 在 at 处插入 n 个随机字节。
+	 */
+	private static byte[] insert(byte[] data, int at, int n) {
+		byte[] inserted = new byte[n];
+		new Random(n).nextBytes(inserted);
+		byte[] result = new byte[data.length + n];
+		System.arraycopy(data, 0, result, 0, at);
+		System.arraycopy(inserted, 0, result, at, n);
+		System.arraycopy(data, at, result, at + n, data.length - at);
+		return result;
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
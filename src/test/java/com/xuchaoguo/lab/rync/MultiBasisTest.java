@@ -0,0 +1,130 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.xuchaoguo.lab.filesync.BasisOffsets;
+import com.xuchaoguo.lab.filesync.ChecksumPair;
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.Delta;
+import com.xuchaoguo.lab.filesync.Rdiff;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试同时针对多个旧文件的同步。
+ */
+public class MultiBasisTest extends TestCase {
+
+	private File dir;
+
+	private File[] bases;
+
+	private byte[] data;
+
+	private Configuration config;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("multi").toFile();
+		config = new Configuration();
+
+		// 两个旧文件的长度都不是块长的整数倍。
+		Random rnd = new Random(46);
+		byte[] a = new byte[50001];
+		byte[] b = new byte[40500];
+		rnd.nextBytes(a);
+		rnd.nextBytes(b);
+		bases = new File[] { new File(dir, "a"), new File(dir, "b") };
+		write(bases[0], a);
+		write(bases[1], b);
+
+		// 新文件由两个旧文件的片段和一段新数据拼成，以 b 的末尾结束。
+		byte[] inserted = new byte[3000];
+		rnd.nextBytes(inserted);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(a, 0, 20000);
+		out.write(b, 10000, 20000);
+		out.write(inserted);
+		out.write(a, 30000, a.length - 30000);
+		out.write(b, 30000, b.length - 30000);
+		data = out.toByteArray();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 签名和差异都经过写出和读回，打补丁应得到新文件。
+	 */
+	public void testRoundTrip() throws Exception {
+		Rdiff rdf = new Rdiff(config);
+		assertRoundTrip(rdf, rdf.makeSignatures(bases));
+	}
+
+	/**
+	 * 签名中的块不连续时，读回的签名仍应给出每块原来的位置。
+	 */
+	public void testSparseSignatures() throws Exception {
+		Rdiff rdf = new Rdiff(config);
+		List<ChecksumPair> sums = new ArrayList<>();
+		int i = 0;
+		for (ChecksumPair pair : rdf.makeSignatures(bases)) {
+			if (pair.getBasis() == 0 || i++ % 2 == 0)
+				sums.add(pair);
+		}
+		assertRoundTrip(rdf, sums);
+	}
+
+	private void assertRoundTrip(Rdiff rdf, List<ChecksumPair> sums)
+			throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		rdf.writeSignatures(sums, out);
+		List<ChecksumPair> read = rdf.readSignatures(new ByteArrayInputStream(
+				out.toByteArray()));
+		assertEquals(sums.size(), read.size());
+		for (int i = 0; i < sums.size(); i++) {
+			assertEquals(sums.get(i).getBasis(), read.get(i).getBasis());
+			assertEquals(sums.get(i).getOffset(), read.get(i).getOffset());
+			assertEquals(sums.get(i).getLength(), read.get(i).getLength());
+		}
+
+		List<Delta> deltas = rdf.makeDeltas(read, new ByteArrayInputStream(
+				data));
+		boolean second = false;
+		for (Delta delta : deltas)
+			second |= delta instanceof BasisOffsets;
+		assertTrue(second);
+
+		out.reset();
+		rdf.writeDeltas(deltas, out);
+		ByteArrayOutputStream patched = new ByteArrayOutputStream();
+		rdf.rebuildFile(bases, rdf.readDeltas(new ByteArrayInputStream(out
+				.toByteArray())), patched);
+		assertTrue(Arrays.equals(data, patched.toByteArray()));
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.NioSyncClient;
+import com.xuchaoguo.lab.filesync.NioSyncServer;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * 在本机回环地址上测试多路复用的同步协议。
+ */
+public class NioSyncTest extends TestCase {
+
+	private static final int FILES = 300;
+
+	private File dir;
+
+	private byte[][] contents;
+
+	private NioSyncServer server;
+
+	private Configuration config;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		config = new Configuration();
+
+		dir = Files.createTempDirectory("nio").toFile();
+		File root = new File(dir, "root");
+		root.mkdir();
+		Random rnd = new Random(2);
+		contents = new byte[FILES][];
+		for (int i = 0; i < FILES; i++) {
+			// 有空文件，也有跨越多个帧的大文件。
+			int len = i == 0 ? 0 : (i % 50 == 1 ? 1 << 20 : rnd.nextInt(20000));
+			contents[i] = new byte[len];
+			rnd.nextBytes(contents[i]);
+			write(new File(root, "f" + i), contents[i]);
+		}
+
+		server = new NioSyncServer(config, root, new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), 0), 2);
+		server.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+		delete(dir);
+	}
+
+	/**
+	 * 一个连接上流水线同步全部文件。
+	 */
+	public void testPipelinedFiles() throws Exception {
+		String[] names = new String[FILES];
+		File[] bases = new File[FILES];
+		File[] outs = new File[FILES];
+		Random rnd = new Random(3);
+		for (int i = 0; i < FILES; i++) {
+			names[i] = "f" + i;
+			byte[] old = contents[i].clone();
+			for (int j = 0; j < 3 && old.length > 0; j++)
+				old[rnd.nextInt(old.length)]++;
+			bases[i] = new File(dir, "basis" + i);
+			outs[i] = new File(dir, "out" + i);
+			write(bases[i], i % 7 == 0 ? new byte[0] : old);
+		}
+
+		client(8).sync(names, bases, outs);
+		for (int i = 0; i < FILES; i++)
+			assertTrue(names[i], Arrays.equals(contents[i],
+					Files.readAllBytes(outs[i].toPath())));
+	}
+
+	/**
+	 * 某个文件失败时，其余文件照常同步，并报告失败的文件。
+	 */
+	public void testBadName() throws Exception {
+		String[] names = { "f1", "nothing", "f2", "../root/../basis" };
+		File[] bases = new File[names.length];
+		File[] outs = new File[names.length];
+		for (int i = 0; i < names.length; i++) {
+			bases[i] = new File(dir, "basis" + i);
+			outs[i] = new File(dir, "out" + i);
+			write(bases[i], new byte[100]);
+		}
+		write(new File(dir, "basis"), new byte[100]);
+
+		try {
+			client(NioSyncClient.WINDOW).sync(names, bases, outs);
+			fail("Synced a missing file");
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage().startsWith("nothing"));
+		}
+		assertTrue(Arrays.equals(contents[1],
+				Files.readAllBytes(outs[0].toPath())));
+		assertTrue(Arrays.equals(contents[2],
+				Files.readAllBytes(outs[2].toPath())));
+	}
+
+	/**
+	 * 一个连接打开了流却不发送签名，不能占满全部工作线程。
+	 */
+	public void testStalledStreams() throws Exception {
+		Socket stalled = stall();
+		try {
+			final File basis = new File(dir, "basis");
+			final File out = new File(dir, "out");
+			write(basis, new byte[100]);
+			final IOException[] error = new IOException[1];
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						client(8).sync(new String[] { "f3" },
+								new File[] { basis }, new File[] { out });
+					} catch (IOException ioe) {
+						error[0] = ioe;
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+			t.join(10000);
+			assertFalse("Sync blocked by a stalled connection", t.isAlive());
+			if (error[0] != null)
+				throw error[0];
+			assertTrue(Arrays.equals(contents[3],
+					Files.readAllBytes(out.toPath())));
+		} finally {
+			stalled.close();
+		}
+	}
+
+	/**
+	 * 超时不发送签名的连接被关闭。
+	 */
+	public void testIdleConnection() throws Exception {
+		server.setTimeout(500);
+		Socket stalled = stall();
+		try {
+			stalled.setSoTimeout(10000);
+			InputStream in = stalled.getInputStream();
+			try {
+				while (in.read() != -1)
+					;
+			} catch (SocketTimeoutException e) {
+				fail("Idle connection not closed");
+			} catch (IOException reset) {
+				// 服务器已关闭连接。
+			}
+		} finally {
+			stalled.close();
+		}
+	}
+
+	/**
+	 * 打开一个连接，打开两个流，但不发送签名。
+	 */
+	private Socket stall() throws IOException {
+		Socket s = new Socket(InetAddress.getLoopbackAddress(),
+				server.getPort());
+		DataOutputStream out = new DataOutputStream(s.getOutputStream());
+		for (int i = 0; i < 2; i++) {
+			byte[] name = ("f" + (i + 1)).getBytes("UTF-8");
+			out.writeByte(1);
+			out.writeInt(i);
+			out.writeInt(name.length);
+			out.write(name);
+		}
+		out.flush();
+		return s;
+	}
+
+	private NioSyncClient client(int window) {
+		return new NioSyncClient(config, new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), server.getPort()), window);
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c : children)
+				delete(c);
+		}
+		f.delete();
+	}
+}
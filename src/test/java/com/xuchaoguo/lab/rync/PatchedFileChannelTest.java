@@ -0,0 +1,127 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.Delta;
+import com.xuchaoguo.lab.filesync.PatchedFileChannel;
+import com.xuchaoguo.lab.filesync.Rdiff;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试打过补丁的文件的随机访问视图。
+ */
+public class PatchedFileChannelTest extends TestCase {
+
+	private File dir;
+
+	private File basis;
+
+	private byte[] target;
+
+	private List<Delta> deltas;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("patched").toFile();
+		basis = new File(dir, "basis");
+
+		Random rnd = new Random(27);
+		byte[] data = new byte[150000];
+		rnd.nextBytes(data);
+		write(basis, data);
+		// 删除一段，修改几处，末尾追加新数据。
+		target = new byte[data.length - 3000 + 7000];
+		System.arraycopy(data, 0, target, 0, 40000);
+		System.arraycopy(data, 43000, target, 40000, data.length - 43000);
+		for (int i = 0; i < 8; i++)
+			target[rnd.nextInt(data.length - 3000)]++;
+		byte[] tail = new byte[7000];
+		rnd.nextBytes(tail);
+		System.arraycopy(tail, 0, target, data.length - 3000, tail.length);
+
+		// 差异经过一次写出和读回。
+		Rdiff rdf = new Rdiff(new Configuration());
+		FileInputStream in = new FileInputStream(basis);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			rdf.writeDeltas(rdf.makeDeltas(rdf.makeSignatures(in),
+					new ByteArrayInputStream(target)), out);
+			deltas = rdf.readDeltas(new ByteArrayInputStream(out
+					.toByteArray()));
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 顺序读出整个视图，应与新文件逐字节相同。
+	 */
+	public void testSequential() throws Exception {
+		PatchedFileChannel ch = new PatchedFileChannel(basis, deltas);
+		try {
+			assertEquals(target.length, ch.size());
+			InputStream in = ch.newInputStream();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[3001];
+			for (int n; (n = in.read(buf)) != -1;)
+				out.write(buf, 0, n);
+			assertTrue(Arrays.equals(target, out.toByteArray()));
+		} finally {
+			ch.close();
+		}
+	}
+
+	/**
+	 * 任意位置、任意长度的读取，跨越多条差异命令。
+	 */
+	public void testRandomAccess() throws Exception {
+		PatchedFileChannel ch = new PatchedFileChannel(basis, deltas);
+		try {
+			Random rnd = new Random(1);
+			for (int i = 0; i < 500; i++) {
+				int pos = rnd.nextInt(target.length);
+				ByteBuffer buf = ByteBuffer.allocate(1 + rnd.nextInt(20000));
+				int n = ch.read(buf, pos);
+				assertEquals(Math.min(buf.capacity(), target.length - pos), n);
+				assertTrue(Arrays.equals(
+						Arrays.copyOfRange(target, pos, pos + n),
+						Arrays.copyOf(buf.array(), n)));
+			}
+			assertEquals(-1, ch.read(ByteBuffer.allocate(1), target.length));
+		} finally {
+			ch.close();
+		}
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
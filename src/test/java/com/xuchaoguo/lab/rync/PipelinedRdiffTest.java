@@ -0,0 +1,128 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.xuchaoguo.lab.filesync.ChecksumPair;
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.PipelinedRdiff;
+import com.xuchaoguo.lab.filesync.Rdiff;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试流水线生成的差异与 Rdiff 逐字节相同，并发调用时也是如此。
+ */
+public class PipelinedRdiffTest extends TestCase {
+
+	private static final int FILES = 12;
+
+	private Configuration config;
+
+	private byte[] old;
+
+	private List<ChecksumPair> sums;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		config = new Configuration();
+		old = new byte[200000];
+		new Random(38).nextBytes(old);
+		sums = new Rdiff(config).makeSignatures(new ByteArrayInputStream(old));
+	}
+
+	/**
+	 * 各种新文件：与 makeDeltas 加 writeDeltas 的输出逐字节相同。
+	 */
+	public void testSameAsRdiff() throws Exception {
+		PipelinedRdiff pipe = new PipelinedRdiff(config);
+		for (int i = 0; i < FILES; i++) {
+			byte[] data = newData(i);
+			assertTrue("file " + i, Arrays.equals(expected(data), pipe(pipe,
+					data)));
+			assertTrue(Arrays.equals(config.newStrongSum().digest(data), pipe
+					.getFileSum()));
+		}
+	}
+
+	/**
+	 * 同一个实例上的并发调用互不干扰。
+	 */
+	public void testConcurrentCalls() throws Exception {
+		final PipelinedRdiff pipe = new PipelinedRdiff(config);
+		ExecutorService callers = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<byte[]>> results = new ArrayList<>();
+			for (int round = 0; round < 4; round++) {
+				for (int i = 0; i < FILES; i++) {
+					final byte[] data = newData(i);
+					results.add(callers.submit(new Callable<byte[]>() {
+						@Override
+						public byte[] call() throws Exception {
+							return pipe(pipe, data);
+						}
+					}));
+				}
+			}
+			for (int i = 0; i < results.size(); i++)
+				assertTrue("call " + i, Arrays.equals(
+						expected(newData(i % FILES)), results.get(i).get()));
+		} finally {
+			callers.shutdownNow();
+		}
+	}
+
+	/**
+	 * 第 i 个新文件：有的与旧文件相同、有的是空的、有的在旧文件上改动几处，
+	 * 有的是全新数据，长度不一定是块长的整数倍。
+	 */
+	private byte[] newData(int i) {
+		Random rnd = new Random(i);
+		switch (i % 4) {
+		case 0:
+			return i == 0 ? new byte[0] : old.clone();
+		case 1: {
+			byte[] data = new byte[rnd.nextInt(300000)];
+			rnd.nextBytes(data);
+			return data;
+		}
+		default: {
+			int cut = rnd.nextInt(old.length);
+			byte[] inserted = new byte[rnd.nextInt(5000)];
+			rnd.nextBytes(inserted);
+			byte[] data = new byte[old.length + inserted.length - 7];
+			System.arraycopy(old, 0, data, 0, cut);
+			System.arraycopy(inserted, 0, data, cut, inserted.length);
+			System.arraycopy(old, cut, data, cut + inserted.length, old.length
+					- cut - 7);
+			data[rnd.nextInt(data.length)]++;
+			return data;
+		}
+		}
+	}
+
+	private byte[] expected(byte[] data) throws Exception {
+		Rdiff rdf = new Rdiff(config);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		rdf.writeDeltas(rdf.makeDeltas(sums, new ByteArrayInputStream(data)),
+				out);
+		return out.toByteArray();
+	}
+
+	private byte[] pipe(PipelinedRdiff pipe, byte[] data) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		pipe.makeDeltas(sums, new ByteArrayInputStream(data), out);
+		return out.toByteArray();
+	}
+}
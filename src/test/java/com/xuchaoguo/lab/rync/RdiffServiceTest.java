@@ -0,0 +1,163 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.xuchaoguo.lab.filesync.ChecksumPair;
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.Delta;
+import com.xuchaoguo.lab.filesync.DeltaList;
+import com.xuchaoguo.lab.filesync.DeltaSink;
+import com.xuchaoguo.lab.filesync.Rdiff;
+import com.xuchaoguo.lab.filesync.RdiffService;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试多个线程同时使用一个 RdiffService：会话重复使用时，
+ * 上一个任务改动的块长和校验和状态不影响下一个任务。
+ */
+public class RdiffServiceTest extends TestCase {
+
+	private static final int JOBS = 300;
+
+	/** 另一种块长，用它生成的签名会改变会话的块长。 */
+	private static final int OTHER_BLOCK_LENGTH = 700;
+
+	private File dir;
+
+	private File basis;
+
+	private byte[] old;
+
+	private Configuration config;
+
+	private Configuration other;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("service").toFile();
+		config = new Configuration();
+		config.checksumSeed = new byte[] { 1, 2, 3, 4 };
+		other = (Configuration) config.clone();
+		other.blockLength = OTHER_BLOCK_LENGTH;
+
+		old = new byte[100000];
+		new Random(39).nextBytes(old);
+		basis = new File(dir, "basis");
+		FileOutputStream out = new FileOutputStream(basis);
+		try {
+			out.write(old);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 签名、差异加补丁、按签名块长搜索三种任务交错并发，
+	 * 会话池很小，每个结果都与单独使用 Rdiff 时相同。
+	 */
+	public void testConcurrentJobs() throws Exception {
+		final RdiffService service = new RdiffService(config, 2);
+		final byte[] sig = signature(new Rdiff(config));
+		final List<ChecksumPair> otherSums = new Rdiff(other)
+				.makeSignatures(new ByteArrayInputStream(old));
+
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<?>> jobs = new ArrayList<>();
+			for (int i = 0; i < JOBS; i++) {
+				final int job = i;
+				jobs.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						if (job % 3 == 0)
+							signatureJob(service, sig);
+						else if (job % 3 == 1)
+							patchJob(service, sig, newData(job));
+						else
+							searchJob(service, otherSums, newData(job));
+						return null;
+					}
+				}));
+			}
+			for (Future<?> job : jobs)
+				job.get();
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private void signatureJob(RdiffService service, byte[] expected)
+			throws Exception {
+		ByteArrayOutputStream sig = new ByteArrayOutputStream();
+		service.signature(new ByteArrayInputStream(old), sig);
+		assertTrue(Arrays.equals(expected, sig.toByteArray()));
+	}
+
+	private void patchJob(RdiffService service, byte[] sig, byte[] data)
+			throws Exception {
+		ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		service.delta(new ByteArrayInputStream(sig), new ByteArrayInputStream(
+				data), delta);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		service.patch(basis, new ByteArrayInputStream(delta.toByteArray()),
+				out);
+		assertTrue(Arrays.equals(data, out.toByteArray()));
+	}
+
+	private void searchJob(RdiffService service, List<ChecksumPair> sums,
+			byte[] data) throws Exception {
+		final List<Delta> deltas = new LinkedList<>();
+		byte[] sum = service.delta(sums, new ByteArrayInputStream(data),
+				new DeltaSink() {
+					@Override
+					public void add(Delta delta) {
+						deltas.add(delta);
+					}
+				});
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new Rdiff(other).rebuildFile(basis, new DeltaList(deltas, sum), out);
+		assertTrue(Arrays.equals(data, out.toByteArray()));
+	}
+
+	/**
+	 * 第 i 个新文件：旧文件改动几个字节。
+	 */
+	private byte[] newData(int i) {
+		Random rnd = new Random(i);
+		byte[] data = old.clone();
+		for (int j = 0; j < 3; j++)
+			data[rnd.nextInt(data.length)]++;
+		return data;
+	}
+
+	private byte[] signature(Rdiff rdf) throws Exception {
+		ByteArrayOutputStream sig = new ByteArrayOutputStream();
+		rdf.writeSignatures(rdf.makeSignatures(new ByteArrayInputStream(old)),
+				sig);
+		return sig.toByteArray();
+	}
+}
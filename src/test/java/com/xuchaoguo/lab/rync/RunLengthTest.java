@@ -0,0 +1,128 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.Delta;
+import com.xuchaoguo.lab.filesync.Rdiff;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+import com.xuchaoguo.lab.filesync.RunBlock;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试重复字节的游程，以及打补丁到文件时零字节游程留成空洞。
+ */
+public class RunLengthTest extends TestCase {
+
+	private File dir;
+
+	private File basis;
+
+	private Configuration config;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("runs").toFile();
+		config = new Configuration();
+		config.doRunLength = true;
+
+		byte[] old = new byte[40000];
+		new Random(48).nextBytes(old);
+		basis = new File(dir, "basis");
+		FileOutputStream out = new FileOutputStream(basis);
+		try {
+			out.write(old);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 中间有零字节和其他字节的游程，游程跨越多个读缓冲区。
+	 */
+	public void testRuns() throws Exception {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		data.write(Files.readAllBytes(basis.toPath()), 0, 15000);
+		data.write(new byte[100000]);
+		data.write(fill(5000, 0x55));
+		data.write(Files.readAllBytes(basis.toPath()), 15000, 25000);
+		// 不足一块的零字节不成游程。
+		data.write(new byte[10]);
+		data.write(7);
+		assertPatch(data.toByteArray(), 2);
+	}
+
+	/**
+	 * 以零字节游程结尾：文件的长度由空洞的最后一个字节给出。
+	 */
+	public void testTrailingHole() throws Exception {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		data.write(Files.readAllBytes(basis.toPath()));
+		data.write(new byte[70000]);
+		assertPatch(data.toByteArray(), 1);
+	}
+
+	/**
+	 * 整个文件都是零字节。
+	 */
+	public void testAllZeros() throws Exception {
+		assertPatch(new byte[3 * config.blockLength + 5], 1);
+	}
+
+	private void assertPatch(byte[] data, int runs) throws Exception {
+		Rdiff rdf = new Rdiff(config);
+		List<Delta> deltas = rdf.makeDeltas(rdf
+				.makeSignatures(new ByteArrayInputStream(Files
+						.readAllBytes(basis.toPath()))),
+				new ByteArrayInputStream(data));
+		int found = 0;
+		for (Delta delta : deltas) {
+			if (delta instanceof RunBlock)
+				found++;
+		}
+		assertEquals(runs, found);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		rdf.writeDeltas(deltas, out);
+		byte[] delta = out.toByteArray();
+		assertTrue(delta.length < 25000);
+
+		File patched = new File(dir, "patched");
+		rdf.rebuildFile(basis, read(rdf, delta), patched);
+		assertTrue(Arrays.equals(data, Files.readAllBytes(patched.toPath())));
+
+		// 打补丁到流时游程照常写出。
+		out.reset();
+		rdf.rebuildFile(basis, read(rdf, delta), out);
+		assertTrue(Arrays.equals(data, out.toByteArray()));
+	}
+
+	private static List<Delta> read(Rdiff rdf, byte[] delta)
+			throws IOException {
+		return rdf.readDeltas(new ByteArrayInputStream(delta));
+	}
+
+	private static byte[] fill(int length, int value) {
+		byte[] b = new byte[length];
+		Arrays.fill(b, (byte) value);
+		return b;
+	}
+}
@@ -0,0 +1,194 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.xuchaoguo.lab.filesync.ChecksumPair;
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.Generator;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+import com.xuchaoguo.lab.filesync.SignatureCache;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试签名缓存：命中、文件或配置改变后失效，以及超出预算时淘汰最久未用的项。
+ * 文件内容改动后恢复大小和修改时间，缓存仍命中并返回旧签名，以此区分命中与未命中。
+ */
+public class SignatureCacheTest extends TestCase {
+
+	private static final int LENGTH = 30000;
+
+	private File dir;
+
+	private File cacheDir;
+
+	private Configuration config;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("sigcache").toFile();
+		cacheDir = new File(dir, "cache");
+		config = new Configuration();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : cacheDir.listFiles())
+			f.delete();
+		cacheDir.delete();
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 文件没有变化时命中，末块长度也与生成的相同。
+	 */
+	public void testHit() throws Exception {
+		File f = file("a", 1);
+		SignatureCache cache = new SignatureCache(config, cacheDir);
+		List<ChecksumPair> sums = cache.getSignatures(f);
+		assertSums(generate(config, f), sums);
+
+		List<ChecksumPair> hit = cache.getSignatures(f);
+		assertSums(sums, hit);
+		assertTrue(isHit(cache, f, sums));
+	}
+
+	/**
+	 * 内容改动后，修改时间或大小有一项不同就不再命中。
+	 */
+	public void testFileChanged() throws Exception {
+		File f = file("a", 1);
+		SignatureCache cache = new SignatureCache(config, cacheDir);
+		List<ChecksumPair> old = cache.getSignatures(f);
+
+		// 大小不变，修改时间改变。
+		FileTime time = Files.getLastModifiedTime(f.toPath());
+		byte[] data = Files.readAllBytes(f.toPath());
+		data[0]++;
+		write(f, data);
+		f.setLastModified(time.toMillis() + 2000);
+		List<ChecksumPair> sums = cache.getSignatures(f);
+		assertFalse(same(old, sums));
+		assertSums(generate(config, f), sums);
+
+		// 修改时间不变，大小改变。
+		time = Files.getLastModifiedTime(f.toPath());
+		write(f, Arrays.copyOf(data, data.length + 100));
+		Files.setLastModifiedTime(f.toPath(), time);
+		assertSums(generate(config, f), cache.getSignatures(f));
+	}
+
+	/**
+	 * 用另一种块长或种子打开同一个缓存目录，不会读到旧配置的签名。
+	 */
+	public void testConfigChanged() throws Exception {
+		File f = file("a", 1);
+		new SignatureCache(config, cacheDir).getSignatures(f);
+
+		Configuration other = (Configuration) config.clone();
+		other.blockLength = 700;
+		assertSums(generate(other, f), new SignatureCache(other, cacheDir)
+				.getSignatures(f));
+
+		other = (Configuration) config.clone();
+		other.checksumSeed = new byte[] { 5, 6, 7, 8 };
+		assertSums(generate(other, f), new SignatureCache(other, cacheDir)
+				.getSignatures(f));
+	}
+
+	/**
+	 * 超出预算时淘汰最久未用的项：最近读过的 a 留下，b 被淘汰。
+	 */
+	public void testEviction() throws Exception {
+		File a = file("a", 1);
+		File b = file("b", 2);
+		File c = file("c", 3);
+		SignatureCache cache = new SignatureCache(config, cacheDir);
+		cache.getSignatures(a);
+		long entry = cacheDir.listFiles()[0].length();
+		cache.clear();
+		assertEquals(0, cacheDir.listFiles().length);
+
+		// 预算容纳两项半。
+		cache = new SignatureCache(config, cacheDir, entry * 5 / 2);
+		List<ChecksumPair> sumsA = cache.getSignatures(a);
+		Thread.sleep(20);
+		List<ChecksumPair> sumsB = cache.getSignatures(b);
+		Thread.sleep(20);
+		cache.getSignatures(a);
+		Thread.sleep(20);
+		cache.getSignatures(c);
+		assertEquals(2, cacheDir.listFiles().length);
+
+		assertTrue(isHit(cache, a, sumsA));
+		assertFalse(isHit(cache, b, sumsB));
+	}
+
+	/**
+	 * 改动文件内容但恢复大小和修改时间，看缓存是否仍返回旧签名。
+	 */
+	private static boolean isHit(SignatureCache cache, File f,
+			List<ChecksumPair> old) throws Exception {
+		FileTime time = Files.getLastModifiedTime(f.toPath());
+		byte[] data = Files.readAllBytes(f.toPath());
+		data[0]++;
+		write(f, data);
+		Files.setLastModifiedTime(f.toPath(), time);
+		return same(old, cache.getSignatures(f));
+	}
+
+	private File file(String name, int seed) throws IOException {
+		byte[] data = new byte[LENGTH];
+		new Random(seed).nextBytes(data);
+		File f = new File(dir, name);
+		write(f, data);
+		return f;
+	}
+
+	private static List<ChecksumPair> generate(Configuration c, File f)
+			throws Exception {
+		return new Generator((Configuration) c.clone()).generateSums(f);
+	}
+
+	private static void assertSums(List<ChecksumPair> expected,
+			List<ChecksumPair> actual) {
+		assertTrue(same(expected, actual));
+	}
+
+	/**
+	 * 两组签名的校验和、偏移和长度都相同。
+	 */
+	private static boolean same(List<ChecksumPair> a, List<ChecksumPair> b) {
+		if (a.size() != b.size())
+			return false;
+		for (int i = 0; i < a.size(); i++) {
+			ChecksumPair x = a.get(i), y = b.get(i);
+			if (x.getWeak() != y.getWeak()
+					|| !Arrays.equals(x.getStrong().getBytes(), y.getStrong()
+							.getBytes()) || x.getOffset() != y.getOffset()
+					|| x.getLength() != y.getLength())
+				return false;
+		}
+		return true;
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
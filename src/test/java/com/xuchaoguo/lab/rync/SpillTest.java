@@ -0,0 +1,198 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.xuchaoguo.lab.filesync.ChecksumPair;
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.DataBlock;
+import com.xuchaoguo.lab.filesync.Delta;
+import com.xuchaoguo.lab.filesync.DeltaSink;
+import com.xuchaoguo.lab.filesync.Rdiff;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试超出内存预算的字面数据写入临时文件。
+ */
+public class SpillTest extends TestCase {
+
+	private static final int BUDGET = 100000;
+
+	private File dir;
+
+	private File basis;
+
+	private byte[] old;
+
+	private Configuration config;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("spill").toFile();
+		config = new Configuration();
+		config.memoryBudget = BUDGET;
+
+		old = new byte[20000];
+		new Random(49).nextBytes(old);
+		basis = new File(dir, "basis");
+		FileOutputStream out = new FileOutputStream(basis);
+		try {
+			out.write(old);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 字面数据远超预算：差异写出、读回（读回时同样溢出）后，
+	 * 打补丁应得到新文件；关闭之后溢出的数据不能再写出。
+	 */
+	public void testSpill() throws Exception {
+		byte[] data = newData(4 * BUDGET, 1);
+		Rdiff rdf = new Rdiff(config);
+		try {
+			List<Delta> deltas = rdf.makeDeltas(signatures(rdf), data(data));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			rdf.writeDeltas(deltas, out);
+			List<Delta> read = rdf.readDeltas(new ByteArrayInputStream(out
+					.toByteArray()));
+			ByteArrayOutputStream patched = new ByteArrayOutputStream();
+			rdf.rebuildFile(basis, read, patched);
+			assertTrue(Arrays.equals(data, patched.toByteArray()));
+
+			rdf.close();
+			try {
+				rdf.writeDeltas(deltas, new ByteArrayOutputStream());
+				fail("Wrote spilled data after closing");
+			} catch (IOException expected) {
+			}
+		} finally {
+			rdf.close();
+		}
+	}
+
+	/**
+	 * 释放的数据块把内存还给预算：逐块释放地生成一次差异后，
+	 * 下一次差异的字面数据仍全部在内存中，关闭后照样可以写出。
+	 */
+	public void testReleaseReturnsBudget() throws Exception {
+		Rdiff rdf = new Rdiff(config);
+		try {
+			ByteArrayOutputStream sig = new ByteArrayOutputStream();
+			rdf.writeSignatures(signatures(rdf), sig);
+			for (int i = 0; i < 3; i++) {
+				rdf.makeDeltas(new ByteArrayInputStream(sig.toByteArray()),
+						data(newData(BUDGET * 3 / 4, i)), new DeltaSink() {
+							@Override
+							public void add(Delta delta) {
+								if (delta instanceof DataBlock)
+									((DataBlock) delta).release();
+							}
+						});
+			}
+
+			byte[] data = newData(BUDGET * 3 / 4, 3);
+			List<Delta> deltas = rdf.makeDeltas(signatures(rdf), data(data));
+			rdf.close();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			rdf.writeDeltas(deltas, out);
+			ByteArrayOutputStream patched = new ByteArrayOutputStream();
+			rdf.rebuildFile(basis, rdf.readDeltas(new ByteArrayInputStream(out
+					.toByteArray())), patched);
+			assertTrue(Arrays.equals(data, patched.toByteArray()));
+		} finally {
+			rdf.close();
+		}
+	}
+
+	/**
+	 * 整个文件作为字面数据发送时，同样超出预算的部分写入临时文件。
+	 */
+	public void testLiteralDeltasSpill() throws Exception {
+		byte[] data = newData(4 * BUDGET, 5);
+		Rdiff rdf = new Rdiff(config);
+		try {
+			List<Delta> deltas = rdf.makeLiteralDeltas(data(data));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			for (Delta delta : deltas)
+				((DataBlock) delta).writeTo(out);
+			assertTrue(Arrays.equals(data, out.toByteArray()));
+
+			rdf.close();
+			try {
+				rdf.writeDeltas(deltas, new ByteArrayOutputStream());
+				fail("Wrote spilled data after closing");
+			} catch (IOException expected) {
+			}
+		} finally {
+			rdf.close();
+		}
+	}
+
+	/**
+	 * 展开目标复制时，从内存中的数据块切出的副本也计入预算，超出即写入临时文件。
+	 */
+	public void testResolvedSlicesSpill() throws Exception {
+		config.doTargetCopies = true;
+		byte[] half = new byte[BUDGET * 3 / 5];
+		new Random(6).nextBytes(half);
+		byte[] data = new byte[2 * half.length];
+		System.arraycopy(half, 0, data, 0, half.length);
+		System.arraycopy(half, 0, data, half.length, half.length);
+
+		Rdiff rdf = new Rdiff(config);
+		try {
+			List<Delta> resolved = Rdiff.resolveTargetCopies(rdf.makeDeltas(
+					signatures(rdf), data(data)));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			for (Delta delta : resolved)
+				((DataBlock) delta).writeTo(out);
+			assertTrue(Arrays.equals(data, out.toByteArray()));
+
+			rdf.close();
+			try {
+				rdf.writeDeltas(resolved, new ByteArrayOutputStream());
+				fail("Wrote spilled data after closing");
+			} catch (IOException expected) {
+			}
+		} finally {
+			rdf.close();
+		}
+	}
+
+	/**
+	 * 新文件：旧文件夹在大段新数据中间。
+	 */
+	private byte[] newData(int literal, long seed) {
+		byte[] data = new byte[literal + old.length];
+		new Random(seed).nextBytes(data);
+		System.arraycopy(old, 0, data, literal / 2, old.length);
+		return data;
+	}
+
+	private List<ChecksumPair> signatures(Rdiff rdf) throws Exception {
+		return rdf.makeSignatures(new ByteArrayInputStream(old));
+	}
+
+	private static ByteArrayInputStream data(byte[] data) {
+		return new ByteArrayInputStream(data);
+	}
+}
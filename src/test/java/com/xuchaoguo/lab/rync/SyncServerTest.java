@@ -0,0 +1,218 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+import com.xuchaoguo.lab.filesync.SyncClient;
+import com.xuchaoguo.lab.filesync.SyncServer;
+
+import junit.framework.TestCase;
+
+/**
+ * 在本机回环地址上测试同步服务器。
+ */
+public class SyncServerTest extends TestCase {
+
+	private static final int FILES = 8;
+
+	private static final int CLIENTS = 2000;
+
+	private File dir;
+
+	private byte[][] contents;
+
+	private SyncServer server;
+
+	private SyncClient client;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		Configuration c = new Configuration();
+
+		dir = Files.createTempDirectory("sync").toFile();
+		File root = new File(dir, "root");
+		root.mkdir();
+		Random rnd = new Random(1);
+		contents = new byte[FILES][];
+		for (int i = 0; i < FILES; i++) {
+			contents[i] = new byte[4096 + rnd.nextInt(64 * 1024)];
+			rnd.nextBytes(contents[i]);
+			write(new File(root, "f" + i), contents[i]);
+		}
+
+		server = new SyncServer(c, root, new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), 0), Runtime.getRuntime()
+				.availableProcessors());
+		server.start();
+		client = new SyncClient(c, new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), server.getPort()));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+		for (File f : new File(dir, "root").listFiles())
+			f.delete();
+		new File(dir, "root").delete();
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 数千个客户端同时同步，每个都应得到与服务器一致的文件。
+	 */
+	public void testConcurrentClients() throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(CLIENTS);
+		final AtomicInteger synced = new AtomicInteger();
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+		for (int i = 0; i < CLIENTS; i++) {
+			final int n = i;
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						int k = n % FILES;
+						// 客户端的旧版本：改动几个字节并截掉末尾。
+						Random rnd = new Random(n);
+						byte[] old = Arrays.copyOf(contents[k],
+								contents[k].length - rnd.nextInt(1000));
+						for (int j = 0; j < 4; j++)
+							old[rnd.nextInt(old.length)]++;
+						File basis = new File(dir, "basis" + n);
+						File out = new File(dir, "out" + n);
+						write(basis, old);
+						client.sync("f" + k, basis, out);
+						if (Arrays.equals(contents[k],
+								Files.readAllBytes(out.toPath())))
+							synced.incrementAndGet();
+						basis.delete();
+						out.delete();
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+			t.setDaemon(true);
+			t.start();
+		}
+
+		start.countDown();
+		done.await();
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+		assertEquals(CLIENTS, synced.get());
+	}
+
+	/**
+	 * 请求不存在的文件或根目录以外的文件时，服务器应返回错误。
+	 */
+	public void testBadName() throws Exception {
+		File basis = new File(dir, "basis");
+		write(basis, new byte[100]);
+		for (String name : new String[] { "nothing", "../basis" }) {
+			try {
+				client.sync(name, basis, new File(dir, "out"));
+				fail("Synced " + name);
+			} catch (IOException expected) {
+				assertTrue(expected.getMessage().startsWith("Server error"));
+			}
+		}
+	}
+
+	/**
+	 * 签名长度为负数或超过上限时，服务器不读取签名，直接返回错误。
+	 */
+	public void testBadSignatureLength() throws Exception {
+		File basis = new File(dir, "basis");
+		write(basis, contents[0]);
+		server.setMaxSignatureLength(100);
+		try {
+			client.sync("f0", basis, new File(dir, "out"));
+			fail("Synced with a signature over the limit");
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage().startsWith("Server error"));
+		}
+
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+				server.getPort());
+		try {
+			DataOutputStream out = new DataOutputStream(
+					socket.getOutputStream());
+			out.writeUTF("f0");
+			out.writeInt(-1);
+			out.flush();
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			assertEquals(SyncServer.ERROR, in.readUnsignedByte());
+			assertTrue(in.readUTF().startsWith("Bad signature length"));
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * 发送签名很慢的客户端不应占用匹配线程：比匹配线程还多的客户端停在签名中途时，
+	 * 其他客户端仍应很快同步完成。
+	 */
+	public void testStalledClients() throws Exception {
+		int stalled = Runtime.getRuntime().availableProcessors() + 1;
+		Socket[] sockets = new Socket[stalled];
+		try {
+			for (int i = 0; i < stalled; i++) {
+				sockets[i] = new Socket(InetAddress.getLoopbackAddress(),
+						server.getPort());
+				DataOutputStream out = new DataOutputStream(
+						sockets[i].getOutputStream());
+				out.writeUTF("f0");
+				out.writeInt(1000);
+				out.writeInt(0x72730136);
+				out.flush();
+			}
+
+			File basis = new File(dir, "basis");
+			File out = new File(dir, "out");
+			write(basis, contents[1]);
+			long start = System.currentTimeMillis();
+			client.sync("f1", basis, out);
+			long elapsed = System.currentTimeMillis() - start;
+			assertTrue(elapsed < SyncServer.TIMEOUT / 2);
+			assertTrue(Arrays.equals(contents[1],
+					Files.readAllBytes(out.toPath())));
+		} finally {
+			for (Socket socket : sockets) {
+				if (socket != null)
+					socket.close();
+			}
+		}
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.DataBlock;
+import com.xuchaoguo.lab.filesync.Delta;
+import com.xuchaoguo.lab.filesync.Rdiff;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+import com.xuchaoguo.lab.filesync.TargetOffsets;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试从新文件自身已输出部分复制的差异。
+ */
+public class TargetCopiesTest extends TestCase {
+
+	/** 新文件中重复出现的新内容的长度。 */
+	private static final int REPEAT = 20000;
+
+	private File dir;
+
+	private File basis;
+
+	private byte[] data;
+
+	private Configuration config;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("target").toFile();
+		config = new Configuration();
+		config.doTargetCopies = true;
+
+		Random rnd = new Random(45);
+		byte[] old = new byte[60000];
+		rnd.nextBytes(old);
+		basis = new File(dir, "basis");
+		write(basis, old);
+
+		// 新文件：旧文件的一部分，一段新内容，旧文件的另一部分，再重复两次新内容。
+		byte[] repeat = new byte[REPEAT];
+		rnd.nextBytes(repeat);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(old, 0, 25000);
+		out.write(repeat);
+		out.write(old, 25000, 35000);
+		out.write(repeat);
+		out.write(7);
+		out.write(repeat);
+		data = out.toByteArray();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 重复的新内容只以字面数据发送一次，写出读回后打补丁得到新文件。
+	 */
+	public void testRepeatedContent() throws Exception {
+		Rdiff rdf = new Rdiff(config);
+		List<Delta> deltas = rdf.makeDeltas(rdf
+				.makeSignatures(new ByteArrayInputStream(Files
+						.readAllBytes(basis.toPath()))),
+				new ByteArrayInputStream(data));
+		long literal = 0, target = 0;
+		for (Delta delta : deltas) {
+			if (delta instanceof DataBlock)
+				literal += delta.getBlockLength();
+			else if (delta instanceof TargetOffsets)
+				target += delta.getBlockLength();
+		}
+		// 缓冲区边界处和每段重复内容末尾不足一块的部分仍以字面数据发送。
+		assertTrue(target >= 2 * REPEAT - 6 * config.blockLength);
+		assertTrue(literal < REPEAT + 6 * config.blockLength);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		rdf.writeDeltas(deltas, out);
+		List<Delta> read = rdf.readDeltas(new ByteArrayInputStream(out
+				.toByteArray()));
+		ByteArrayOutputStream patched = new ByteArrayOutputStream();
+		rdf.rebuildFile(basis, read, patched);
+		assertTrue(Arrays.equals(data, patched.toByteArray()));
+	}
+
+	/**
+	 * 展开目标复制后不再有目标复制，且打补丁的结果不变。
+	 */
+	public void testResolve() throws Exception {
+		Rdiff rdf = new Rdiff(config);
+		List<Delta> deltas = rdf.makeDeltas(rdf
+				.makeSignatures(new ByteArrayInputStream(Files
+						.readAllBytes(basis.toPath()))),
+				new ByteArrayInputStream(data));
+		List<Delta> resolved = Rdiff.resolveTargetCopies(deltas);
+		assertNotSame(deltas, resolved);
+		long length = 0;
+		for (Delta delta : resolved) {
+			assertFalse(delta instanceof TargetOffsets);
+			assertEquals(length, delta.getWriteOffset());
+			length += delta.getBlockLength();
+		}
+		assertEquals(data.length, length);
+
+		ByteArrayOutputStream patched = new ByteArrayOutputStream();
+		new Rdiff(new Configuration()).rebuildFile(basis, resolved, patched);
+		assertTrue(Arrays.equals(data, patched.toByteArray()));
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
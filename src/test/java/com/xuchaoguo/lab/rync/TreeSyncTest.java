@@ -0,0 +1,155 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+import com.xuchaoguo.lab.filesync.TreeSync;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试目录树的同步。
+ */
+public class TreeSyncTest extends TestCase {
+
+	private File dir;
+
+	private File source;
+
+	private File dest;
+
+	private TreeSync sync;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("tree").toFile();
+		source = new File(dir, "source");
+		dest = new File(dir, "dest");
+
+		Random rnd = new Random(4);
+		for (int i = 0; i < 40; i++) {
+			File d = new File(source, "d" + (i % 4) + File.separator + "e"
+					+ (i % 3));
+			d.mkdirs();
+			// 每十个文件中有一个小文件。
+			byte[] data = new byte[i % 10 == 0 ? rnd.nextInt(2000)
+					: 8000 + rnd.nextInt(40000)];
+			rnd.nextBytes(data);
+			write(new File(d, "f" + i), data);
+		}
+		sync = new TreeSync(new Configuration(), 2);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		delete(dir);
+	}
+
+	public void testSync() throws Exception {
+		// 第一次同步：全部整个复制。
+		sync.sync(source, dest);
+		assertEquals(40, sync.getFilesCopied());
+		assertSame(source, dest);
+
+		// 没有变化：全部由大小和修改时间跳过。
+		sync.sync(source, dest);
+		assertEquals(40, sync.getFilesSkipped());
+
+		// 修改一个大文件和一个小文件，新增一个文件。小文件整个复制。
+		change(new File(source, "d1" + File.separator + "e1" + File.separator
+				+ "f13"));
+		change(new File(source, "d0" + File.separator + "e2" + File.separator
+				+ "f20"));
+		write(new File(source, "new"), new byte[] { 1, 2, 3 });
+
+		sync.sync(source, dest);
+		assertEquals(41, sync.getFilesChecked());
+		assertEquals(38, sync.getFilesSkipped());
+		assertEquals(2, sync.getFilesCopied());
+		assertEquals(1, sync.getFilesPatched());
+		assertSame(source, dest);
+	}
+
+	/**
+	 * 按校验和比较时，只有修改时间不同的文件不再传输。
+	 */
+	public void testChecksum() throws Exception {
+		sync.sync(source, dest);
+		File f = new File(source, "d0" + File.separator + "e0"
+				+ File.separator + "f0");
+		f.setLastModified(f.lastModified() + 5000);
+
+		sync.setChecksum(true);
+		sync.sync(source, dest);
+		assertEquals(40, sync.getFilesSkipped());
+		assertEquals(f.lastModified(), new File(dest, "d0" + File.separator
+				+ "e0" + File.separator + "f0").lastModified());
+	}
+
+	/**
+	 * 整个重写的大文件抽样后找不到相同的块，整个复制而不做差异。
+	 * 文件要有足够多的块可抽样，置信上界才会低于门槛。
+	 */
+	public void testRewritten() throws Exception {
+		File f = new File(source, "big");
+		byte[] data = new byte[100 * new Configuration().blockLength];
+		Random rnd = new Random(44);
+		rnd.nextBytes(data);
+		write(f, data);
+		sync.sync(source, dest);
+
+		rnd.nextBytes(data);
+		write(f, data);
+		f.setLastModified(f.lastModified() + 2000);
+		sync.sync(source, dest);
+		assertEquals(40, sync.getFilesSkipped());
+		assertEquals(1, sync.getFilesCopied());
+		assertEquals(0, sync.getFilesPatched());
+		assertSame(source, dest);
+	}
+
+	private static void change(File f) throws IOException {
+		byte[] data = Files.readAllBytes(f.toPath());
+		data[data.length / 2]++;
+		write(f, data);
+		f.setLastModified(f.lastModified() + 2000);
+	}
+
+	private static void assertSame(File a, File b) throws IOException {
+		File[] children = a.listFiles();
+		if (children == null) {
+			assertTrue(b.getPath(), Arrays.equals(Files.readAllBytes(a.toPath()),
+					Files.readAllBytes(b.toPath())));
+			assertEquals(a.lastModified(), b.lastModified());
+			return;
+		}
+		for (File c : children)
+			assertSame(c, new File(b, c.getName()));
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c : children)
+				delete(c);
+		}
+		f.delete();
+	}
+}
@@ -0,0 +1,143 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.xuchaoguo.lab.filesync.ChecksumPair;
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.Generator;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+import com.xuchaoguo.lab.filesync.TwoPassSync;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试两遍同步：短强校验和一般一遍完成，误匹配时由整文件校验和发现并重来一遍。
+ */
+public class TwoPassSyncTest extends TestCase {
+
+	private File dir;
+
+	private File basis;
+
+	private byte[] old;
+
+	private Configuration config;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("twopass").toFile();
+		config = new Configuration();
+		// 字节取值在 [10, 100) 内，改动时加减不会越界。
+		old = new byte[40 * config.blockLength + 123];
+		Random rnd = new Random(35);
+		for (int i = 0; i < old.length; i++)
+			old[i] = (byte) (10 + rnd.nextInt(90));
+		basis = new File(dir, "basis");
+		write(basis, old);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * 普通改动一遍完成；输出文件可以就是旧文件。
+	 */
+	public void testOnePass() throws Exception {
+		byte[] data = old.clone();
+		data[1000]++;
+		data[30000]--;
+		File newFile = new File(dir, "new");
+		write(newFile, data);
+
+		TwoPassSync sync = new TwoPassSync(config);
+		File out = new File(dir, "out");
+		assertEquals(1, sync.sync(basis, newFile, out));
+		assertEquals(1, sync.getPasses());
+		assertTrue(Arrays.equals(data, Files.readAllBytes(out.toPath())));
+
+		assertEquals(1, sync.sync(basis, newFile, basis));
+		assertTrue(Arrays.equals(data, Files.readAllBytes(basis.toPath())));
+	}
+
+	/**
+	 * 构造一个弱校验和相同、一字节强校验和也相同的块：第一遍误匹配，
+	 * 整文件校验和不符，第二遍用完整长度的强校验和得到正确结果。
+	 */
+	public void testFalseMatch() throws Exception {
+		byte[] data = collide(5);
+		File newFile = new File(dir, "new");
+		write(newFile, data);
+
+		TwoPassSync sync = new TwoPassSync(config, 1);
+		File out = new File(dir, "out");
+		assertEquals(2, sync.sync(basis, newFile, out));
+		assertEquals(2, sync.getPasses());
+		assertTrue(Arrays.equals(data, Files.readAllBytes(out.toPath())));
+	}
+
+	/**
+	 * 短强校验和的长度须在 1 和摘要长度之间。
+	 */
+	public void testBadShortLength() {
+		int full = config.strongSum.getDigestLength();
+		for (int length : new int[] { -1, 0, full + 1 }) {
+			try {
+				new TwoPassSync(config, length);
+				fail("Accepted short length " + length);
+			} catch (IllegalArgumentException expected) {
+			}
+		}
+		new TwoPassSync(config, 1);
+		new TwoPassSync(config, full);
+	}
+
+	/**
+	 * 改动旧文件的第 block 块，使它的弱校验和不变、一字节强校验和也不变：
+	 * 相邻三个字节加 k、减 2k、加 k，字节和与加权和都不变。
+	 */
+	private byte[] collide(int block) {
+		Configuration c = (Configuration) config.clone();
+		c.strongSumLength = 1;
+		Generator gen = new Generator(c);
+		int len = config.blockLength;
+		int start = block * len;
+		ChecksumPair sum = gen.generateSum(old, start, len, start);
+
+		for (int k = 1; k < 5; k++) {
+			for (int i = start; i < start + len - 2; i++) {
+				byte[] data = old.clone();
+				data[i] += k;
+				data[i + 1] -= 2 * k;
+				data[i + 2] += k;
+				ChecksumPair pair = gen.generateSum(data, start, len, start);
+				if (pair.getWeak() == sum.getWeak()
+						&& Arrays.equals(pair.getStrong().getBytes(), sum
+								.getStrong().getBytes()))
+					return data;
+				assertEquals(sum.getWeak(), pair.getWeak());
+			}
+		}
+		fail("No collision found");
+		return null;
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package com.xuchaoguo.lab.rync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.xuchaoguo.lab.filesync.Configuration;
+import com.xuchaoguo.lab.filesync.RsyncProvider;
+import com.xuchaoguo.lab.filesync.VersionStore;
+
+import junit.framework.TestCase;
+
+/**
+ * 测试版本库，以及在提交和压缩的中途崩溃后版本库仍然完整。
+ */
+public class VersionStoreTest extends TestCase {
+
+	private static final int VERSIONS = 7;
+
+	private File dir;
+
+	private File store;
+
+	private byte[][] versions;
+
+	private Configuration config;
+
+	@Override
+	protected void setUp() throws Exception {
+		Security.addProvider(new RsyncProvider());
+		dir = Files.createTempDirectory("versions").toFile();
+		store = new File(dir, "store");
+		config = new Configuration();
+
+		Random rnd = new Random(29);
+		versions = new byte[VERSIONS][];
+		versions[0] = new byte[50000];
+		rnd.nextBytes(versions[0]);
+		// 每个版本在随机位置插入一段新数据，并修改几个字节。
+		for (int i = 1; i < VERSIONS; i++) {
+			byte[] prev = versions[i - 1];
+			int at = rnd.nextInt(prev.length);
+			versions[i] = new byte[prev.length + 1000];
+			System.arraycopy(prev, 0, versions[i], 0, at);
+			System.arraycopy(prev, at, versions[i], at + 1000, prev.length
+					- at);
+			for (int j = at; j < at + 1000; j++)
+				versions[i][j] = (byte) rnd.nextInt();
+			for (int j = 0; j < 5; j++)
+				versions[i][rnd.nextInt(versions[i].length)]++;
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		delete(dir);
+	}
+
+	public void testRestore() throws Exception {
+		VersionStore vs = new VersionStore(config, store, 3);
+		for (int i = 0; i < VERSIONS; i++)
+			assertEquals(i, vs.commit(file(versions[i])));
+		assertVersions(vs, VERSIONS);
+
+		assertEquals(2, vs.compact());
+		assertVersions(vs, VERSIONS);
+		assertVersions(new VersionStore(config, store), VERSIONS);
+	}
+
+	/**
+	 * 提交时，新文件已经写好而索引还没有替换时崩溃。
+	 */
+	public void testCrashDuringCommit() throws Exception {
+		VersionStore vs = new VersionStore(config, store, 3);
+		for (int i = 0; i < VERSIONS - 1; i++)
+			vs.commit(file(versions[i]));
+		File before = new File(dir, "before");
+		copy(store, before);
+		vs.commit(file(versions[VERSIONS - 1]));
+
+		crash(before, store);
+		vs = new VersionStore(config, before);
+		assertVersions(vs, VERSIONS - 1);
+
+		// 崩溃后可以重新提交。
+		assertEquals(VERSIONS - 1, vs.commit(file(versions[VERSIONS - 1])));
+		assertVersions(vs, VERSIONS);
+	}
+
+	/**
+	 * 压缩时，新差异已经写好而索引还没有替换时崩溃。
+	 */
+	public void testCrashDuringCompact() throws Exception {
+		VersionStore vs = new VersionStore(config, store, 4);
+		for (int i = 0; i < VERSIONS; i++)
+			vs.commit(file(versions[i]));
+		File before = new File(dir, "before");
+		copy(store, before);
+		assertTrue(vs.compact() > 0);
+
+		crash(before, store);
+		vs = new VersionStore(config, before);
+		assertVersions(vs, VERSIONS);
+		assertTrue(vs.compact() > 0);
+		assertVersions(vs, VERSIONS);
+	}
+
+	private void assertVersions(VersionStore vs, int count) throws Exception {
+		assertEquals(count, vs.size());
+		File f = new File(dir, "restored");
+		for (int i = 0; i < count; i++) {
+			vs.restore(i, f);
+			assertTrue("version " + i, Arrays.equals(versions[i],
+					Files.readAllBytes(f.toPath())));
+		}
+	}
+
+	private File file(byte[] data) throws IOException {
+		File f = new File(dir, "current");
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		return f;
+	}
+
+	/**
+	 * 模拟崩溃：把操作之后的版本库中除索引以外的文件复制到操作之前的版本库中，
+	 * 也就是新文件都已写入，而索引仍是旧的。
+	 */
+	private static void crash(File before, File after) throws IOException {
+		for (File f : after.listFiles()) {
+			if (!f.getName().equals("index"))
+				Files.copy(f.toPath(), new File(before, f.getName()).toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static void copy(File from, File to) throws IOException {
+		to.mkdirs();
+		for (File f : from.listFiles())
+			Files.copy(f.toPath(), new File(to, f.getName()).toPath());
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c : children)
+				delete(c);
+		}
+		f.delete();
+	}
+}